@@ -41,6 +41,199 @@ extern "C" JNIEXPORT jdoubleArray JNICALL Java_com_microsoft_asurerun_model_Appl
     return javaOutput;
 }
 
+/**
+ * Copies a serialized ciphertext into a new Java byte array
+ */
+static jbyteArray toJavaBytes(JNIEnv *env, const string &bytes)
+{
+    jbyteArray javaBytes = env->NewByteArray(bytes.size());
+    env->SetByteArrayRegion(javaBytes, 0, bytes.size(), reinterpret_cast<const jbyte*>(bytes.data()));
+    return javaBytes;
+}
+
+/**
+ * Copies a Java byte array holding a serialized ciphertext into native memory
+ */
+static string fromJavaBytes(JNIEnv *env, jbyteArray javaBytes)
+{
+    string bytes(env->GetArrayLength(javaBytes), '\0');
+    env->GetByteArrayRegion(javaBytes, 0, bytes.size(), reinterpret_cast<jbyte*>(&bytes[0]));
+    return bytes;
+}
+
+extern "C" JNIEXPORT jbyteArray JNICALL Java_com_microsoft_asurerun_model_ApplicationState_nativeEncryptToBytes(JNIEnv *env, jobject, jlong contextHandle, jdoubleArray input)
+{
+    jsize inputLength = env->GetArrayLength(input);
+    vector<double> inputVector(inputLength);
+    env->GetDoubleArrayRegion(input, 0, inputLength, inputVector.data());
+
+    CryptoContext *context = reinterpret_cast<CryptoContext*>(contextHandle);
+    return toJavaBytes(env, context->encryptToBytes(inputVector));
+}
+
+extern "C" JNIEXPORT jdoubleArray JNICALL Java_com_microsoft_asurerun_model_ApplicationState_nativeDecryptFromBytes(JNIEnv *env, jobject, jlong contextHandle, jbyteArray input)
+{
+    string bytes = fromJavaBytes(env, input);
+    CryptoContext *context = reinterpret_cast<CryptoContext*>(contextHandle);
+    vector<double> output = context->decryptFromBytes(bytes.data(), bytes.size());
+    jdoubleArray javaOutput = env->NewDoubleArray(output.size());
+    env->SetDoubleArrayRegion(javaOutput, 0, output.size(), output.data());
+
+    return javaOutput;
+}
+
+extern "C" JNIEXPORT jbyteArray JNICALL Java_com_microsoft_asurerun_model_ApplicationState_nativeEncryptUncachedToBytes(JNIEnv *env, jobject, jlong contextHandle, jdoubleArray input)
+{
+    jsize inputLength = env->GetArrayLength(input);
+    vector<double> inputVector(inputLength);
+    env->GetDoubleArrayRegion(input, 0, inputLength, inputVector.data());
+
+    CryptoContext *context = reinterpret_cast<CryptoContext*>(contextHandle);
+    return toJavaBytes(env, context->encryptUncachedToBytes(inputVector));
+}
+
+extern "C" JNIEXPORT jdoubleArray JNICALL Java_com_microsoft_asurerun_model_ApplicationState_nativeDecryptUncachedFromBytes(JNIEnv *env, jobject, jlong contextHandle, jbyteArray input)
+{
+    string bytes = fromJavaBytes(env, input);
+    CryptoContext *context = reinterpret_cast<CryptoContext*>(contextHandle);
+    vector<double> output = context->decryptUncachedFromBytes(bytes.data(), bytes.size());
+    jdoubleArray javaOutput = env->NewDoubleArray(output.size());
+    env->SetDoubleArrayRegion(javaOutput, 0, output.size(), output.data());
+
+    return javaOutput;
+}
+
+/**
+ * Returns the address of a direct ByteBuffer holding slots, throwing an IllegalArgumentException
+ * if the buffer isn't direct or can't hold the requested number of slots
+ */
+static double *getSlotBuffer(JNIEnv *env, jobject slotBuffer, jlong slotCount)
+{
+    void *address = env->GetDirectBufferAddress(slotBuffer);
+    jlong capacity = env->GetDirectBufferCapacity(slotBuffer);
+    if (address == nullptr || capacity < slotCount * static_cast<jlong>(sizeof(double)))
+    {
+        env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), "slot buffer must be a direct buffer large enough for the slots");
+        return nullptr;
+    }
+    return static_cast<double*>(address);
+}
+
+extern "C" JNIEXPORT jbyteArray JNICALL Java_com_microsoft_asurerun_model_ApplicationState_nativeEncryptFromBuffer(JNIEnv *env, jobject, jlong contextHandle, jobject slotBuffer, jint slotCount)
+{
+    const double *slots = getSlotBuffer(env, slotBuffer, slotCount);
+    if (slots == nullptr)
+    {
+        return nullptr;
+    }
+    CryptoContext *context = reinterpret_cast<CryptoContext*>(contextHandle);
+    return toJavaBytes(env, context->encryptToBytes(slots, slotCount));
+}
+
+extern "C" JNIEXPORT jint JNICALL Java_com_microsoft_asurerun_model_ApplicationState_nativeDecryptIntoBuffer(JNIEnv *env, jobject, jlong contextHandle, jbyteArray input, jobject slotBuffer, jint slotCount)
+{
+    double *slots = getSlotBuffer(env, slotBuffer, slotCount);
+    if (slots == nullptr)
+    {
+        return 0;
+    }
+    string bytes = fromJavaBytes(env, input);
+    CryptoContext *context = reinterpret_cast<CryptoContext*>(contextHandle);
+    return context->decryptFromBytes(bytes.data(), bytes.size(), slots, slotCount);
+}
+
+extern "C" JNIEXPORT void JNICALL Java_com_microsoft_asurerun_model_ApplicationState_nativeDecryptBatchIntoBuffer(JNIEnv *env, jobject, jlong contextHandle, jobjectArray inputs, jobject slotBuffer, jint slotsPerInput)
+{
+    jsize count = env->GetArrayLength(inputs);
+    double *slots = getSlotBuffer(env, slotBuffer, static_cast<jlong>(count) * slotsPerInput);
+    if (slots == nullptr)
+    {
+        return;
+    }
+    CryptoContext *context = reinterpret_cast<CryptoContext*>(contextHandle);
+    for (jsize i = 0; i < count; ++i)
+    {
+        jbyteArray input = static_cast<jbyteArray>(env->GetObjectArrayElement(inputs, i));
+        string bytes = fromJavaBytes(env, input);
+        env->DeleteLocalRef(input);
+        context->decryptFromBytes(bytes.data(), bytes.size(), slots + static_cast<size_t>(i) * slotsPerInput, slotsPerInput);
+    }
+}
+
+extern "C" JNIEXPORT jbyteArray JNICALL Java_com_microsoft_asurerun_model_ApplicationState_nativeEncryptSparse(JNIEnv *env, jobject, jlong contextHandle, jintArray slots, jdoubleArray values, jint count)
+{
+    CryptoContext *context = reinterpret_cast<CryptoContext*>(contextHandle);
+    if (count < 0 || env->GetArrayLength(slots) < count || env->GetArrayLength(values) < count)
+    {
+        env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), "slot assignments must hold count slots and values");
+        return nullptr;
+    }
+    vector<jint> slotVector(count);
+    vector<double> valueVector(count);
+    env->GetIntArrayRegion(slots, 0, count, slotVector.data());
+    env->GetDoubleArrayRegion(values, 0, count, valueVector.data());
+    for (jint slot : slotVector)
+    {
+        if (slot < 0 || static_cast<size_t>(slot) >= context->slotCount())
+        {
+            env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), "slot assignments must be within the slots of a ciphertext");
+            return nullptr;
+        }
+    }
+    return toJavaBytes(env, context->encryptSparseToBytes(slotVector.data(), valueVector.data(), count));
+}
+
+extern "C" JNIEXPORT jobjectArray JNICALL Java_com_microsoft_asurerun_model_ApplicationState_nativeEncryptBatch(JNIEnv *env, jobject, jlong contextHandle, jobjectArray inputs)
+{
+    jsize count = env->GetArrayLength(inputs);
+    vector<vector<double>> inputVectors(count);
+    for (jsize i = 0; i < count; ++i)
+    {
+        jdoubleArray input = static_cast<jdoubleArray>(env->GetObjectArrayElement(inputs, i));
+        jsize inputLength = env->GetArrayLength(input);
+        inputVectors[i].resize(inputLength);
+        env->GetDoubleArrayRegion(input, 0, inputLength, inputVectors[i].data());
+        env->DeleteLocalRef(input);
+    }
+
+    CryptoContext *context = reinterpret_cast<CryptoContext*>(contextHandle);
+    vector<string> outputs = context->encryptBatch(inputVectors);
+
+    jobjectArray javaOutputs = env->NewObjectArray(count, env->FindClass("[B"), nullptr);
+    for (jsize i = 0; i < count; ++i)
+    {
+        jbyteArray output = toJavaBytes(env, outputs[i]);
+        env->SetObjectArrayElement(javaOutputs, i, output);
+        env->DeleteLocalRef(output);
+    }
+    return javaOutputs;
+}
+
+extern "C" JNIEXPORT jobjectArray JNICALL Java_com_microsoft_asurerun_model_ApplicationState_nativeDecryptBatch(JNIEnv *env, jobject, jlong contextHandle, jobjectArray inputs)
+{
+    jsize count = env->GetArrayLength(inputs);
+    vector<string> inputBytes(count);
+    for (jsize i = 0; i < count; ++i)
+    {
+        jbyteArray input = static_cast<jbyteArray>(env->GetObjectArrayElement(inputs, i));
+        inputBytes[i] = fromJavaBytes(env, input);
+        env->DeleteLocalRef(input);
+    }
+
+    CryptoContext *context = reinterpret_cast<CryptoContext*>(contextHandle);
+    vector<vector<double>> outputs = context->decryptBatch(inputBytes);
+
+    jobjectArray javaOutputs = env->NewObjectArray(count, env->FindClass("[D"), nullptr);
+    for (jsize i = 0; i < count; ++i)
+    {
+        jdoubleArray output = env->NewDoubleArray(outputs[i].size());
+        env->SetDoubleArrayRegion(output, 0, outputs[i].size(), outputs[i].data());
+        env->SetObjectArrayElement(javaOutputs, i, output);
+        env->DeleteLocalRef(output);
+    }
+    return javaOutputs;
+}
+
 extern "C" JNIEXPORT jboolean JNICALL Java_com_microsoft_asurerun_model_ApplicationState_nativeLoadLocalKeys(
         JNIEnv *env,
         jobject,
@@ -2,6 +2,7 @@
 // Licensed under the MIT License.
 #include "CryptoContext.h"
 #include "base64.h"
+#include <algorithm>
 #include <sstream>
 #include <fstream>
 
@@ -90,7 +91,12 @@ CryptoContext::~CryptoContext() {}
 bool CryptoContext::loadLocalKeys(const std::string &publicKeyPath, const std::string &secretKeyPath)
 {
     //if either public or secret key cannot be loaded all keys must be recreated
-    return loadFromFile(publicKeyPath, m_public_key) && loadFromFile(secretKeyPath, m_secret_key);
+    if (loadFromFile(publicKeyPath, m_public_key) && loadFromFile(secretKeyPath, m_secret_key))
+    {
+        resetEncryptorAndDecryptor();
+        return true;
+    }
+    return false;
 }
 
 void CryptoContext::generateKeys(
@@ -117,28 +123,171 @@ void CryptoContext::generateKeys(
 
     RelinKeys ev_keys = keygen.relin_keys(30);
     saveToFile(relinearizeKeyOutputPath, ev_keys);
+
+    resetEncryptorAndDecryptor();
+}
+
+void CryptoContext::resetEncryptorAndDecryptor()
+{
+    lock_guard<mutex> lock(m_mutex);
+    m_encryptor.reset(new Encryptor(m_context, m_public_key));
+    m_decryptor.reset(new Decryptor(m_context, m_secret_key));
+}
+
+Encryptor &CryptoContext::encryptor()
+{
+    lock_guard<mutex> lock(m_mutex);
+    if (!m_encryptor)
+    {
+        m_encryptor.reset(new Encryptor(m_context, m_public_key));
+    }
+    return *m_encryptor;
+}
+
+Decryptor &CryptoContext::decryptor()
+{
+    lock_guard<mutex> lock(m_mutex);
+    if (!m_decryptor)
+    {
+        m_decryptor.reset(new Decryptor(m_context, m_secret_key));
+    }
+    return *m_decryptor;
 }
 
 string CryptoContext::encrypt(const vector<double> &input)
+{
+    return base64_encode(encryptToBytes(input));
+}
+
+vector<double> CryptoContext::decrypt(const string &input)
+{
+    string decoded = base64_decode(input);
+    return decryptFromBytes(decoded.data(), decoded.size());
+}
+
+string CryptoContext::encryptToBytes(const vector<double> &input)
 {
     Plaintext plain;
     m_encoder.encode(input, m_scale, plain);
+    return encryptToBytes(plain);
+}
+
+string CryptoContext::encryptToBytes(const Plaintext &plain)
+{
     Ciphertext encrypted;
+    encryptor().encrypt(plain, encrypted);
+    ostringstream stream;
+    encrypted.save(stream);
+    return stream.str();
+}
+
+vector<double> CryptoContext::decryptFromBytes(const char *data, size_t size)
+{
+    stringstream stream;
+    stream.write(data, size);
+    Plaintext plainOutput;
+    Ciphertext cipher;
+    cipher.unsafe_load(stream);
+    decryptor().decrypt(cipher, plainOutput);
+    vector<double> realOutput;
+    m_encoder.decode(plainOutput, realOutput);
+    return realOutput;
+}
+
+string CryptoContext::encryptToBytes(const double *input, size_t count)
+{
+    return encryptToBytes(vector<double>(input, input + count));
+}
+
+size_t CryptoContext::decryptFromBytes(const char *data, size_t size, double *output, size_t capacity)
+{
+    vector<double> realOutput = decryptFromBytes(data, size);
+    size_t written = min(realOutput.size(), capacity);
+    copy(realOutput.begin(), realOutput.begin() + written, output);
+    fill(output + written, output + capacity, 0.0);
+    return written;
+}
+
+string CryptoContext::encryptSparseToBytes(const int *slots, const double *values, size_t count)
+{
+    // all zeros between calls, only the assigned slots are ever written and they're reset below
+    thread_local vector<double> scratch;
+    if (scratch.size() != slotCount())
+    {
+        scratch.assign(slotCount(), 0.0);
+    }
+    for (size_t i = 0; i < count; ++i)
+    {
+        scratch[slots[i]] = values[i];
+    }
+    auto reset = [&]()
+    {
+        for (size_t i = 0; i < count; ++i)
+        {
+            scratch[slots[i]] = 0.0;
+        }
+    };
+    Plaintext plain;
+    try
+    {
+        m_encoder.encode(scratch, m_scale, plain);
+    }
+    catch (...)
+    {
+        reset();
+        throw;
+    }
+    reset();
+    return encryptToBytes(plain);
+}
+
+size_t CryptoContext::slotCount() const
+{
+    return m_encoder.slot_count();
+}
+
+vector<string> CryptoContext::encryptBatch(const vector<vector<double>> &inputs)
+{
+    vector<string> outputs;
+    outputs.reserve(inputs.size());
+    for (const vector<double> &input : inputs)
+    {
+        outputs.push_back(encryptToBytes(input));
+    }
+    return outputs;
+}
+
+vector<vector<double>> CryptoContext::decryptBatch(const vector<string> &inputs)
+{
+    vector<vector<double>> outputs;
+    outputs.reserve(inputs.size());
+    for (const string &input : inputs)
+    {
+        outputs.push_back(decryptFromBytes(input.data(), input.size()));
+    }
+    return outputs;
+}
+
+string CryptoContext::encryptUncachedToBytes(const vector<double> &input)
+{
+    Plaintext plain;
+    m_encoder.encode(input, m_scale, plain);
     Encryptor encryptor(m_context, m_public_key);
+    Ciphertext encrypted;
     encryptor.encrypt(plain, encrypted);
-    return encodeSealToBase64(encrypted);
+    ostringstream stream;
+    encrypted.save(stream);
+    return stream.str();
 }
 
-vector<double> CryptoContext::decrypt(const string &input)
+vector<double> CryptoContext::decryptUncachedFromBytes(const char *data, size_t size)
 {
-    size_t slots = input.size() / sizeof(double);
-    string decoded = base64_decode(input);
     stringstream stream;
-    stream.write(decoded.data(), decoded.size());
-    Decryptor decryptor(m_context, m_secret_key);
+    stream.write(data, size);
     Plaintext plainOutput;
     Ciphertext cipher;
     cipher.unsafe_load(stream);
+    Decryptor decryptor(m_context, m_secret_key);
     decryptor.decrypt(cipher, plainOutput);
     vector<double> realOutput;
     m_encoder.decode(plainOutput, realOutput);
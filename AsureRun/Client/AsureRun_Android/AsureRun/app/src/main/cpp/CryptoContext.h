@@ -2,6 +2,8 @@
 // Licensed under the MIT License.
 #pragma once
 
+#include <memory>
+#include <mutex>
 #include <string>
 #include <vector>
 #include <seal/seal.h>
@@ -9,6 +11,11 @@
 /**
  * Handles all the complex SEAL operations for encryption and decryption and exposes a simple to use
  * interface.
+ *
+ * Once the keys are loaded or generated, encryption and decryption may be called concurrently from
+ * any number of threads: the cached Encryptor, Decryptor and CKKSEncoder are only read from and
+ * every call draws its temporaries from SEAL's thread-safe global memory pool. Loading or
+ * generating keys must not overlap with any other call.
  */
 class CryptoContext
 {
@@ -71,13 +78,126 @@ public:
      */
     std::vector<double> decrypt(const std::string &input);
 
+    /**
+     * Encrypts a vector of doubles and outputs the serialized ciphertext as raw bytes
+     *
+     * @param input A vector of doubles to encrypt
+     */
+    std::string encryptToBytes(const std::vector<double> &input);
+
+    /**
+     * Decrypts a serialized ciphertext held as raw bytes and outputs a vector of doubles.
+     *
+     * @param data The serialized ciphertext
+     * @param size The size of the serialized ciphertext in bytes
+     */
+    std::vector<double> decryptFromBytes(const char *data, std::size_t size);
+
+    /**
+     * Encrypts slots read straight from caller owned memory, such as a direct ByteBuffer, and
+     * outputs the serialized ciphertext as raw bytes
+     *
+     * @param input The slots to encrypt
+     * @param count The number of slots to read from input
+     */
+    std::string encryptToBytes(const double *input, std::size_t count);
+
+    /**
+     * Decrypts a serialized ciphertext held as raw bytes straight into caller owned memory, such
+     * as a direct ByteBuffer. Slots that don't fit in the output are dropped, and output slots
+     * past the decoded ones are zeroed.
+     *
+     * @param data The serialized ciphertext
+     * @param size The size of the serialized ciphertext in bytes
+     * @param output Where to write the decrypted slots
+     * @param capacity The number of slots that fit in output
+     * @return The number of decrypted slots written to output
+     */
+    std::size_t decryptFromBytes(const char *data, std::size_t size, double *output, std::size_t capacity);
+
+    /**
+     * Encrypts slots that are all zero but a few, given as slot assignments, and outputs the
+     * serialized ciphertext as raw bytes. The CKKSEncoder only takes whole slot vectors, so the
+     * assignments are scattered into a per-thread vector of zeros that is kept and reset after
+     * each call, instead of a new vector being allocated and copied every time.
+     *
+     * @param slots The indices of the slots to assign, each less than slotCount()
+     * @param values The values to assign to the slots, a later assignment of a slot wins
+     * @param count The number of assignments
+     */
+    std::string encryptSparseToBytes(const int *slots, const double *values, std::size_t count);
+
+    /**
+     * Returns the number of slots of a ciphertext.
+     */
+    std::size_t slotCount() const;
+
+    /**
+     * Encrypts several vectors of doubles in one go, reusing the cached Encryptor for each of
+     * them. This is what a whole RunItem goes through when it is created.
+     *
+     * @param inputs The vectors of doubles to encrypt
+     * @return The serialized ciphertexts as raw bytes
+     */
+    std::vector<std::string> encryptBatch(const std::vector<std::vector<double>> &inputs);
+
+    /**
+     * Decrypts several serialized ciphertexts in one go, reusing the cached Decryptor for each
+     * of them.
+     *
+     * @param inputs The serialized ciphertexts as raw bytes
+     */
+    std::vector<std::vector<double>> decryptBatch(const std::vector<std::string> &inputs);
+
+    /**
+     * Encrypts a vector of doubles like encryptToBytes, but with an Encryptor built for this call
+     * only instead of the cached one. Only meant as the baseline of benchmarks.
+     *
+     * @param input A vector of doubles to encrypt
+     */
+    std::string encryptUncachedToBytes(const std::vector<double> &input);
+
+    /**
+     * Decrypts a serialized ciphertext like decryptFromBytes, but with a Decryptor built for this
+     * call only instead of the cached one. Only meant as the baseline of benchmarks.
+     *
+     * @param data The serialized ciphertext
+     * @param size The size of the serialized ciphertext in bytes
+     */
+    std::vector<double> decryptUncachedFromBytes(const char *data, std::size_t size);
+
 private:
+    /**
+     * (Re)creates the cached Encryptor and Decryptor. Must be called every time the public or
+     * secret key changes.
+     */
+    void resetEncryptorAndDecryptor();
+
+    /**
+     * Returns the cached Encryptor, creating it first if needed.
+     */
+    seal::Encryptor &encryptor();
+
+    /**
+     * Returns the cached Decryptor, creating it first if needed.
+     */
+    seal::Decryptor &decryptor();
+
+    /**
+     * Encrypts an encoded plaintext and outputs the serialized ciphertext as raw bytes.
+     */
+    std::string encryptToBytes(const seal::Plaintext &plain);
+
     seal::EncryptionParameters m_parms;
     uint64_t m_scale;
     std::shared_ptr<seal::SEALContext> m_context;
     seal::PublicKey m_public_key;
     seal::SecretKey m_secret_key;
     seal::CKKSEncoder m_encoder;
+    std::unique_ptr<seal::Encryptor> m_encryptor;
+    std::unique_ptr<seal::Decryptor> m_decryptor;
+    // guards the creation of the cached Encryptor and Decryptor
+    std::mutex m_mutex;
 };
 
 /*
@@ -15,6 +15,7 @@ import com.microsoft.asurerun.service.OnTaskListener;
 import com.microsoft.asurerun.service.SyncDataService;
 import com.microsoft.asurerun.ui.HomeActivity;
 import com.microsoft.asurerun.util.AzureFileManager;
+import com.microsoft.asurerun.util.Base64ByteArrayAdapter;
 import com.microsoft.asurerun.util.CacheUtil;
 import com.microsoft.asurerun.util.Configuration;
 import com.microsoft.asurerun.util.Utils;
@@ -25,16 +26,22 @@ import com.microsoft.windowsazure.mobileservices.MobileServiceList;
 import com.microsoft.windowsazure.mobileservices.table.MobileServiceTable;
 import com.microsoft.windowsazure.mobileservices.table.sync.MobileServiceSyncTable;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 
 import static com.microsoft.asurerun.util.AuthUtil.logout;
@@ -52,6 +59,8 @@ public class ApplicationState {
     private static final String RELINEARIZATION_KEY = "relinearizeKey";
     private static final String TAG = "APP_STATE";
     private static final String OFFLINE_TABLE_NAME = "OfflineStore";
+    // the size of one slot, slots are handed to the native code as doubles
+    private static final int SLOT_SIZE_BYTES = 8;
     // the number of items that are loaded the first time
     public static  final int INITIAL_ITEMS_OFFSET = 7;
 
@@ -72,6 +81,7 @@ public class ApplicationState {
     private static MobileServiceTable<SummaryItem> mSummaryTable;
     private static KeyItem mInsertedKeyItem;
     private static RunItemDbHelper mLocalRunDb;
+    private static RunSummaryDbHelper mRunSummaryDb;
 
     private static RunItem selectedRunItem;
 
@@ -174,18 +184,21 @@ public class ApplicationState {
         mLocalRunDb = new RunItemDbHelper(context);
     }
 
-    public static void storeLocalRunItem(RunItem runItem) {
+    /**
+     * Saves a run to be sent to the server
+     *
+     * @throws IOException if its ciphertexts couldn't be stored, then the run isn't saved
+     */
+    public static void storeLocalRunItem(RunItem runItem) throws IOException {
         mLocalRunDb.insert(runItem);
     }
 
-    public static void storeLocalRunItems(RunItem[] runItems) {
-        for(RunItem runItem : runItems)
-            mLocalRunDb.insert(runItem);
+    public static void storeLocalRunItems(RunItem[] runItems) throws IOException {
+        mLocalRunDb.insertAll(Arrays.asList(runItems));
     }
 
-    public static void storeLocalRunItems(Collection<RunItem> runItems) {
-        for(RunItem runItem : runItems)
-            mLocalRunDb.insert(runItem);
+    public static void storeLocalRunItems(Collection<RunItem> runItems) throws IOException {
+        mLocalRunDb.insertAll(runItems);
     }
 
     public static ArrayList<RunItem> getLocalRunItems() {
@@ -193,6 +206,37 @@ public class ApplicationState {
     }
     public static RunItem[] getLocalRunItemsDb() { return mLocalRunDb.getRunItems(); }
 
+    /**
+     * @return the local run items, read from the database a page at a time while iterating
+     */
+    public static Iterable<RunItem> iterateLocalRunItemsDb() { return mLocalRunDb.iterateRunItems(); }
+
+    public static long countUnsentLocalRunItems() { return mLocalRunDb.countUnsentRunItems(); }
+
+    public static List<Integer> getUnsentLocalRunNumbers() { return mLocalRunDb.getUnsentRunNumbers(); }
+
+    public static void deleteLocalRunItem(int runNumber) {
+        mLocalRunDb.deleteRunItem(runNumber);
+    }
+
+    public static List<RunItem> getDueLocalRunItems(long now, int syncState, Collection<Integer> excludedRunNumbers, int limit) {
+        return mLocalRunDb.getDueRunItems(now, syncState, excludedRunNumbers, limit);
+    }
+
+    public static void markLocalRunUploaded(int runNumber) {
+        mLocalRunDb.markUploaded(runNumber);
+    }
+
+    public static void recordFailedLocalRunUpload(int runNumber, long now, RunItemDbHelper.Backoff backoff) {
+        mLocalRunDb.recordFailedAttempt(runNumber, now, backoff);
+    }
+
+    public static long getNextLocalRunUploadTime(long now) { return mLocalRunDb.getNextAttemptTime(now); }
+
+    public static void getQueuedLocalTotals(String keyId, Set<Integer> runNumbers, Map<Integer, byte[]> removals) throws IOException {
+        mLocalRunDb.getQueuedTotals(keyId, runNumbers, removals);
+    }
+
     public static void deleteLocalRunItems() {
         mLocalRunDb.deleteAllRunItems();
     }
@@ -203,6 +247,10 @@ public class ApplicationState {
 
     public static void setMobileClient(MobileServiceClient client) {
         mClient = client;
+        // ciphertexts are kept as raw bytes and only turned into Base64 on the wire
+        Base64ByteArrayAdapter base64Adapter = new Base64ByteArrayAdapter();
+        mClient.registerSerializer(byte[].class, base64Adapter);
+        mClient.registerDeserializer(byte[].class, base64Adapter);
     }
 
     public static MobileServiceClient getMobileClient() {
@@ -237,6 +285,38 @@ public class ApplicationState {
             // delete all user data (because the keys have changed)
             SyncDataService.startDeleteAllDataOnFirstStart(context);
         }
+        openRunSummaryDb(context);
+    }
+
+    /**
+     * Opens the cache of decrypted run summaries for the current keys. Without it runs are
+     * simply decrypted every time.
+     */
+    private static void openRunSummaryDb(Context context) {
+        mRunSummaryDb = null;
+        File secretKeyFile = new File(mFileStorageDirectory, SECRET_KEY);
+        if (mInsertedKeyItem == null || !secretKeyFile.exists())
+            return;
+        try {
+            byte[] secretKey = new byte[(int) secretKeyFile.length()];
+            // a single read may return fewer bytes than the whole key
+            DataInputStream keyStream = new DataInputStream(new FileInputStream(secretKeyFile));
+            try {
+                keyStream.readFully(secretKey);
+            } finally {
+                keyStream.close();
+            }
+            mRunSummaryDb = new RunSummaryDbHelper(context, secretKey, mInsertedKeyItem.getId());
+        } catch (Exception e) {
+            Log.e(TAG, "Couldn't open the run summary cache", e);
+        }
+    }
+
+    /**
+     * @return the cache of decrypted run summaries, or null if it isn't available
+     */
+    public static RunSummaryDbHelper getRunSummaryDb() {
+        return mRunSummaryDb;
     }
 
     private static void sendKeys(Context context, OnTaskListener onTaskListener) throws Exception {
@@ -317,6 +397,13 @@ public class ApplicationState {
         // Delete keys from Azure
         mKeyTable.delete(mInsertedKeyItem);
 
+        // The cached summaries can't be read without the secret key
+        if (mRunSummaryDb != null) {
+            mRunSummaryDb.deleteAll();
+            mRunSummaryDb = null;
+        }
+        ThumbnailCache.getInstance().clear();
+
         // Delete local keys
         deleteFile(KEY_ID_FILE);
         deleteFile(PUBLIC_KEY);
@@ -355,7 +442,8 @@ public class ApplicationState {
             @Override
             protected Void doInBackground(Void... params) {
                 try {
-                    ListenableFuture<MobileServiceList<RunItem>> items = getRunTable().execute();
+                    // deleting only needs the ids
+                    ListenableFuture<MobileServiceList<RunItem>> items = getRunTable().select(RunItem.RunItemEntry.COLUMN_NAME_ID).execute();
                     Futures.addCallback(items, new FutureCallback<MobileServiceList<RunItem>>() {
                         @Override
                         public void onSuccess(MobileServiceList<RunItem> result) {
@@ -363,6 +451,7 @@ public class ApplicationState {
                                 for (RunItem item : result) {
                                     getRunTable().delete(item);
                                 }
+                                LifetimeSummary.delete();
                                 deleteKeys();
                                 mLocalRunItems.clear();
                                 mLocalRunDb.deleteAllRunItems();
@@ -407,20 +496,65 @@ public class ApplicationState {
         dialog.setCancelable(false);
         dialog.setCanceledOnTouchOutside(false);
         mLocalRunItems.remove(runItem);
+        if (mRunSummaryDb != null && runItem.getId() != null)
+            mRunSummaryDb.delete(runItem.getId());
+        ThumbnailCache.getInstance().remove(runItem.getId());
 
-        Futures.addCallback(getRunTable().delete(runItem), new FutureCallback<Void>() {
-            @Override
-            public void onSuccess(Void v) {
-                dialog.dismiss();
-            }
-
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
             @Override
-            public void onFailure(Throwable t) {
-                Log.e(TAG, "Deleting key error");
+            public void run() {
+                // read before the run is gone from the server
+                final byte[] negatedTotals;
+                try {
+                    negatedTotals = readNegatedTotals(runItem);
+                } catch (Exception e) {
+                    Log.e(TAG, "Couldn't read the totals of run " + runItem.getRunNumber() + ", keeping it", e);
+                    dialog.dismiss();
+                    return;
+                }
+                Futures.addCallback(getRunTable().delete(runItem), new FutureCallback<Void>() {
+                    @Override
+                    public void onSuccess(Void v) {
+                        dialog.dismiss();
+                        // taken out of the lifetime totals by the upload queue, retried until it is
+                        try {
+                            mLocalRunDb.queueTotalsRemoval(runItem.getRunNumber(), runItem.getKeyId(), negatedTotals);
+                        } catch (IOException e) {
+                            Log.e(TAG, "Couldn't queue the removal of run " + runItem.getRunNumber() + " from the totals", e);
+                            return;
+                        }
+                        SyncDataService.startSendDataOnServer(context);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        dialog.dismiss();
+                        Log.e(TAG, "Deleting run error", t);
+                    }
+                }, AsyncTask.THREAD_POOL_EXECUTOR);
             }
         });
     }
 
+    /**
+     * Reads the totals a run added to the lifetime totals, blocking on the server
+     *
+     * @return the totals negated and encrypted, adding them takes the run out of the lifetime totals
+     */
+    private static byte[] readNegatedTotals(RunItem runItem) throws Exception {
+        runItem.fetchMissingCiphers(RunItem.RunItemEntry.COLUMN_NAME_CIPHER_TOTALS);
+        RunTotals totals;
+        if (runItem.getCipherTotals() != null) {
+            totals = RunTotals.decrypt(runItem.getCipherTotals());
+        } else {
+            // runs uploaded before the server kept their totals were added up from their stats
+            // when the lifetime totals were seeded
+            ServerCalculations stats = runItem.getServerCalculations();
+            totals = new RunTotals(stats.getTotalDistance(), stats.getTotalTime(), 1);
+        }
+        return totals.negate().encrypt();
+    }
+
     public static void releaseCryptoContext() {
         nativeReleaseCryptoContext(mCryptoContext);
     }
@@ -433,6 +567,121 @@ public class ApplicationState {
         return nativeDecrypt(mCryptoContext, base64Input);
     }
 
+    /**
+     * Encrypts a slot vector into a serialized ciphertext, without going through Base64.
+     *
+     * @param values the slot vector to encrypt
+     * @return the serialized ciphertext
+     */
+    public static byte[] encryptToBytes(double[] values) {
+        return nativeEncryptToBytes(mCryptoContext, values);
+    }
+
+    /**
+     * Decrypts a serialized ciphertext, without going through Base64.
+     *
+     * @param input the serialized ciphertext
+     * @return the decrypted slot vector
+     */
+    public static double[] decryptFromBytes(byte[] input) {
+        return nativeDecryptFromBytes(mCryptoContext, input);
+    }
+
+    /**
+     * Same as {@link #encryptToBytes(double[])} with an Encryptor built for this call only, the
+     * baseline of {@link com.microsoft.asurerun.util.CryptoBenchmark}
+     */
+    public static byte[] encryptUncachedToBytes(double[] values) {
+        return nativeEncryptUncachedToBytes(mCryptoContext, values);
+    }
+
+    /**
+     * Same as {@link #decryptFromBytes(byte[])} with a Decryptor built for this call only, the
+     * baseline of {@link com.microsoft.asurerun.util.CryptoBenchmark}
+     */
+    public static double[] decryptUncachedFromBytes(byte[] input) {
+        return nativeDecryptUncachedFromBytes(mCryptoContext, input);
+    }
+
+    /**
+     * Allocates a direct, native-order buffer that the native code can read slots from and
+     * decrypt slots into without copying them through Java arrays. The buffer is meant to be
+     * kept and reused by the caller.
+     *
+     * @param slotCount the number of slots the buffer must hold
+     * @return the slot buffer
+     */
+    public static ByteBuffer allocateSlotBuffer(int slotCount) {
+        return ByteBuffer.allocateDirect(slotCount * SLOT_SIZE_BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Encrypts the slots held in a buffer from {@link #allocateSlotBuffer(int)}.
+     *
+     * @param slots the slot buffer
+     * @param slotCount the number of slots to encrypt, starting at the beginning of the buffer
+     * @return the serialized ciphertext
+     */
+    public static byte[] encryptFromBuffer(ByteBuffer slots, int slotCount) {
+        return nativeEncryptFromBuffer(mCryptoContext, slots, slotCount);
+    }
+
+    /**
+     * Decrypts a serialized ciphertext into a buffer from {@link #allocateSlotBuffer(int)}.
+     *
+     * @param input the serialized ciphertext
+     * @param slots the slot buffer to write to, starting at the beginning of the buffer
+     * @param slotCount the number of slots to write
+     * @return the number of decrypted slots, any remaining slots are zeroed
+     */
+    public static int decryptIntoBuffer(byte[] input, ByteBuffer slots, int slotCount) {
+        return nativeDecryptIntoBuffer(mCryptoContext, input, slots, slotCount);
+    }
+
+    /**
+     * Decrypts several serialized ciphertexts with a single native call into a buffer from
+     * {@link #allocateSlotBuffer(int)}. The slots of the i-th ciphertext start at slot
+     * i * slotsPerInput.
+     *
+     * @param slots the slot buffer to write to
+     * @param slotsPerInput the number of slots written for each ciphertext
+     * @param inputs the serialized ciphertexts to decrypt
+     */
+    public static void decryptBatchIntoBuffer(ByteBuffer slots, int slotsPerInput, byte[]... inputs) {
+        nativeDecryptBatchIntoBuffer(mCryptoContext, inputs, slots, slotsPerInput);
+    }
+
+    /**
+     * Encrypts several slot vectors with a single native call.
+     *
+     * @param values the slot vectors to encrypt
+     * @return the serialized ciphertexts, in the same order as the input
+     */
+    public static byte[][] encryptBatch(double[]... values) {
+        return nativeEncryptBatch(mCryptoContext, values);
+    }
+
+    /**
+     * Encrypts slots that are all zero but a few, without a whole slot vector going through Java.
+     *
+     * @param slots the slot assignments to encrypt
+     * @return the serialized ciphertext
+     * @throws IllegalArgumentException if a slot is past the slots of a ciphertext
+     */
+    public static byte[] encryptSparse(SparseSlots slots) {
+        return nativeEncryptSparse(mCryptoContext, slots.getSlots(), slots.getValues(), slots.size());
+    }
+
+    /**
+     * Decrypts several serialized ciphertexts with a single native call.
+     *
+     * @param inputs the serialized ciphertexts to decrypt
+     * @return the decrypted slot vectors, in the same order as the input
+     */
+    public static double[][] decryptBatch(byte[]... inputs) {
+        return nativeDecryptBatch(mCryptoContext, inputs);
+    }
+
     /**
      * A native method that is implemented by the 'cryptoadapter' native library,
      * which is packaged with this application.
@@ -445,6 +694,26 @@ public class ApplicationState {
 
     public native static double[] nativeDecrypt(long cryptoContext, String input);
 
+    public native static byte[] nativeEncryptToBytes(long cryptoContext, double[] values);
+
+    public native static double[] nativeDecryptFromBytes(long cryptoContext, byte[] input);
+
+    public native static byte[] nativeEncryptUncachedToBytes(long cryptoContext, double[] values);
+
+    public native static double[] nativeDecryptUncachedFromBytes(long cryptoContext, byte[] input);
+
+    public native static byte[] nativeEncryptFromBuffer(long cryptoContext, ByteBuffer slots, int slotCount);
+
+    public native static int nativeDecryptIntoBuffer(long cryptoContext, byte[] input, ByteBuffer slots, int slotCount);
+
+    public native static void nativeDecryptBatchIntoBuffer(long cryptoContext, byte[][] inputs, ByteBuffer slots, int slotsPerInput);
+
+    public native static byte[][] nativeEncryptBatch(long cryptoContext, double[][] values);
+
+    public native static byte[] nativeEncryptSparse(long cryptoContext, int[] slots, double[] values, int count);
+
+    public native static double[][] nativeDecryptBatch(long cryptoContext, byte[][] inputs);
+
     public native static boolean nativeLoadLocalKeys(long cryptoContext, String publicKeyPath, String secretKeyPath);
 
     public native static void nativeGenerateKeys(
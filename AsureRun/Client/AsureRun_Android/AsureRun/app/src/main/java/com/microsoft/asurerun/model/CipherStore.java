@@ -0,0 +1,121 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content addressed store of the ciphertexts of the local runs, one file per ciphertext named
+ * after its SHA-256. The database only keeps the hashes, so its rows stay small and no query ever
+ * has to page ciphertexts through a cursor window; the files are memory mapped when read.
+ */
+public class CipherStore {
+    private static final String TAG = "CipherStore";
+    public static final String DIRECTORY_NAME = "ciphers";
+
+    private final File mDirectory;
+
+    public CipherStore(Context context) {
+        mDirectory = new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    /**
+     * Stores a ciphertext, unless the same one is already stored
+     *
+     * @return the hash to read the ciphertext back with, null for a null ciphertext
+     */
+    public String put(byte[] cipher) throws IOException {
+        if (cipher == null)
+            return null;
+        String hash = hash(cipher);
+        File file = getFile(hash);
+        if (file.exists())
+            return hash;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            throw new IOException("Couldn't create " + mDirectory);
+        // written aside then renamed, so a file named after a hash is always complete
+        File temp = new File(mDirectory, hash + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(cipher);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't store " + file);
+        }
+        return hash;
+    }
+
+    /**
+     * @return the ciphertext with the given hash, null for a null hash
+     */
+    public byte[] get(String hash) throws IOException {
+        if (hash == null)
+            return null;
+        RandomAccessFile file = new RandomAccessFile(getFile(hash), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] cipher = new byte[buffer.remaining()];
+            buffer.get(cipher);
+            return cipher;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Deletes the ciphertext with the given hash, the caller makes sure no run references it
+     */
+    public void delete(String hash) {
+        if (hash == null)
+            return;
+        File file = getFile(hash);
+        if (file.exists() && !file.delete())
+            Log.e(TAG, "Couldn't delete " + file);
+    }
+
+    /**
+     * Deletes every ciphertext
+     */
+    public void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (!file.delete())
+                Log.e(TAG, "Couldn't delete " + file);
+        }
+    }
+
+    private File getFile(String hash) {
+        return new File(mDirectory, hash);
+    }
+
+    private static String hash(byte[] cipher) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Android platform provides SHA-256
+            throw new IllegalStateException(e);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(cipher))
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,153 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import android.util.Log;
+
+import com.microsoft.asurerun.model.RunItem.RunItemEntry;
+import com.microsoft.windowsazure.mobileservices.table.MobileServiceTable;
+import com.microsoft.windowsazure.mobileservices.table.query.QueryOrder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The lifetime totals of the user, kept in a single SummaryItem per key. Every uploaded run adds
+ * its encrypted {@link RunTotals} to it, and every deleted run its negated totals, the server
+ * adding them up homomorphically, so the totals are read back with a single decryption whatever
+ * the length of the history.
+ *
+ * A key without a SummaryItem yet, whose runs were uploaded before the totals were kept, gets one
+ * seeded once from the stats of all its runs. The totals still queued in the local database are
+ * left to the queue, see {@link #seed(String)}. The updates are serialized, the server adds a
+ * patch to the stored totals without any concurrency control.
+ */
+public class LifetimeSummary {
+    private static final String TAG = "LifetimeSummary";
+    // the number of runs read at a time when seeding the totals
+    private static final int SEED_PAGE_SIZE = 50;
+
+    /**
+     * Downloads and decrypts the lifetime totals, blocking
+     *
+     * @return the totals of every run on the server, null without a key
+     */
+    public static synchronized RunTotals fetch() throws ExecutionException, InterruptedException {
+        String keyId = getKeyId();
+        if (keyId == null)
+            return null;
+        SummaryItem summaryItem = find(keyId);
+        if (summaryItem == null)
+            summaryItem = seed(keyId);
+        return RunTotals.decrypt(summaryItem.getSummary());
+    }
+
+    /**
+     * Adds encrypted totals to the lifetime totals, blocking. They must still be queued in the
+     * local database until this returns, so seeding the totals in the meantime leaves them out.
+     */
+    public static synchronized void add(byte[] totalsCipher) throws ExecutionException, InterruptedException {
+        String keyId = getKeyId();
+        if (keyId == null)
+            return;
+        SummaryItem summaryItem = find(keyId);
+        if (summaryItem == null)
+            summaryItem = seed(keyId);
+        SummaryItem patch = new SummaryItem();
+        patch.setId(summaryItem.getId());
+        patch.setKeyId(keyId);
+        patch.setSummary(totalsCipher);
+        ApplicationState.getSummaryTable().update(patch).get();
+    }
+
+    /**
+     * Deletes the lifetime totals of every key of the user, blocking
+     */
+    public static synchronized void delete() throws ExecutionException, InterruptedException {
+        MobileServiceTable<SummaryItem> table = ApplicationState.getSummaryTable();
+        for (SummaryItem summaryItem : table.select(SummaryItem.COLUMN_NAME_ID).execute().get())
+            table.delete(summaryItem).get();
+    }
+
+    private static String getKeyId() {
+        KeyItem keyItem = ApplicationState.getInsertedKeyItem();
+        return keyItem != null ? keyItem.getId() : null;
+    }
+
+    private static SummaryItem find(String keyId) throws ExecutionException, InterruptedException {
+        List<SummaryItem> summaryItems = ApplicationState.getSummaryTable()
+                .where().field(SummaryItem.COLUMN_NAME_KEY_ID).eq(keyId).execute().get();
+        return summaryItems.isEmpty() ? null : summaryItems.get(0);
+    }
+
+    /**
+     * Adds up the totals of every run of the key on the server into a new SummaryItem. The totals
+     * still queued locally are added by the queue afterwards whatever the seed counted, so the
+     * runs they belong to are left out, and the deleted runs whose removal is still queued are
+     * counted as if they were still on the server. The queue is read once the server runs are,
+     * a run uploaded or deleted meanwhile is then accounted for either way.
+     */
+    private static SummaryItem seed(String keyId) throws ExecutionException, InterruptedException {
+        MobileServiceTable<RunItem> table = ApplicationState.getRunTable();
+        Map<Integer, RunTotals> serverTotals = new HashMap<>();
+        List<RunItem> page;
+        int skip = 0;
+        do {
+            page = table.where().field(RunItemEntry.COLUMN_NAME_KEY_ID).eq(keyId)
+                    .orderBy(RunItemEntry.COLUMN_NAME_RUN_NUMBER, QueryOrder.Ascending)
+                    .skip(skip).top(SEED_PAGE_SIZE)
+                    .select(RunItemEntry.COLUMN_NAME_ID, RunItemEntry.COLUMN_NAME_RUN_NUMBER, RunItemEntry.COLUMN_NAME_STATS,
+                            RunItemEntry.COLUMN_NAME_CIPHER_TOTALS)
+                    .execute().get();
+            for (RunItem runItem : page) {
+                try {
+                    // the same totals a deleted run takes out again, the stats for older runs
+                    if (runItem.getCipherTotals() != null) {
+                        serverTotals.put(runItem.getRunNumber(), RunTotals.decrypt(runItem.getCipherTotals()));
+                    } else {
+                        ServerCalculations stats = new ServerCalculations(runItem);
+                        serverTotals.put(runItem.getRunNumber(), new RunTotals(stats.getTotalDistance(), stats.getTotalTime(), 1));
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Leaving run " + runItem.getRunNumber() + " out of the totals: " + e.getMessage());
+                }
+            }
+            skip += page.size();
+        } while (page.size() == SEED_PAGE_SIZE);
+
+        Set<Integer> queuedRuns = new HashSet<>();
+        Map<Integer, byte[]> queuedRemovals = new HashMap<>();
+        try {
+            ApplicationState.getQueuedLocalTotals(keyId, queuedRuns, queuedRemovals);
+        } catch (IOException e) {
+            // seeding without them would count them twice, fail and let the queue retry
+            throw new ExecutionException(e);
+        }
+        RunTotals totals = new RunTotals();
+        for (Map.Entry<Integer, RunTotals> entry : serverTotals.entrySet()) {
+            if (!queuedRuns.contains(entry.getKey()))
+                totals.add(entry.getValue());
+        }
+        for (Map.Entry<Integer, byte[]> entry : queuedRemovals.entrySet()) {
+            int runNumber = entry.getKey();
+            if (queuedRuns.contains(runNumber) || serverTotals.containsKey(runNumber))
+                continue;
+            try {
+                totals.add(RunTotals.decrypt(entry.getValue()).negate());
+            } catch (Exception e) {
+                Log.e(TAG, "Leaving deleted run " + runNumber + " out of the totals: " + e.getMessage());
+            }
+        }
+        Log.d(TAG, "Seeded the totals with " + totals);
+
+        SummaryItem summaryItem = new SummaryItem();
+        summaryItem.setKeyId(keyId);
+        summaryItem.setSummary(totals.encrypt());
+        return ApplicationState.getSummaryTable().insert(summaryItem).get();
+    }
+}
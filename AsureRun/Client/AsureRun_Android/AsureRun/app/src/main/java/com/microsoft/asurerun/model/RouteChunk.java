@@ -0,0 +1,157 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A contiguous part of the route of a run, encrypted in coordinate ciphertexts of its own. A
+ * ciphertext holds half its slots of points, see {@link SlotLayout#getHalfSlotCount()}, so a
+ * longer route is split in chunks, each one starting on the last point of the chunk before it.
+ * The distance and time the server computes for each chunk then add up to those of the whole
+ * route.
+ *
+ * The first chunk is the cipher1, cipher2 and stats of the run. The ciphertexts of the other
+ * chunks are packed in its cipherChunks, and the server packs their stats in its chunkStats, see
+ * {@link #pack(List)}. The number of points of every chunk is in its chunkPoints.
+ */
+public class RouteChunk {
+    /**
+     * The most chunks a route is split in, a longer route is resampled to fit
+     */
+    public static final int MAX_CHUNKS = 8;
+    /**
+     * The number of points of the single chunk of runs recorded before routes were split
+     */
+    public static final int UNKNOWN_POINTS = -1;
+
+    private final int mIndex;
+    private final int mPoints;
+    private final byte[] mCipher1;
+    private final byte[] mCipher2;
+    private final byte[] mStats;
+
+    RouteChunk(int index, int points, byte[] cipher1, byte[] cipher2, byte[] stats) {
+        mIndex = index;
+        mPoints = points;
+        mCipher1 = cipher1;
+        mCipher2 = cipher2;
+        mStats = stats;
+    }
+
+    public int getIndex() { return mIndex; }
+    public int getPoints() { return mPoints; }
+    public byte[] getCipher1() { return mCipher1; }
+    public byte[] getCipher2() { return mCipher2; }
+    public byte[] getStats() { return mStats; }
+
+    /**
+     * @return the index of the first point of the index-th chunk in the whole route
+     */
+    public static int getFirstPoint(SlotLayout layout, int index) {
+        return index * (layout.getHalfSlotCount() - 1);
+    }
+
+    /**
+     * @return the most points a route can have in {@link #MAX_CHUNKS} chunks
+     */
+    public static int getMaxPoints(SlotLayout layout) {
+        return MAX_CHUNKS * (layout.getHalfSlotCount() - 1) + 1;
+    }
+
+    /**
+     * @return the number of points of each chunk of a route, a route without any point still
+     * has one empty chunk
+     */
+    public static int[] split(SlotLayout layout, int points) {
+        int pointsPerChunk = layout.getHalfSlotCount();
+        int count = points <= pointsPerChunk ? 1 : 1 + (points - 2) / (pointsPerChunk - 1);
+        int[] chunkPoints = new int[count];
+        for (int i = 0; i < count; ++i)
+            chunkPoints[i] = Math.min(pointsPerChunk, points - i * (pointsPerChunk - 1));
+        return chunkPoints;
+    }
+
+    /**
+     * @return the numbers of points separated by commas, the way they're sent in chunkPoints
+     */
+    public static String formatPoints(int[] chunkPoints) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < chunkPoints.length; ++i) {
+            if (i > 0)
+                text.append(',');
+            text.append(chunkPoints[i]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return the numbers of points of {@link #formatPoints(int[])}, or null if there are none
+     * or they can't be read
+     */
+    public static int[] parsePoints(String text) {
+        if (text == null || text.isEmpty())
+            return null;
+        String[] values = text.split(",");
+        int[] chunkPoints = new int[values.length];
+        try {
+            for (int i = 0; i < values.length; ++i)
+                chunkPoints[i] = Integer.parseInt(values[i].trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return chunkPoints;
+    }
+
+    /**
+     * Packs ciphertexts in a single byte array: their number, then each one prefixed with its
+     * length, as big-endian ints
+     */
+    public static byte[] pack(List<byte[]> ciphers) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(ciphers.size());
+            for (byte[] cipher : ciphers) {
+                out.writeInt(cipher.length);
+                out.write(cipher);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // a ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the ciphertexts of {@link #pack(List)}, none for null
+     * @throws IllegalArgumentException if the packed ciphertexts are truncated
+     */
+    public static List<byte[]> unpack(byte[] packed) {
+        List<byte[]> ciphers = new ArrayList<>();
+        if (packed == null)
+            return ciphers;
+        ByteBuffer in = ByteBuffer.wrap(packed);
+        try {
+            int count = in.getInt();
+            for (int i = 0; i < count; ++i) {
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining())
+                    throw new IllegalArgumentException("Truncated cipher " + i + " of " + count);
+                ciphers.add(Arrays.copyOfRange(packed, in.position(), in.position() + length));
+                in.position(in.position() + length);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated ciphers", e);
+        }
+        return ciphers;
+    }
+}
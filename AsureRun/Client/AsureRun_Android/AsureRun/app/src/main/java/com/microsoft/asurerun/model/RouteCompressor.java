@@ -0,0 +1,176 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import android.util.Log;
+
+import com.microsoft.asurerun.util.RouteSimplifier;
+
+import java.util.Arrays;
+
+/**
+ * Records the route of a run, in the cartesian coordinates that get encrypted, and keeps it
+ * within the slots of the ciphertexts however long the run. The points are simplified as they
+ * come in, a window of {@link #WINDOW_SIZE} points at a time, dropping only points closer than
+ * the tolerance to the route kept around them. Windows share their end points, so the error of
+ * the whole route stays within the tolerance.
+ *
+ * How many points can be encrypted is only decided when the run is over, see
+ * {@link #compress(int)}. A route that still doesn't fit then is resampled evenly in time. A
+ * route longer than a ciphertext is laid out a {@link RouteChunk} at a time.
+ */
+public class RouteCompressor {
+    private static final String TAG = "RouteCompressor";
+    private static final int WINDOW_SIZE = 256;
+
+    // the tolerance in the unit of the coordinates, km
+    private final double mTolerance;
+    // sized for a route that fits a single ciphertext, grown as needed
+    private double[] mX;
+    private double[] mY;
+    private double[] mZ;
+    private double[] mTimeStamps;
+    private int mSize;
+    // the points before this one are simplified, it's the first point of the next window
+    private int mWindowStart;
+
+    /**
+     * @param toleranceMeters how far from the recorded route a dropped point may be
+     */
+    public RouteCompressor(double toleranceMeters) {
+        mTolerance = toleranceMeters / 1000;
+        int capacity = SlotLayout.getActive().getHalfSlotCount();
+        mX = new double[capacity];
+        mY = new double[capacity];
+        mZ = new double[capacity];
+        mTimeStamps = new double[capacity];
+    }
+
+    public void add(double x, double y, double z, double timeStamp) {
+        if (mSize == mX.length) {
+            int capacity = Math.max(1, mSize * 2);
+            mX = Arrays.copyOf(mX, capacity);
+            mY = Arrays.copyOf(mY, capacity);
+            mZ = Arrays.copyOf(mZ, capacity);
+            mTimeStamps = Arrays.copyOf(mTimeStamps, capacity);
+        }
+        mX[mSize] = x;
+        mY[mSize] = y;
+        mZ[mSize] = z;
+        mTimeStamps[mSize] = timeStamp;
+        ++mSize;
+        if (mSize - mWindowStart >= WINDOW_SIZE)
+            simplifyWindow();
+    }
+
+    /**
+     * @return the number of points kept so far
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        mSize = 0;
+        mWindowStart = 0;
+    }
+
+    /**
+     * Fits the route in the given number of points, simplifying the last window and resampling
+     * the route in time if it has more points than that even so
+     *
+     * @param budget the number of points that can be encrypted
+     * @return the number of points of the route
+     */
+    public int compress(int budget) {
+        simplifyWindow();
+        if (mSize > budget) {
+            Log.w(TAG, mSize + " points don't fit in " + budget + " within the tolerance, resampling");
+            resample(budget);
+        }
+        return mSize;
+    }
+
+    /**
+     * Lays out a part of the route in the slots of the coordinate ciphertexts, the x and y in the
+     * halves of one and the z and the timestamps in the halves of the other. Past the last point
+     * the runner is assumed to stay where they were. Points past the length are dropped. These are
+     * the timestamps of the fixes, the run itself may start before the first and end after the last.
+     *
+     * @param from the index of the first point to lay out, see {@link RouteChunk#getFirstPoint(SlotLayout, int)}
+     * @param length the slots of half a ciphertext
+     */
+    public void writeSlots(double[] xy, double[] zt, int from, int length) {
+        copyTo(mX, xy, from, 0, length);
+        copyTo(mY, xy, from, length, length);
+        copyTo(mZ, zt, from, 0, length);
+        copyTo(mTimeStamps, zt, from, length, length);
+    }
+
+    private void copyTo(double[] values, double[] slots, int from, int offset, int length) {
+        int count = Math.max(0, Math.min(mSize - from, length));
+        System.arraycopy(values, from, slots, offset, count);
+        Arrays.fill(slots, offset + count, offset + length, mSize > 0 ? values[mSize - 1] : 0);
+    }
+
+    /**
+     * Simplifies the points from the start of the window on, the last one is kept to start the
+     * next window
+     */
+    private void simplifyWindow() {
+        int last = mSize - 1;
+        if (last - mWindowStart < 2) {
+            mWindowStart = Math.max(0, last);
+            return;
+        }
+        boolean[] keep = new boolean[mSize];
+        RouteSimplifier.simplify(mX, mY, mZ, mWindowStart, last, mTolerance, keep);
+        int kept = mWindowStart + 1;
+        for (int i = mWindowStart + 1; i <= last; ++i) {
+            if (keep[i])
+                move(i, kept++);
+        }
+        mSize = kept;
+        mWindowStart = kept - 1;
+    }
+
+    /**
+     * Keeps the first and last points, and in between the points closest in time to evenly
+     * spaced times, or evenly spaced points if the timestamps don't increase
+     */
+    private void resample(int budget) {
+        if (budget < 2) {
+            mSize = Math.max(0, Math.min(mSize, budget));
+            mWindowStart = Math.max(0, mSize - 1);
+            return;
+        }
+        int last = mSize - 1;
+        double start = mTimeStamps[0];
+        double duration = mTimeStamps[last] - start;
+        int next = 1;
+        for (int k = 1; k < budget - 1; ++k) {
+            // leave enough points for the samples after this one
+            int maxIndex = last - (budget - 1 - k);
+            int index = next;
+            if (duration > 0) {
+                double target = start + duration * k / (budget - 1);
+                while (index < maxIndex && Math.abs(mTimeStamps[index + 1] - target) <= Math.abs(mTimeStamps[index] - target))
+                    ++index;
+            } else {
+                index = Math.max(index, Math.min(maxIndex, (int) ((long) last * k / (budget - 1))));
+            }
+            move(index, k);
+            next = index + 1;
+        }
+        move(last, budget - 1);
+        mSize = budget;
+        mWindowStart = budget - 1;
+    }
+
+    private void move(int from, int to) {
+        mX[to] = mX[from];
+        mY[to] = mY[from];
+        mZ[to] = mZ[from];
+        mTimeStamps[to] = mTimeStamps[from];
+    }
+}
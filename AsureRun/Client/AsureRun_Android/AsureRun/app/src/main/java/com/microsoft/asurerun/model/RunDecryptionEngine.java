@@ -0,0 +1,328 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.Log;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decrypts RunItems on a pool of worker threads sized to the number of cores, so the CKKS
+ * decryption of a list of runs is spread over the whole device instead of a single AsyncTask.
+ * Callers pick the {@link Facet} of the runs they need, and only the ciphertexts behind it are
+ * decrypted; values in the summary cache skip decryption altogether. Requests for a facet of a run
+ * that is already being decrypted share the same result, and listeners get every result on the
+ * main thread as soon as it's ready.
+ *
+ * Queued requests are run by priority: the rows on screen first, then whole lists, then runs
+ * decrypted ahead of time. A request that wasn't started yet can be cancelled, or raised to a
+ * higher priority when it's asked for again.
+ *
+ * This relies on the native CryptoContext supporting concurrent decryption once its keys are
+ * loaded.
+ */
+public class RunDecryptionEngine {
+    private final static String TAG = RunDecryptionEngine.class.getSimpleName();
+    private static final int POOL_SIZE = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static RunDecryptionEngine sInstance;
+
+    /**
+     * For the runs shown on screen right now
+     */
+    public static final int PRIORITY_VISIBLE = 2;
+    /**
+     * For runs a screen is waiting on, the default
+     */
+    public static final int PRIORITY_DEFAULT = 1;
+    /**
+     * For runs decrypted ahead of time
+     */
+    public static final int PRIORITY_PREFETCH = 0;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Executor mMainThreadExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    // the facets of runs currently being decrypted, RunItem doesn't override hashCode so go by identity
+    private final Map<Facet<?>, Map<RunItem, Task<?>>> mInFlight = new HashMap<>();
+
+    /**
+     * A queued request, run by priority then in the order it was made
+     */
+    private static class Task<T> implements Runnable, Comparable<Task<?>> {
+        final ListenableFutureTask<T> mFuture;
+        final long mSequence;
+        volatile int mPriority;
+
+        Task(ListenableFutureTask<T> future, int priority, long sequence) {
+            mFuture = future;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            mFuture.run();
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            if (mPriority != other.mPriority)
+                return mPriority > other.mPriority ? -1 : 1;
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * A part of a run that can be decrypted on its own, loaded on a worker thread
+     */
+    public interface Facet<T> {
+        T load(RunItem item) throws Exception;
+    }
+
+    /**
+     * Everything needed to list a run, see {@link RunItem#loadRunSummary()}. The thumbnail of the
+     * run is loaded into the {@link ThumbnailCache} along the way.
+     */
+    public static final Facet<RunSummary> RUN_SUMMARY = new Facet<RunSummary>() {
+        @Override
+        public RunSummary load(RunItem item) throws Exception {
+            RunSummary summary = item.loadRunSummary();
+            try {
+                ThumbnailCache.getInstance().load(item);
+            } catch (Exception e) {
+                // the run is listed with a placeholder instead
+                Log.e(TAG, "Couldn't load the thumbnail of run " + item.getRunNumber(), e);
+            }
+            return summary;
+        }
+    };
+
+    /**
+     * The map thumbnail of a run, see {@link ThumbnailCache#load(RunItem)}
+     */
+    public static final Facet<Bitmap> THUMBNAIL = new Facet<Bitmap>() {
+        @Override
+        public Bitmap load(RunItem item) throws Exception {
+            return ThumbnailCache.getInstance().load(item);
+        }
+    };
+
+    /**
+     * The total time and distance of a run, only the stats ciphertext is decrypted
+     */
+    public static final Facet<ServerCalculations> STATS = new Facet<ServerCalculations>() {
+        @Override
+        public ServerCalculations load(RunItem item) throws Exception {
+            ServerCalculations serverCalculation = item.getServerCalculations();
+            serverCalculation.getTotalTime();
+            return serverCalculation;
+        }
+    };
+
+    /**
+     * The prediction of the model run on the server, only the gyro ciphertext is decrypted
+     */
+    public static final Facet<Double> ML_RESULT = new Facet<Double>() {
+        @Override
+        public Double load(RunItem item) throws Exception {
+            return item.getServerCalculations().getMlResult();
+        }
+    };
+
+    /**
+     * Receives the results of {@link #decryptAll(Collection, Facet, Listener)} on the main thread
+     */
+    public interface Listener<T> {
+        /**
+         * Called once for every run that was decrypted
+         */
+        void onRunDecrypted(RunItem item, T result);
+        /**
+         * Called once for every run that failed to decrypt
+         */
+        void onRunDecryptionFailed(RunItem item, Throwable t);
+
+        /**
+         * Called after every run was either decrypted or failed to decrypt
+         */
+        void onAllRunsDecrypted();
+    }
+
+    public static synchronized RunDecryptionEngine getInstance() {
+        if (sInstance == null)
+            sInstance = new RunDecryptionEngine();
+        return sInstance;
+    }
+
+    private RunDecryptionEngine() {
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, TAG + " #" + mCount.incrementAndGet());
+            }
+        });
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        mMainThreadExecutor = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                mainHandler.post(runnable);
+            }
+        };
+    }
+
+    public Executor getMainThreadExecutor() {
+        return mMainThreadExecutor;
+    }
+
+    /**
+     * Loads a facet of a run on the worker pool with the default priority
+     *
+     * @see #decrypt(RunItem, Facet, int)
+     */
+    public <T> ListenableFuture<T> decrypt(RunItem item, Facet<T> facet) {
+        return decrypt(item, facet, PRIORITY_DEFAULT);
+    }
+
+    /**
+     * Loads a facet of a run on the worker pool. If that facet of the run is already being loaded
+     * the pending result is returned instead of starting over, raised to the given priority if it
+     * hasn't started yet.
+     *
+     * @param item the run to decrypt
+     * @param facet the part of the run to decrypt
+     * @param priority one of the PRIORITY constants
+     * @return the future result of {@link Facet#load(RunItem)}
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ListenableFuture<T> decrypt(final RunItem item, final Facet<T> facet, int priority) {
+        synchronized (mInFlight) {
+            Map<RunItem, Task<?>> inFlight = mInFlight.get(facet);
+            if (inFlight == null) {
+                inFlight = new IdentityHashMap<>();
+                mInFlight.put(facet, inFlight);
+            }
+            Task<T> pending = (Task<T>) inFlight.get(item);
+            if (pending != null) {
+                // requeued, the queue only orders a task when it's added
+                if (pending.mPriority < priority && mExecutor.remove(pending)) {
+                    pending.mPriority = priority;
+                    mExecutor.execute(pending);
+                }
+                return pending.mFuture;
+            }
+            ListenableFutureTask<T> future = ListenableFutureTask.create(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return facet.load(item);
+                }
+            });
+            Task<T> task = new Task<>(future, priority, mSequence.getAndIncrement());
+            inFlight.put(item, task);
+            final Map<RunItem, Task<?>> facetInFlight = inFlight;
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mInFlight) {
+                        facetInFlight.remove(item);
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+            mExecutor.execute(task);
+            return future;
+        }
+    }
+
+    /**
+     * Cancels the loading of a facet of a run if it hasn't started yet, whoever asked for it.
+     * Once started it runs to the end, the result is kept by the run anyway.
+     */
+    public void cancel(RunItem item, Facet<?> facet) {
+        synchronized (mInFlight) {
+            Map<RunItem, Task<?>> inFlight = mInFlight.get(facet);
+            Task<?> pending = inFlight != null ? inFlight.get(item) : null;
+            if (pending != null && mExecutor.remove(pending))
+                pending.mFuture.cancel(false);
+        }
+    }
+
+    /**
+     * Loads the summary of a run on the worker pool, decrypting the run if it isn't cached
+     *
+     * @param item the run to decrypt
+     * @return the future result of {@link RunItem#loadRunSummary()}
+     */
+    public ListenableFuture<RunSummary> decrypt(RunItem item) {
+        return decrypt(item, RUN_SUMMARY);
+    }
+
+    /**
+     * Decrypts a facet of several runs in parallel, reporting each one to the listener as it
+     * completes.
+     *
+     * @param items the runs to decrypt
+     * @param facet the part of the runs to decrypt
+     * @param listener the listener notified on the main thread
+     */
+    public <T> void decryptAll(Collection<RunItem> items, Facet<T> facet, final Listener<T> listener) {
+        List<ListenableFuture<T>> futures = new ArrayList<>(items.size());
+        for (final RunItem item : items) {
+            ListenableFuture<T> future = decrypt(item, facet);
+            futures.add(future);
+            Futures.addCallback(future, new FutureCallback<T>() {
+                @Override
+                public void onSuccess(T result) {
+                    listener.onRunDecrypted(item, result);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    listener.onRunDecryptionFailed(item, t);
+                }
+            }, mMainThreadExecutor);
+        }
+        // posted after every per run callback, so this is always the last one the listener gets
+        Futures.addCallback(Futures.successfulAsList(futures), new FutureCallback<List<T>>() {
+            @Override
+            public void onSuccess(List<T> result) {
+                listener.onAllRunsDecrypted();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                listener.onAllRunsDecrypted();
+            }
+        }, mMainThreadExecutor);
+    }
+}
@@ -5,7 +5,9 @@ package com.microsoft.asurerun.model;
 import android.graphics.Bitmap;
 import android.provider.BaseColumns;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 
 /**
  * Represents an item in a Run list
@@ -25,9 +27,49 @@ public class RunItem {
         public static final String COLUMN_NAME_CIPHER_GYRO = "cipherGyro";
         public static final String COLUMN_NAME_STATS = "stats";
         public static final String COLUMN_NAME_SUMMARY = "summary";
+        public static final String COLUMN_NAME_CIPHER_TOTALS = "cipherTotals";
+        public static final String COLUMN_NAME_CHUNK_POINTS = "chunkPoints";
+        public static final String COLUMN_NAME_CIPHER_CHUNKS = "cipherChunks";
+        public static final String COLUMN_NAME_CHUNK_STATS = "chunkStats";
+        public static final String COLUMN_NAME_SYNC_STATE = "syncState";
+        public static final String COLUMN_NAME_ATTEMPTS = "attempts";
+        public static final String COLUMN_NAME_NEXT_ATTEMPT = "nextAttempt";
     }
 
+    /**
+     * The columns needed to list runs: their stats, summary, thumbnail and prediction. The
+     * coordinates and the elevation and pace deltas are only downloaded when a run is opened,
+     * see {@link #fetchMissingCiphers(String...)}.
+     */
+    public static final String[] LIST_COLUMNS = {
+            RunItemEntry.COLUMN_NAME_ID,
+            RunItemEntry.COLUMN_NAME_KEY_ID,
+            RunItemEntry.COLUMN_NAME_USER_ID,
+            RunItemEntry.COLUMN_NAME_RUN_NUMBER,
+            RunItemEntry.COLUMN_NAME_STATS,
+            RunItemEntry.COLUMN_NAME_SUMMARY,
+            RunItemEntry.COLUMN_NAME_CIPHER_THUMBNAIL,
+            RunItemEntry.COLUMN_NAME_CIPHER_GYRO,
+            RunItemEntry.COLUMN_NAME_CHUNK_POINTS,
+            RunItemEntry.COLUMN_NAME_CHUNK_STATS
+    };
+
+    /**
+     * The ciphertexts left out of {@link #LIST_COLUMNS}
+     */
+    public static final String[] DETAIL_COLUMNS = {
+            RunItemEntry.COLUMN_NAME_CIPHER_1,
+            RunItemEntry.COLUMN_NAME_CIPHER_2,
+            RunItemEntry.COLUMN_NAME_CIPHER_EP,
+            RunItemEntry.COLUMN_NAME_CIPHER_CHUNKS,
+            RunItemEntry.COLUMN_NAME_CIPHER_TOTALS
+    };
+
     private transient ServerCalculations mServerCalculation;
+    // read without locking by getLoadedRunSummary
+    private transient volatile RunSummary mRunSummary;
+    // hash of the ciphertexts the summary cache was looked up with
+    private transient String mSummaryCipherHash;
 
     /**
      * NOTE: These are fields used to temporarily show the item not yet loaded on the server
@@ -65,47 +107,73 @@ public class RunItem {
     private int mRunNumber;
 
     /**
-     * Item cartesian X&Y as base 64 ciphertext
+     * Item cartesian X&Y as a serialized ciphertext
      */
     @com.google.gson.annotations.SerializedName(RunItemEntry.COLUMN_NAME_CIPHER_1)
-    private String mCipher1;
+    private byte[] mCipher1;
 
     /**
-     * Item cartesian Z&Timestamp as base 64 ciphertext
+     * Item cartesian Z&Timestamp as a serialized ciphertext
      */
     @com.google.gson.annotations.SerializedName(RunItemEntry.COLUMN_NAME_CIPHER_2)
-    private String mCipher2;
+    private byte[] mCipher2;
 
 
     /**
-     * Item cartesian Elevation & Pace as base 64 ciphertext
+     * Item cartesian Elevation & Pace as a serialized ciphertext
      */
     @com.google.gson.annotations.SerializedName(RunItemEntry.COLUMN_NAME_CIPHER_EP)
-    private String mCipherEP;
+    private byte[] mCipherEP;
 
     /**
-     * Item cartesian Z&Timestamp as base 64 ciphertext
+     * Item cartesian Z&Timestamp as a serialized ciphertext
      */
     @com.google.gson.annotations.SerializedName(RunItemEntry.COLUMN_NAME_CIPHER_THUMBNAIL)
-    private String mCipherThumbnail;
+    private byte[] mCipherThumbnail;
 
     /**
-     * Item accelerometer and gyroscope as base 64 ciphertext
+     * Item accelerometer and gyroscope as a serialized ciphertext
      */
     @com.google.gson.annotations.SerializedName(RunItemEntry.COLUMN_NAME_CIPHER_GYRO)
-    private String mCipherGyro;
+    private byte[] mCipherGyro;
 
     /**
-     * Item stats as base 64 ciphertext
+     * Item stats as a serialized ciphertext
      */
     @com.google.gson.annotations.SerializedName(RunItemEntry.COLUMN_NAME_STATS)
-    private String mStats;
+    private byte[] mStats;
 
     /**
-     * Item summary as base 64 ciphertext
+     * Item summary as a serialized ciphertext
      */
     @com.google.gson.annotations.SerializedName(RunItemEntry.COLUMN_NAME_SUMMARY)
-    private String mSummary;
+    private byte[] mSummary;
+
+    /**
+     * The number of points of each chunk of the route, see {@link RouteChunk}
+     */
+    @com.google.gson.annotations.SerializedName(RunItemEntry.COLUMN_NAME_CHUNK_POINTS)
+    private String mChunkPoints;
+
+    /**
+     * The cartesian X&Y and Z&Timestamp ciphertexts of the route chunks past the first one, packed
+     */
+    @com.google.gson.annotations.SerializedName(RunItemEntry.COLUMN_NAME_CIPHER_CHUNKS)
+    private byte[] mCipherChunks;
+
+    /**
+     * The stats of the route chunks past the first one as serialized ciphertexts, packed
+     */
+    @com.google.gson.annotations.SerializedName(RunItemEntry.COLUMN_NAME_CHUNK_STATS)
+    private byte[] mChunkStats;
+
+    /**
+     * The RunTotals of the run as a serialized ciphertext, added to the lifetime totals once the
+     * run is uploaded. The server only stores it, so the exact same totals can be taken out of the
+     * lifetime totals when the run is deleted.
+     */
+    @com.google.gson.annotations.SerializedName(RunItemEntry.COLUMN_NAME_CIPHER_TOTALS)
+    private byte[] mCipherTotals;
 
     /**
      * RunItem constructor
@@ -123,7 +191,7 @@ public class RunItem {
      * @param id
      *            The item id
      */
-    public RunItem(int runNumber, String cipher1, String cipher2, String stats, String summary, String id, String keyId, String userId) {
+    public RunItem(int runNumber, byte[] cipher1, byte[] cipher2, byte[] stats, byte[] summary, String id, String keyId, String userId) {
         this.setRunNumber(runNumber);
         this.setCipher1(cipher1);
         this.setCipher2(cipher2);
@@ -138,16 +206,16 @@ public class RunItem {
      * Gets the variables
      */
     public int getRunNumber() { return mRunNumber; }
-    public String getCipher1() { return mCipher1; }
-    public String getCipher2() { return mCipher2; }
-    public String getSummary() { return mSummary; }
+    public byte[] getCipher1() { return mCipher1; }
+    public byte[] getCipher2() { return mCipher2; }
+    public byte[] getSummary() { return mSummary; }
     public String getUserId() { return mUserId; }
-    public String getStats() { return mStats; }
+    public byte[] getStats() { return mStats; }
     public String getKeyId() { return mKeyId; }
     public String getId() { return mId; }
-    public String getCipherThumbnail() { return  mCipherThumbnail; }
-    public String getCipherEP() { return mCipherEP; }
-    public String getCipherGyro() { return mCipherGyro; }
+    public byte[] getCipherThumbnail() { return  mCipherThumbnail; }
+    public byte[] getCipherEP() { return mCipherEP; }
+    public byte[] getCipherGyro() { return mCipherGyro; }
     public long getTotalTime(){ return mTotalTime; }
     public double getTotalDistance(){ return mTotalDistance; }
     public double getElevationGain(){ return mElevationGain; }
@@ -155,20 +223,24 @@ public class RunItem {
     public double getAvgPace() { return mAvgPace; }
     public boolean isLocalItem() { return mIsLocalItem; }
     public Bitmap getMapSnapshot() { return mMapSnapshot; }
+    public byte[] getCipherTotals() { return mCipherTotals; }
+    public String getChunkPoints() { return mChunkPoints; }
+    public byte[] getCipherChunks() { return mCipherChunks; }
+    public byte[] getChunkStats() { return mChunkStats; }
 
     /**
      * Sets the variables
      */
     public final void setRunNumber(int number) { mRunNumber = number; }
-    public final void setCipher1(String text) { mCipher1 = text; }
-    public final void setCipher2(String text) { mCipher2 = text; }
-    public final void setSummary(String text) { mSummary = text; }
+    public final void setCipher1(byte[] bytes) { mCipher1 = bytes; }
+    public final void setCipher2(byte[] bytes) { mCipher2 = bytes; }
+    public final void setSummary(byte[] bytes) { mSummary = bytes; }
     public final void setUserId(String text) { mUserId = text; }
-    public final void setStats(String text) { mStats = text; }
+    public final void setStats(byte[] bytes) { mStats = bytes; }
     public final void setKeyId(String text) { mKeyId = text; }
-    public final void setCipherThumbnail(String text) { mCipherThumbnail = text; }
-    public final void setCipherEP(String text) { mCipherEP = text; }
-    public final void setCipherGyro(String text) { mCipherGyro = text; }
+    public final void setCipherThumbnail(byte[] bytes) { mCipherThumbnail = bytes; }
+    public final void setCipherEP(byte[] bytes) { mCipherEP = bytes; }
+    public final void setCipherGyro(byte[] bytes) { mCipherGyro = bytes; }
     public final void setId(String id) { mId = id; }
     public void setTotalTime(long totalTime){ mTotalTime = totalTime; }
     public void setTotalDistance(double totalDistance){ mTotalDistance = totalDistance; }
@@ -177,6 +249,44 @@ public class RunItem {
     public void setAvgPace(double avgPace){ mAvgPace = avgPace; }
     public void setIsLocalItem(boolean isLocalItem){ mIsLocalItem = isLocalItem; }
     public void setMapSnapshot(Bitmap map){ mMapSnapshot = map; }
+    public void setCipherTotals(byte[] bytes) { mCipherTotals = bytes; }
+    public final void setChunkPoints(String text) { mChunkPoints = text; }
+    public final void setCipherChunks(byte[] bytes) { mCipherChunks = bytes; }
+    public final void setChunkStats(byte[] bytes) { mChunkStats = bytes; }
+
+    /**
+     * Gets the chunks the route of this run is split in, the first one being the run's own
+     * coordinate ciphertexts and stats. The ciphertexts of a chunk are null if they weren't
+     * downloaded, see {@link #fetchMissingCiphers(String...)}.
+     *
+     * @return the chunks in order, a single one for runs recorded before routes were split
+     * @throws IllegalArgumentException if the packed ciphertexts of the chunks are malformed
+     */
+    public List<RouteChunk> getRouteChunks() {
+        int[] chunkPoints = RouteChunk.parsePoints(mChunkPoints);
+        if (chunkPoints == null)
+            chunkPoints = new int[]{ RouteChunk.UNKNOWN_POINTS };
+        List<byte[]> ciphers = RouteChunk.unpack(mCipherChunks);
+        List<byte[]> stats = RouteChunk.unpack(mChunkStats);
+        List<RouteChunk> chunks = new ArrayList<>(chunkPoints.length);
+        chunks.add(new RouteChunk(0, chunkPoints[0], mCipher1, mCipher2, mStats));
+        for (int i = 1; i < chunkPoints.length; ++i) {
+            int cipher = 2 * (i - 1);
+            chunks.add(new RouteChunk(i, chunkPoints[i],
+                    cipher + 1 < ciphers.size() ? ciphers.get(cipher) : null,
+                    cipher + 1 < ciphers.size() ? ciphers.get(cipher + 1) : null,
+                    i - 1 < stats.size() ? stats.get(i - 1) : null));
+        }
+        return chunks;
+    }
+
+    /**
+     * @return true if the route of this run is split in more than one chunk
+     */
+    private boolean isChunked() {
+        int[] chunkPoints = RouteChunk.parsePoints(mChunkPoints);
+        return chunkPoints != null && chunkPoints.length > 1;
+    }
 
     @Override
     public boolean equals(Object o) {
@@ -190,21 +300,146 @@ public class RunItem {
         return listString;
     }
 
+    /**
+     * Gets the ServerCalculations of this RunItem without decrypting anything up front. Each of
+     * its values is decrypted the first time it is read, and values already in the persistent
+     * summary cache are never decrypted at all.
+     *
+     * @return The lazily decrypted ServerCalculations of this RunItem
+     */
+    public synchronized ServerCalculations getServerCalculations() throws Exception {
+        if (mServerCalculation == null) {
+            ServerCalculations serverCalculation = new ServerCalculations(this);
+            RunSummaryDbHelper summaryDb = ApplicationState.getRunSummaryDb();
+            if (summaryDb != null && mId != null) {
+                mSummaryCipherHash = RunSummaryDbHelper.hashCiphers(this);
+                RunSummary cached = summaryDb.get(mId, mSummaryCipherHash);
+                if (cached != null) {
+                    serverCalculation.seed(cached);
+                    mRunSummary = cached;
+                }
+            }
+            mServerCalculation = serverCalculation;
+        }
+        return mServerCalculation;
+    }
+
     /**
      * Takes the encrypted stats and summary of this RunItem and decrypts all the data. The data is
-     * then laid out to be easily retrieved.
+     * then laid out to be easily retrieved. The result is kept, and concurrent callers wait for
+     * the first one to finish instead of decrypting again.
      *
      * @return A ServerCalculations object with all the data decrypted
      */
     public ServerCalculations decryptStatsAndSummary() throws Exception {
-        if(mServerCalculation==null){
-            try {
-                mServerCalculation =  new ServerCalculations(this);
-                mServerCalculation.decrypt();
-            } catch (Exception e) {
-                throw new Exception("Run Item [RunNumber: "+getRunNumber()+" ]"+ e.getMessage());
+        fetchMissingCiphers(DETAIL_COLUMNS);
+        ServerCalculations serverCalculation = getServerCalculations();
+        try {
+            serverCalculation.decrypt();
+        } catch (Exception e) {
+            throw new Exception("Run Item [RunNumber: "+getRunNumber()+" ]"+ e.getMessage());
+        }
+        completeRunSummary(serverCalculation);
+        return serverCalculation;
+    }
+
+    /**
+     * Replaces a summary listed without the start hour of the run, now that the timestamps are
+     * decrypted
+     */
+    private synchronized void completeRunSummary(ServerCalculations serverCalculation) {
+        if (mRunSummary != null && !mRunSummary.hasStartTime()) {
+            mRunSummary = new RunSummary(serverCalculation);
+            cacheRunSummary();
+        }
+    }
+
+    /**
+     * Gets the values needed to list this RunItem. They come from the persistent summary cache
+     * when this run was decrypted before, otherwise only the ciphertexts of {@link #LIST_COLUMNS}
+     * they need are decrypted and the summary gets cached for next time. The start hour of the run
+     * is in the timestamps, which aren't listed, so it's only added once the run is opened.
+     *
+     * @return The decrypted summary of this RunItem
+     */
+    public synchronized RunSummary loadRunSummary() throws Exception {
+        if (mRunSummary == null) {
+            ServerCalculations serverCalculation = getServerCalculations();
+            if (mRunSummary == null) {
+                try {
+                    mRunSummary = new RunSummary(serverCalculation);
+                } catch (RuntimeException e) {
+                    throw new Exception("Run Item [RunNumber: "+getRunNumber()+" ]"+ e.getMessage());
+                }
+                cacheRunSummary();
             }
         }
-        return mServerCalculation;
+        return mRunSummary;
+    }
+
+    private synchronized void cacheRunSummary() {
+        RunSummaryDbHelper summaryDb = ApplicationState.getRunSummaryDb();
+        if (summaryDb != null && mSummaryCipherHash != null)
+            summaryDb.put(mId, mSummaryCipherHash, mRunSummary);
+    }
+
+    /**
+     * @return the hash of the ciphertexts this run was looked up in the summary cache with, null
+     * before {@link #getServerCalculations()} or without the cache
+     */
+    synchronized String getSummaryCipherHash() {
+        return mSummaryCipherHash;
+    }
+
+    /**
+     * @return the summary of this RunItem if it was already loaded, null otherwise. Never blocks,
+     * unlike {@link #loadRunSummary()}.
+     */
+    public RunSummary getLoadedRunSummary() {
+        return mRunSummary;
+    }
+
+    /**
+     * Downloads the given ciphertexts of this run if it was listed without them. This blocks on
+     * the server, so it must not be called from the main thread.
+     *
+     * @param columns some of {@link #DETAIL_COLUMNS}
+     */
+    public synchronized void fetchMissingCiphers(String... columns) throws Exception {
+        if (mIsLocalItem || mId == null)
+            return;
+        List<String> missing = new ArrayList<>();
+        for (String column : columns) {
+            // runs with a single chunk have no chunk ciphertexts to download
+            if (getCipher(column) == null && (!column.equals(RunItemEntry.COLUMN_NAME_CIPHER_CHUNKS) || isChunked()))
+                missing.add(column);
+        }
+        if (missing.isEmpty())
+            return;
+        List<RunItem> result = ApplicationState.getRunTable().where().field(RunItemEntry.COLUMN_NAME_ID).eq(mId)
+                .select(missing.toArray(new String[missing.size()])).execute().get();
+        if (result.isEmpty())
+            throw new Exception("Run Item [RunNumber: " + getRunNumber() + " ] is gone from the server");
+        RunItem details = result.get(0);
+        for (String column : missing) {
+            switch (column) {
+                case RunItemEntry.COLUMN_NAME_CIPHER_1: mCipher1 = details.mCipher1; break;
+                case RunItemEntry.COLUMN_NAME_CIPHER_2: mCipher2 = details.mCipher2; break;
+                case RunItemEntry.COLUMN_NAME_CIPHER_EP: mCipherEP = details.mCipherEP; break;
+                case RunItemEntry.COLUMN_NAME_CIPHER_CHUNKS: mCipherChunks = details.mCipherChunks; break;
+                case RunItemEntry.COLUMN_NAME_CIPHER_TOTALS: mCipherTotals = details.mCipherTotals; break;
+            }
+        }
+    }
+
+    private byte[] getCipher(String column) {
+        switch (column) {
+            case RunItemEntry.COLUMN_NAME_CIPHER_1: return mCipher1;
+            case RunItemEntry.COLUMN_NAME_CIPHER_2: return mCipher2;
+            case RunItemEntry.COLUMN_NAME_CIPHER_EP: return mCipherEP;
+            case RunItemEntry.COLUMN_NAME_CIPHER_CHUNKS: return mCipherChunks;
+            case RunItemEntry.COLUMN_NAME_CIPHER_TOTALS: return mCipherTotals;
+            default: throw new IllegalArgumentException("Not a detail column: " + column);
+        }
     }
-}
\ No newline at end of file
+}
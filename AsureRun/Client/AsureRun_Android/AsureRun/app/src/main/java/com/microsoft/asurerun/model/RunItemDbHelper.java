@@ -5,129 +5,665 @@ package com.microsoft.asurerun.model;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Base64;
 import android.util.Log;
 
 import com.microsoft.asurerun.model.RunItem.RunItemEntry;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The runs that weren't sent to the server yet, or whose totals weren't added to the
+ * {@link LifetimeSummary} yet, and the totals of deleted runs still to be taken out of it. The
+ * table only holds the metadata of the runs and the hashes of their ciphertexts, the ciphertexts
+ * themselves live in a {@link CipherStore}.
+ */
 public class RunItemDbHelper extends SQLiteOpenHelper {
     private static final String TAG = "RunItemDbHelper";
 
+    /**
+     * The run still has to be sent to the server
+     */
+    public static final int SYNC_STATE_UNSENT = 0;
+    /**
+     * The run is on the server, its totals still have to be added to the lifetime totals
+     */
+    public static final int SYNC_STATE_UPLOADED = 1;
+    /**
+     * The run was deleted from the server, its negated totals still have to be added to the
+     * lifetime totals. The row is keyed by {@link #getRemovalRunNumber(int)} and only holds
+     * the negated totals.
+     */
+    public static final int SYNC_STATE_REMOVED = 2;
+
     private static final String SQL_CREATE_ENTRIES =
             "CREATE TABLE " + RunItemEntry.TABLE_NAME + " (" +
                     RunItemEntry._ID + " INTEGER PRIMARY KEY, " +
                     RunItemEntry.COLUMN_NAME_RUN_NUMBER + " INTEGER, " +
-                        RunItemEntry.COLUMN_NAME_CIPHER_1 + " MEDIUMTEXT, " +
-                    RunItemEntry.COLUMN_NAME_CIPHER_2 + " MEDIUMTEXT, " +
-                    RunItemEntry.COLUMN_NAME_CIPHER_EP + " MEDIUMTEXT, " +
-                    RunItemEntry.COLUMN_NAME_CIPHER_THUMBNAIL + " MEDIUMTEXT, " +
-                    RunItemEntry.COLUMN_NAME_STATS + " MEDIUMTEXT, " +
-                    RunItemEntry.COLUMN_NAME_SUMMARY + " MEDIUMTEXT)";
+                    RunItemEntry.COLUMN_NAME_KEY_ID + " TEXT, " +
+                    RunItemEntry.COLUMN_NAME_SYNC_STATE + " INTEGER DEFAULT " + SYNC_STATE_UNSENT + ", " +
+                    RunItemEntry.COLUMN_NAME_ATTEMPTS + " INTEGER DEFAULT 0, " +
+                    RunItemEntry.COLUMN_NAME_NEXT_ATTEMPT + " INTEGER DEFAULT 0, " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_1 + " TEXT, " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_2 + " TEXT, " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_EP + " TEXT, " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_THUMBNAIL + " TEXT, " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_GYRO + " TEXT, " +
+                    RunItemEntry.COLUMN_NAME_STATS + " TEXT, " +
+                    RunItemEntry.COLUMN_NAME_SUMMARY + " TEXT, " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_TOTALS + " TEXT, " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_CHUNKS + " TEXT, " +
+                    RunItemEntry.COLUMN_NAME_CHUNK_POINTS + " TEXT)";
+
+    private static final String SQL_INSERT_ENTRY =
+            "INSERT INTO " + RunItemEntry.TABLE_NAME + " (" +
+                    RunItemEntry.COLUMN_NAME_RUN_NUMBER + ", " +
+                    RunItemEntry.COLUMN_NAME_KEY_ID + ", " +
+                    RunItemEntry.COLUMN_NAME_SYNC_STATE + ", " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_1 + ", " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_2 + ", " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_EP + ", " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_THUMBNAIL + ", " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_GYRO + ", " +
+                    RunItemEntry.COLUMN_NAME_STATS + ", " +
+                    RunItemEntry.COLUMN_NAME_SUMMARY + ", " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_TOTALS + ", " +
+                    RunItemEntry.COLUMN_NAME_CIPHER_CHUNKS + ", " +
+                    RunItemEntry.COLUMN_NAME_CHUNK_POINTS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // Version 3 had no upload attempts
+    private static final String[] SQL_UPGRADE_3_TO_4 = {
+            "ALTER TABLE " + RunItemEntry.TABLE_NAME + " ADD COLUMN " + RunItemEntry.COLUMN_NAME_ATTEMPTS + " INTEGER DEFAULT 0",
+            "ALTER TABLE " + RunItemEntry.TABLE_NAME + " ADD COLUMN " + RunItemEntry.COLUMN_NAME_NEXT_ATTEMPT + " INTEGER DEFAULT 0"
+    };
+
+    // Version 4 had no totals, the runs it holds are added up by seeding the lifetime totals
+    private static final String SQL_UPGRADE_4_TO_5 =
+            "ALTER TABLE " + RunItemEntry.TABLE_NAME + " ADD COLUMN " + RunItemEntry.COLUMN_NAME_CIPHER_TOTALS + " TEXT";
+
+    // Version 5 had no route chunks, the routes it holds fit in a single one
+    private static final String[] SQL_UPGRADE_5_TO_6 = {
+            "ALTER TABLE " + RunItemEntry.TABLE_NAME + " ADD COLUMN " + RunItemEntry.COLUMN_NAME_CIPHER_CHUNKS + " TEXT",
+            "ALTER TABLE " + RunItemEntry.TABLE_NAME + " ADD COLUMN " + RunItemEntry.COLUMN_NAME_CHUNK_POINTS + " TEXT"
+    };
 
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + RunItemEntry.TABLE_NAME;
 
+    // the columns holding the hash of a ciphertext, in the order they're bound on insert
+    private static final String[] CIPHER_COLUMNS = {
+            RunItemEntry.COLUMN_NAME_CIPHER_1,
+            RunItemEntry.COLUMN_NAME_CIPHER_2,
+            RunItemEntry.COLUMN_NAME_CIPHER_EP,
+            RunItemEntry.COLUMN_NAME_CIPHER_THUMBNAIL,
+            RunItemEntry.COLUMN_NAME_CIPHER_GYRO,
+            RunItemEntry.COLUMN_NAME_STATS,
+            RunItemEntry.COLUMN_NAME_SUMMARY,
+            RunItemEntry.COLUMN_NAME_CIPHER_TOTALS,
+            RunItemEntry.COLUMN_NAME_CIPHER_CHUNKS
+    };
+
+    // Versions 1 and 2 stored the ciphertexts themselves in the table, version 1 as Base64 text
+    // and without the gyro column
+    private static final String LEGACY_TABLE_NAME = RunItemEntry.TABLE_NAME + "_legacy";
+    private static final String[] VERSION_2_CIPHER_COLUMNS = {
+            RunItemEntry.COLUMN_NAME_CIPHER_1,
+            RunItemEntry.COLUMN_NAME_CIPHER_2,
+            RunItemEntry.COLUMN_NAME_CIPHER_EP,
+            RunItemEntry.COLUMN_NAME_CIPHER_THUMBNAIL,
+            RunItemEntry.COLUMN_NAME_CIPHER_GYRO,
+            RunItemEntry.COLUMN_NAME_STATS,
+            RunItemEntry.COLUMN_NAME_SUMMARY
+    };
+    private static final String[] VERSION_1_CIPHER_COLUMNS = {
+            RunItemEntry.COLUMN_NAME_CIPHER_1,
+            RunItemEntry.COLUMN_NAME_CIPHER_2,
+            RunItemEntry.COLUMN_NAME_CIPHER_EP,
+            RunItemEntry.COLUMN_NAME_CIPHER_THUMBNAIL,
+            RunItemEntry.COLUMN_NAME_STATS,
+            RunItemEntry.COLUMN_NAME_SUMMARY
+    };
+
+    // the number of rows iterateRunItems reads at a time
+    private static final int PAGE_SIZE = 16;
+
     // If you change the database schema, you must increment the database version.
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 6;
     public static final String DATABASE_NAME = "RunItem.db";
 
+    private final CipherStore mCipherStore;
+
     public RunItemDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mCipherStore = new CipherStore(context);
     }
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
     }
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
+        // Runs that haven't been sent yet only live here, so keep them when the ciphertexts
+        // move out to the cipher store, the table is then created with the current schema
+        if ((oldVersion == 1 || oldVersion == 2) && newVersion == DATABASE_VERSION) {
+            db.execSQL("ALTER TABLE " + RunItemEntry.TABLE_NAME + " RENAME TO " + LEGACY_TABLE_NAME);
+            onCreate(db);
+            migrateToCipherStore(db);
+            return;
+        }
+        if (oldVersion >= 3 && oldVersion <= 5 && newVersion == DATABASE_VERSION) {
+            if (oldVersion == 3) {
+                for (String sql : SQL_UPGRADE_3_TO_4)
+                    db.execSQL(sql);
+            }
+            if (oldVersion <= 4)
+                db.execSQL(SQL_UPGRADE_4_TO_5);
+            for (String sql : SQL_UPGRADE_5_TO_6)
+                db.execSQL(sql);
+            return;
+        }
+        // Otherwise this database is only a cache for online data, so its upgrade policy is
         // to simply to discard the data and start over
+        resetTable(db);
+    }
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        resetTable(db);
+    }
+    public void onOpen(SQLiteDatabase db) {
+        // the legacy rows whose ciphertexts couldn't be stored during the upgrade
+        if (!db.isReadOnly() && hasLegacyTable(db))
+            migrateToCipherStore(db);
+    }
+
+    private void resetTable(SQLiteDatabase db) {
         db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL("DROP TABLE IF EXISTS " + LEGACY_TABLE_NAME);
         onCreate(db);
+        mCipherStore.clear();
     }
-    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+
+    /**
+     * Moves the rows of the renamed version 1 or 2 table over to the current schema, storing every
+     * ciphertext in the cipher store. Each cipher is read on its own since the legacy rows are
+     * too large to be read in one go. A run whose ciphertexts can't be stored, with a full disk
+     * say, is left in the legacy table and moved on a later open, the others are usable meanwhile.
+     */
+    private void migrateToCipherStore(SQLiteDatabase db) {
+        Cursor probe = db.query(LEGACY_TABLE_NAME, null, null, null, null, null, null, "0");
+        // version 1 had no gyro column and held the ciphertexts as Base64 text
+        boolean base64 = probe.getColumnIndex(RunItemEntry.COLUMN_NAME_CIPHER_GYRO) == -1;
+        probe.close();
+        String[] columns = base64 ? VERSION_1_CIPHER_COLUMNS : VERSION_2_CIPHER_COLUMNS;
+        // the ids are read up front, the migrated rows are deleted along the way
+        List<Long> ids = new ArrayList<>();
+        Cursor rows = db.query(LEGACY_TABLE_NAME, new String[]{ RunItemEntry._ID }, null, null, null, null, null);
+        while (rows.moveToNext())
+            ids.add(rows.getLong(0));
+        rows.close();
+        int kept = 0;
+        db.beginTransaction();
+        try {
+            for (long id : ids) {
+                String[] rowId = { String.valueOf(id) };
+                if (migrateLegacyRow(db, rowId, columns, base64))
+                    db.delete(LEGACY_TABLE_NAME, RunItemEntry._ID + " = ?", rowId);
+                else
+                    ++kept;
+            }
+            if (kept == 0)
+                db.execSQL("DROP TABLE " + LEGACY_TABLE_NAME);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
-    public void insert(RunItem runItem) {
+    /**
+     * Inserts a legacy row into the table once its ciphertexts are in the cipher store
+     *
+     * @return false if a ciphertext couldn't be stored, then nothing is inserted
+     */
+    private boolean migrateLegacyRow(SQLiteDatabase db, String[] rowId, String[] columns, boolean base64) {
+        Cursor row = db.query(LEGACY_TABLE_NAME, new String[]{ RunItemEntry.COLUMN_NAME_RUN_NUMBER }, RunItemEntry._ID + " = ?", rowId, null, null, null);
+        int runNumber = row.moveToFirst() ? row.getInt(0) : 0;
+        row.close();
         ContentValues values = new ContentValues();
+        values.put(RunItemEntry.COLUMN_NAME_RUN_NUMBER, runNumber);
+        Set<String> written = new HashSet<>();
+        for (String column : columns) {
+            Cursor cipher = db.query(LEGACY_TABLE_NAME, new String[]{ column }, RunItemEntry._ID + " = ?", rowId, null, null, null);
+            byte[] bytes = null;
+            if (cipher.moveToFirst() && !cipher.isNull(0)) {
+                try {
+                    bytes = base64 ? Base64.decode(cipher.getString(0), Base64.DEFAULT) : cipher.getBlob(0);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Dropping bad Base64 " + column + " of local run " + runNumber);
+                }
+            }
+            cipher.close();
+            try {
+                String hash = mCipherStore.put(bytes);
+                if (hash != null)
+                    written.add(hash);
+                values.put(column, hash);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't store the " + column + " of local run " + runNumber + ", keeping it for the next start", e);
+                deleteUnreferenced(db, written);
+                return false;
+            }
+        }
+        db.insert(RunItemEntry.TABLE_NAME, null, values);
+        return true;
+    }
 
-        values.put(RunItemEntry.COLUMN_NAME_RUN_NUMBER, runItem.getRunNumber());
+    private static boolean hasLegacyTable(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, "sqlite_master", "type = 'table' AND name = ?",
+                new String[]{ LEGACY_TABLE_NAME }) > 0;
+    }
 
-        insertStringHelper(values, RunItemEntry.COLUMN_NAME_CIPHER_1, runItem.getCipher1());
-        insertStringHelper(values, RunItemEntry.COLUMN_NAME_CIPHER_2, runItem.getCipher2());
-        insertStringHelper(values, RunItemEntry.COLUMN_NAME_CIPHER_EP, runItem.getCipherEP());
-        insertStringHelper(values, RunItemEntry.COLUMN_NAME_CIPHER_THUMBNAIL, runItem.getCipherThumbnail());
-        insertStringHelper(values, RunItemEntry.COLUMN_NAME_STATS, runItem.getStats());
-        insertStringHelper(values, RunItemEntry.COLUMN_NAME_SUMMARY, runItem.getSummary());
+    public void insert(RunItem runItem) throws IOException {
+        insertAll(Collections.singletonList(runItem));
+    }
 
-        getWritableDatabase().insert(RunItemEntry.TABLE_NAME, null, values);
+    /**
+     * @return the run number the totals removal of a run is queued with, negative so that it
+     * never collides with the row of the run itself, which may still be waiting for its totals
+     * to be added. Given the run number of a removal it returns the one of the run.
+     */
+    public static int getRemovalRunNumber(int runNumber) {
+        return -1 - runNumber;
     }
 
-    private void insertStringHelper(ContentValues values, String key, String value) {
+    /**
+     * Queues the negated totals of a run deleted from the server, to be added to the lifetime
+     * totals the same way the totals of an uploaded run are
+     *
+     * @throws IOException if the ciphertext couldn't be stored, then nothing is queued
+     */
+    public void queueTotalsRemoval(int runNumber, String keyId, byte[] negatedTotals) throws IOException {
+        RunItem removal = new RunItem();
+        removal.setRunNumber(getRemovalRunNumber(runNumber));
+        removal.setKeyId(keyId);
+        removal.setCipherTotals(negatedTotals);
+        insertAll(Collections.singletonList(removal), SYNC_STATE_REMOVED);
+    }
+
+    /**
+     * Inserts all the run items in a single transaction with one compiled statement, so the
+     * journal is only synced once whatever the number of items. The ciphertexts are written to
+     * the cipher store first, a row never references a ciphertext that isn't there.
+     *
+     * @throws IOException if a ciphertext couldn't be stored, then none of the items is inserted
+     * and the ciphertexts written for them are deleted again
+     */
+    public void insertAll(Collection<RunItem> runItems) throws IOException {
+        insertAll(runItems, SYNC_STATE_UNSENT);
+    }
+
+    private void insertAll(Collection<RunItem> runItems, int syncState) throws IOException {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement statement = db.compileStatement(SQL_INSERT_ENTRY);
+        // the ciphertexts written for these items, deleted again if they aren't inserted
+        Set<String> written = new HashSet<>();
+        boolean committed = false;
+        try {
+            db.beginTransaction();
+            try {
+                for (RunItem runItem : runItems) {
+                    statement.clearBindings();
+                    statement.bindLong(1, runItem.getRunNumber());
+                    bindStringHelper(statement, 2, runItem.getKeyId());
+                    statement.bindLong(3, syncState);
+                    bindCipherHelper(statement, 4, runItem.getCipher1(), written);
+                    bindCipherHelper(statement, 5, runItem.getCipher2(), written);
+                    bindCipherHelper(statement, 6, runItem.getCipherEP(), written);
+                    bindCipherHelper(statement, 7, runItem.getCipherThumbnail(), written);
+                    bindCipherHelper(statement, 8, runItem.getCipherGyro(), written);
+                    bindCipherHelper(statement, 9, runItem.getStats(), written);
+                    bindCipherHelper(statement, 10, runItem.getSummary(), written);
+                    bindCipherHelper(statement, 11, runItem.getCipherTotals(), written);
+                    bindCipherHelper(statement, 12, runItem.getCipherChunks(), written);
+                    bindStringHelper(statement, 13, runItem.getChunkPoints());
+                    statement.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            committed = true;
+        } finally {
+            statement.close();
+            if (!committed)
+                deleteUnreferenced(db, written);
+        }
+    }
+
+    private void bindCipherHelper(SQLiteStatement statement, int index, byte[] cipher, Set<String> written) throws IOException {
+        String hash = mCipherStore.put(cipher);
+        if (hash != null)
+            written.add(hash);
+        bindStringHelper(statement, index, hash);
+    }
+
+    private void bindStringHelper(SQLiteStatement statement, int index, String value) {
         if(value != null)
-            values.put(key, value);
+            statement.bindString(index, value);
         else
-            values.putNull(key);
+            statement.bindNull(index);
     }
 
     public void deleteAllRunItems() {
-        onUpgrade(getWritableDatabase(), 1, 1);
+        resetTable(getWritableDatabase());
     }
 
     public void deleteRunItem(RunItem runItem) {
+        deleteRunItem(runItem.getRunNumber());
+    }
+
+    public void deleteRunItem(int runNumber) {
+        SQLiteDatabase db = getWritableDatabase();
         // Define 'where' part of query.
-        String selection = RunItemEntry.COLUMN_NAME_RUN_NUMBER + " LIKE ?";
+        String selection = RunItemEntry.COLUMN_NAME_RUN_NUMBER + " = ?";
         // Specify arguments in placeholder order.
-        String[] selectionArgs = { String.valueOf(runItem.getRunNumber()) };
+        String[] selectionArgs = { String.valueOf(runNumber) };
+        Set<String> hashes = new HashSet<>();
+        Cursor cursor = db.query(RunItemEntry.TABLE_NAME, CIPHER_COLUMNS, selection, selectionArgs, null, null, null);
+        while (cursor.moveToNext()) {
+            for (int i = 0; i < CIPHER_COLUMNS.length; ++i) {
+                if (!cursor.isNull(i))
+                    hashes.add(cursor.getString(i));
+            }
+        }
+        cursor.close();
         // Issue SQL statement.
-        getWritableDatabase().delete(RunItemEntry.TABLE_NAME, selection, selectionArgs);
+        db.delete(RunItemEntry.TABLE_NAME, selection, selectionArgs);
+        deleteUnreferenced(db, hashes);
     }
 
-    public RunItem[] getRunItems() {
-        // Need to do all these split up projections because moveToNext always fails when there's too many columns, probably due to each cipher being rather large
-        String[] projection = {
-            RunItemEntry.COLUMN_NAME_RUN_NUMBER,
-            RunItemEntry.COLUMN_NAME_CIPHER_1,
-            RunItemEntry.COLUMN_NAME_CIPHER_2
-        };
-        Cursor cursor = getReadableDatabase().query(RunItemEntry.TABLE_NAME, projection, null, null, null, null, RunItemEntry.COLUMN_NAME_RUN_NUMBER + " DESC");
-        RunItem[] runItems = new RunItem[cursor.getCount()];
-        for(int i = 0; i < runItems.length; ++i)
-            runItems[i] = new RunItem();
-        while(cursor.moveToNext()) {
-            RunItem runItem = runItems[cursor.getPosition()];
-            runItem.setRunNumber(cursor.getInt(cursor.getColumnIndex(RunItemEntry.COLUMN_NAME_RUN_NUMBER)));
-            runItem.setCipher1(cursor.getString(cursor.getColumnIndex(RunItemEntry.COLUMN_NAME_CIPHER_1)));
-            runItem.setCipher2(cursor.getString(cursor.getColumnIndex(RunItemEntry.COLUMN_NAME_CIPHER_2)));
+    /**
+     * Deletes the ciphertexts no row references, in a transaction so that no insert can start
+     * referencing one of them in between
+     */
+    private void deleteUnreferenced(SQLiteDatabase db, Collection<String> hashes) {
+        if (hashes.isEmpty())
+            return;
+        db.beginTransaction();
+        try {
+            for (String hash : hashes) {
+                if (!isReferenced(db, hash))
+                    mCipherStore.delete(hash);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        cursor.close();
+    }
 
-        String[] projection2 = {
-            RunItemEntry.COLUMN_NAME_RUN_NUMBER,
-            RunItemEntry.COLUMN_NAME_CIPHER_EP,
-            RunItemEntry.COLUMN_NAME_CIPHER_THUMBNAIL
-        };
-        cursor = getReadableDatabase().query(RunItemEntry.TABLE_NAME, projection2, null, null, null, null, RunItemEntry.COLUMN_NAME_RUN_NUMBER + " DESC");
-        while(cursor.moveToNext()) {
-            RunItem runItem = runItems[cursor.getPosition()];
-            runItem.setCipherEP(cursor.getString(cursor.getColumnIndex(RunItemEntry.COLUMN_NAME_CIPHER_EP)));
-            runItem.setCipherThumbnail(cursor.getString(cursor.getColumnIndex(RunItemEntry.COLUMN_NAME_CIPHER_THUMBNAIL)));
+    private static boolean isReferenced(SQLiteDatabase db, String hash) {
+        StringBuilder selection = new StringBuilder();
+        String[] selectionArgs = new String[CIPHER_COLUMNS.length];
+        for (int i = 0; i < CIPHER_COLUMNS.length; ++i) {
+            if (i > 0)
+                selection.append(" OR ");
+            selection.append(CIPHER_COLUMNS[i]).append(" = ?");
+            selectionArgs[i] = hash;
         }
+        return DatabaseUtils.queryNumEntries(db, RunItemEntry.TABLE_NAME, selection.toString(), selectionArgs) > 0;
+    }
+
+    /**
+     * @return the number of runs still to be sent to the server, without touching their ciphertexts
+     */
+    public long countUnsentRunItems() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), RunItemEntry.TABLE_NAME,
+                RunItemEntry.COLUMN_NAME_SYNC_STATE + " = ?", new String[]{ String.valueOf(SYNC_STATE_UNSENT) });
+    }
+
+    /**
+     * @return the run numbers of the runs still to be sent to the server, without touching their ciphertexts
+     */
+    public List<Integer> getUnsentRunNumbers() {
+        String[] projection = { RunItemEntry.COLUMN_NAME_RUN_NUMBER };
+        Cursor cursor = getReadableDatabase().query(RunItemEntry.TABLE_NAME, projection,
+                RunItemEntry.COLUMN_NAME_SYNC_STATE + " = ?", new String[]{ String.valueOf(SYNC_STATE_UNSENT) },
+                null, null, RunItemEntry._ID);
+        List<Integer> runNumbers = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext())
+            runNumbers.add(cursor.getInt(0));
         cursor.close();
+        return runNumbers;
+    }
 
-        String[] projection3 = {
-            RunItemEntry.COLUMN_NAME_RUN_NUMBER,
-            RunItemEntry.COLUMN_NAME_STATS,
-            RunItemEntry.COLUMN_NAME_SUMMARY
+    public RunItem[] getRunItems() {
+        List<RunItem> runItems = new ArrayList<>();
+        for (RunItem runItem : iterateRunItems())
+            runItems.add(runItem);
+        Collections.sort(runItems, new Comparator<RunItem>() {
+            @Override
+            public int compare(RunItem lhs, RunItem rhs) {
+                return Integer.compare(rhs.getRunNumber(), lhs.getRunNumber());
+            }
+        });
+        return runItems.toArray(new RunItem[runItems.size()]);
+    }
+
+    /**
+     * Streams the run items in insertion order, {@link #PAGE_SIZE} rows at a time, so only the
+     * ciphertexts of a page are ever held in memory. Rows inserted while iterating after the
+     * current page are returned as well. Queued totals removals aren't runs and are left out.
+     */
+    public Iterable<RunItem> iterateRunItems() {
+        return new Iterable<RunItem>() {
+            @Override
+            public Iterator<RunItem> iterator() {
+                return new RunItemPageIterator();
+            }
         };
-        cursor = getReadableDatabase().query(RunItemEntry.TABLE_NAME, projection3, null, null, null, null, RunItemEntry.COLUMN_NAME_RUN_NUMBER + " DESC");
-        while(cursor.moveToNext()) {
-            RunItem runItem = runItems[cursor.getPosition()];
-            runItem.setStats(cursor.getString(cursor.getColumnIndex(RunItemEntry.COLUMN_NAME_STATS)));
-            runItem.setSummary(cursor.getString(cursor.getColumnIndex(RunItemEntry.COLUMN_NAME_SUMMARY)));
+    }
+
+    /**
+     * Reads the rows with an _ID past the given one, along with their ciphertexts
+     *
+     * @return the last _ID read, or -1 once there are no more rows
+     */
+    private long readPage(long afterId, List<RunItem> page) {
+        String[] selectionArgs = { String.valueOf(afterId), String.valueOf(SYNC_STATE_REMOVED) };
+        return queryRunItems(RunItemEntry._ID + " > ? AND " + RunItemEntry.COLUMN_NAME_SYNC_STATE + " != ?",
+                selectionArgs, PAGE_SIZE, page);
+    }
+
+    /**
+     * Reads the rows matching the selection in _ID order, along with their ciphertexts. A row
+     * whose ciphertexts can't be read is skipped.
+     *
+     * @return the last _ID read, or -1 if there was no row
+     */
+    private long queryRunItems(String selection, String[] selectionArgs, int limit, List<RunItem> runItems) {
+        String[] projection = new String[CIPHER_COLUMNS.length + 4];
+        projection[0] = RunItemEntry._ID;
+        projection[1] = RunItemEntry.COLUMN_NAME_RUN_NUMBER;
+        projection[2] = RunItemEntry.COLUMN_NAME_KEY_ID;
+        System.arraycopy(CIPHER_COLUMNS, 0, projection, 3, CIPHER_COLUMNS.length);
+        projection[CIPHER_COLUMNS.length + 3] = RunItemEntry.COLUMN_NAME_CHUNK_POINTS;
+        Cursor cursor = getReadableDatabase().query(RunItemEntry.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, RunItemEntry._ID, String.valueOf(limit));
+        long lastId = -1;
+        while (cursor.moveToNext()) {
+            lastId = cursor.getLong(0);
+            RunItem runItem = new RunItem();
+            runItem.setRunNumber(cursor.getInt(1));
+            runItem.setKeyId(cursor.getString(2));
+            runItem.setChunkPoints(cursor.getString(12));
+            try {
+                runItem.setCipher1(mCipherStore.get(cursor.getString(3)));
+                runItem.setCipher2(mCipherStore.get(cursor.getString(4)));
+                runItem.setCipherEP(mCipherStore.get(cursor.getString(5)));
+                runItem.setCipherThumbnail(mCipherStore.get(cursor.getString(6)));
+                runItem.setCipherGyro(mCipherStore.get(cursor.getString(7)));
+                runItem.setStats(mCipherStore.get(cursor.getString(8)));
+                runItem.setSummary(mCipherStore.get(cursor.getString(9)));
+                runItem.setCipherTotals(mCipherStore.get(cursor.getString(10)));
+                runItem.setCipherChunks(mCipherStore.get(cursor.getString(11)));
+                runItems.add(runItem);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't read the ciphertexts of local run " + runItem.getRunNumber(), e);
+            }
         }
         cursor.close();
+        return lastId;
+    }
 
+    /**
+     * @param now the current time in milliseconds
+     * @param syncState SYNC_STATE_UNSENT, SYNC_STATE_UPLOADED or SYNC_STATE_REMOVED
+     * @param excludedRunNumbers runs to leave out, the ones being uploaded
+     * @return at most limit runs in the sync state whose next attempt is due, oldest first
+     */
+    public List<RunItem> getDueRunItems(long now, int syncState, Collection<Integer> excludedRunNumbers, int limit) {
+        StringBuilder selection = new StringBuilder()
+                .append(RunItemEntry.COLUMN_NAME_SYNC_STATE).append(" = ").append(syncState)
+                .append(" AND ").append(RunItemEntry.COLUMN_NAME_NEXT_ATTEMPT).append(" <= ").append(now);
+        if (!excludedRunNumbers.isEmpty())
+            selection.append(" AND ").append(RunItemEntry.COLUMN_NAME_RUN_NUMBER)
+                    .append(" NOT IN (").append(TextUtils.join(", ", excludedRunNumbers)).append(")");
+        List<RunItem> runItems = new ArrayList<>(limit);
+        queryRunItems(selection.toString(), null, limit, runItems);
         return runItems;
     }
+
+    /**
+     * Reads the totals of a key still to be added to the lifetime totals, without touching the
+     * other ciphertexts. Runs that weren't sent yet count, their totals are added once they are.
+     *
+     * @param runNumbers receives the run numbers of the runs whose totals are still to be added
+     * @param removals receives the negated totals still to be added by the run number of the
+     *                 deleted run they belong to
+     * @throws IOException if the negated totals of a removal couldn't be read
+     */
+    public void getQueuedTotals(String keyId, Set<Integer> runNumbers, Map<Integer, byte[]> removals) throws IOException {
+        String[] projection = { RunItemEntry.COLUMN_NAME_RUN_NUMBER, RunItemEntry.COLUMN_NAME_SYNC_STATE, RunItemEntry.COLUMN_NAME_CIPHER_TOTALS };
+        // unsent runs may not have their key set yet
+        String selection = RunItemEntry.COLUMN_NAME_CIPHER_TOTALS + " IS NOT NULL AND (" +
+                RunItemEntry.COLUMN_NAME_KEY_ID + " = ? OR " + RunItemEntry.COLUMN_NAME_KEY_ID + " IS NULL)";
+        Cursor cursor = getReadableDatabase().query(RunItemEntry.TABLE_NAME, projection, selection, new String[]{ keyId },
+                null, null, RunItemEntry._ID);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(1) == SYNC_STATE_REMOVED)
+                    removals.put(getRemovalRunNumber(cursor.getInt(0)), mCipherStore.get(cursor.getString(2)));
+                else
+                    runNumbers.add(cursor.getInt(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the time of the earliest attempt that isn't due yet, whatever the sync state, or 0
+     * if there is none
+     */
+    public long getNextAttemptTime(long now) {
+        return DatabaseUtils.longForQuery(getReadableDatabase(),
+                "SELECT IFNULL(MIN(" + RunItemEntry.COLUMN_NAME_NEXT_ATTEMPT + "), 0) FROM " + RunItemEntry.TABLE_NAME +
+                        " WHERE " + RunItemEntry.COLUMN_NAME_NEXT_ATTEMPT + " > ?", new String[]{ String.valueOf(now) });
+    }
+
+    /**
+     * Records that the run reached the server. A run with totals is kept until they're added to
+     * the lifetime totals, any other run is deleted.
+     */
+    public void markUploaded(int runNumber) {
+        SQLiteDatabase db = getWritableDatabase();
+        String selection = RunItemEntry.COLUMN_NAME_RUN_NUMBER + " = ? AND " + RunItemEntry.COLUMN_NAME_CIPHER_TOTALS + " IS NOT NULL";
+        String[] selectionArgs = { String.valueOf(runNumber) };
+        ContentValues values = new ContentValues();
+        values.put(RunItemEntry.COLUMN_NAME_SYNC_STATE, SYNC_STATE_UPLOADED);
+        values.put(RunItemEntry.COLUMN_NAME_ATTEMPTS, 0);
+        values.put(RunItemEntry.COLUMN_NAME_NEXT_ATTEMPT, 0);
+        if (db.update(RunItemEntry.TABLE_NAME, values, selection, selectionArgs) == 0)
+            deleteRunItem(runNumber);
+    }
+
+    /**
+     * Counts a failed upload of the run, or of its totals
+     *
+     * @param backoff the delay before the next attempt for the number of attempts so far
+     */
+    public void recordFailedAttempt(int runNumber, long now, Backoff backoff) {
+        SQLiteDatabase db = getWritableDatabase();
+        String selection = RunItemEntry.COLUMN_NAME_RUN_NUMBER + " = ?";
+        String[] selectionArgs = { String.valueOf(runNumber) };
+        db.beginTransaction();
+        try {
+            int attempts = (int) DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + RunItemEntry.COLUMN_NAME_ATTEMPTS + "), 0) FROM "
+                    + RunItemEntry.TABLE_NAME + " WHERE " + selection, selectionArgs) + 1;
+            ContentValues values = new ContentValues();
+            values.put(RunItemEntry.COLUMN_NAME_ATTEMPTS, attempts);
+            values.put(RunItemEntry.COLUMN_NAME_NEXT_ATTEMPT, now + backoff.getDelay(attempts));
+            db.update(RunItemEntry.TABLE_NAME, values, selection, selectionArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * The delay before retrying an upload
+     */
+    public interface Backoff {
+        /**
+         * @param attempts the number of failed attempts so far, at least 1
+         * @return the delay in milliseconds
+         */
+        long getDelay(int attempts);
+    }
+
+    /**
+     * Iterates over the rows a page at a time, reading the next page once the current one is used up
+     */
+    private class RunItemPageIterator implements Iterator<RunItem> {
+        private final List<RunItem> mPage = new ArrayList<>(PAGE_SIZE);
+        private int mIndex;
+        private long mLastId = -1;
+        private boolean mDone;
+
+        @Override
+        public boolean hasNext() {
+            while (mIndex == mPage.size() && !mDone) {
+                mPage.clear();
+                mIndex = 0;
+                long lastId = readPage(mLastId, mPage);
+                mDone = lastId == -1;
+                if (!mDone)
+                    mLastId = lastId;
+            }
+            return mIndex < mPage.size();
+        }
+
+        @Override
+        public RunItem next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return mPage.get(mIndex++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -0,0 +1,147 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.microsoft.asurerun.model.RunItem.RunItemEntry;
+import com.microsoft.windowsazure.mobileservices.MobileServiceList;
+import com.microsoft.windowsazure.mobileservices.table.query.QueryOrder;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Pages the older runs of the history in from the server. Pages are keyed on the run number,
+ * each one holding the runs right below the oldest run already listed, so runs coming in at the
+ * top of the list never shift a page, and a page costs the same however deep in the history.
+ *
+ * The next page is fetched ahead of time, and its runs are decrypted as soon as they arrive, so
+ * a page is usually ready by the time the list scrolls down to it. The page size starts small and
+ * doubles, up to {@link #MAX_PAGE_SIZE}, every time the list had to wait for a page.
+ *
+ * Meant to be used from the main thread, where the callbacks are called as well.
+ */
+public class RunItemPager {
+    private static final String TAG = "RunItemPager";
+    private static final int MIN_PAGE_SIZE = 5;
+    private static final int MAX_PAGE_SIZE = 40;
+
+    private final Executor mMainThreadExecutor;
+    private int mPageSize = MIN_PAGE_SIZE;
+    // the page being fetched, or fetched but not handed out yet, and the run it starts below
+    private ListenableFuture<MobileServiceList<RunItem>> mPrefetch;
+    private int mPrefetchBelow;
+    private int mPrefetchSize;
+    // the run below which there is nothing left on the server, 0 while not known
+    private int mExhaustedBelow;
+
+    public RunItemPager() {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        mMainThreadExecutor = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                mainHandler.post(runnable);
+            }
+        };
+    }
+
+    /**
+     * @return the number of the oldest run of the server among the runs, the key of the next page
+     */
+    public static int getLastSeen(Collection<RunItem> runItems) {
+        int lastSeen = Integer.MAX_VALUE;
+        for (RunItem runItem : runItems) {
+            if (runItem != null && !runItem.isLocalItem())
+                lastSeen = Math.min(lastSeen, runItem.getRunNumber());
+        }
+        return lastSeen;
+    }
+
+    /**
+     * @return false if the server has no run older than lastSeen
+     */
+    public boolean hasMore(int lastSeen) {
+        return mExhaustedBelow == 0 || mExhaustedBelow != lastSeen;
+    }
+
+    /**
+     * @return true if the page below lastSeen was fetched and can be handed out right away
+     */
+    public boolean isReady(int lastSeen) {
+        return mPrefetch != null && mPrefetchBelow == lastSeen && mPrefetch.isDone();
+    }
+
+    /**
+     * Starts fetching the page below lastSeen, unless it's already fetched or being fetched
+     */
+    public void prefetch(int lastSeen) {
+        if (!hasMore(lastSeen) || (mPrefetch != null && mPrefetchBelow == lastSeen))
+            return;
+        if (mPrefetch != null)
+            mPrefetch.cancel(false);
+        mPrefetchBelow = lastSeen;
+        mPrefetchSize = mPageSize;
+        Log.d(TAG, "Prefetching " + mPrefetchSize + " runs below " + lastSeen);
+        mPrefetch = ApplicationState.getRunTable()
+                .where().field(RunItemEntry.COLUMN_NAME_RUN_NUMBER).lt(lastSeen)
+                .orderBy(RunItemEntry.COLUMN_NAME_RUN_NUMBER, QueryOrder.Descending)
+                .top(mPrefetchSize).select(RunItem.LIST_COLUMNS).execute();
+        Futures.addCallback(mPrefetch, new FutureCallback<MobileServiceList<RunItem>>() {
+            @Override
+            public void onSuccess(MobileServiceList<RunItem> result) {
+                // decrypt the runs while they're still off screen
+                for (RunItem runItem : result)
+                    RunDecryptionEngine.getInstance().decrypt(runItem, RunDecryptionEngine.RUN_SUMMARY, RunDecryptionEngine.PRIORITY_PREFETCH);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // reported by next
+            }
+        });
+    }
+
+    /**
+     * Hands out the page below lastSeen, fetching it if it wasn't prefetched, then starts
+     * prefetching the page after it
+     */
+    public void next(final int lastSeen, final FutureCallback<List<RunItem>> callback) {
+        final boolean waited = !isReady(lastSeen);
+        prefetch(lastSeen);
+        final ListenableFuture<MobileServiceList<RunItem>> page = mPrefetch;
+        final int pageSize = mPrefetchSize;
+        final long start = SystemClock.elapsedRealtime();
+        Futures.addCallback(page, new FutureCallback<MobileServiceList<RunItem>>() {
+            @Override
+            public void onSuccess(MobileServiceList<RunItem> result) {
+                if (mPrefetch == page)
+                    mPrefetch = null;
+                if (result.size() < pageSize)
+                    mExhaustedBelow = lastSeen;
+                if (waited && mPageSize < MAX_PAGE_SIZE) {
+                    mPageSize = Math.min(MAX_PAGE_SIZE, mPageSize * 2);
+                    Log.d(TAG, "Waited " + (SystemClock.elapsedRealtime() - start) + "ms for a page, now paging " + mPageSize + " runs");
+                }
+                callback.onSuccess(result);
+                if (!result.isEmpty())
+                    prefetch(result.get(result.size() - 1).getRunNumber());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // fetched again on the next call
+                if (mPrefetch == page)
+                    mPrefetch = null;
+                callback.onFailure(t);
+            }
+        }, mMainThreadExecutor);
+    }
+}
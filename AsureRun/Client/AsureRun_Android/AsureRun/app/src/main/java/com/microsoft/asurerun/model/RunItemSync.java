@@ -0,0 +1,148 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import android.util.Log;
+
+import com.microsoft.asurerun.model.RunItem.RunItemEntry;
+import com.microsoft.windowsazure.mobileservices.table.MobileServiceTable;
+import com.microsoft.windowsazure.mobileservices.table.query.ExecutableQuery;
+import com.microsoft.windowsazure.mobileservices.table.query.QueryOrder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import static com.microsoft.asurerun.model.ApplicationState.INITIAL_ITEMS_OFFSET;
+
+/**
+ * Incremental sync of the runs of the user with the RunItem table. The table doesn't expose
+ * updatedAt, it would leak when each run was completed, but run numbers only ever grow: the
+ * highest run number already downloaded is the high-water mark, and a refresh only asks for the
+ * runs past it. Runs don't reach the server in run number order though, the upload queue sends
+ * several at once and retries failures later, so the listed local runs below the watermark are
+ * asked for by run number along with them. Runs deleted elsewhere are found through the
+ * tombstones the server keeps with soft delete, of which only the ids are downloaded, and only
+ * for the run numbers currently listed: tombstones of older runs can't match anything, so a
+ * refresh costs as much as the listed runs whatever the deleted history.
+ */
+public class RunItemSync {
+    private static final String TAG = "RunItemSync";
+    // system property the server sets on the rows it soft deleted
+    private static final String COLUMN_NAME_DELETED = "deleted";
+    // the tombstones read at a time, within the server's default page size
+    private static final int TOMBSTONE_PAGE_SIZE = 50;
+
+    /**
+     * @return the highest run number of the runs downloaded from the server, 0 if there is none
+     */
+    public static int getWatermark(Collection<RunItem> runItems) {
+        int watermark = 0;
+        for (RunItem runItem : runItems) {
+            if (runItem != null && !runItem.isLocalItem())
+                watermark = Math.max(watermark, runItem.getRunNumber());
+        }
+        return watermark;
+    }
+
+    /**
+     * @return the lowest run number of the runs downloaded from the server, 0 if there is none
+     */
+    public static int getOldestRunNumber(Collection<RunItem> runItems) {
+        int oldest = 0;
+        for (RunItem runItem : runItems) {
+            if (runItem != null && !runItem.isLocalItem() && (oldest == 0 || runItem.getRunNumber() < oldest))
+                oldest = runItem.getRunNumber();
+        }
+        return oldest;
+    }
+
+    /**
+     * @return the run numbers of the local runs not past the watermark, the ones that may have
+     * reached the server after a newer run did
+     */
+    private static List<Integer> getLocalRunNumbers(Collection<RunItem> runItems, int watermark) {
+        List<Integer> runNumbers = new ArrayList<>();
+        for (RunItem runItem : runItems) {
+            if (runItem != null && runItem.isLocalItem() && runItem.getRunNumber() <= watermark)
+                runNumbers.add(runItem.getRunNumber());
+        }
+        return runNumbers;
+    }
+
+    /**
+     * Brings the runs up to date with the server. Without any run from the server yet, only the
+     * latest {@link ApplicationState#INITIAL_ITEMS_OFFSET} runs are downloaded, older ones are
+     * paged in by the run history as it scrolls.
+     *
+     * @param runItems the runs currently shown, left untouched
+     * @return the runs newest first: the ones past the watermark added, the deleted ones
+     * removed, and the local ones that reached the server replaced by the server's, whatever
+     * their run number
+     */
+    public static List<RunItem> sync(Collection<RunItem> runItems) throws ExecutionException, InterruptedException {
+        MobileServiceTable<RunItem> table = ApplicationState.getRunTable();
+        int watermark = getWatermark(runItems);
+        List<RunItem> newRunItems;
+        Set<String> deletedIds = new HashSet<>();
+        if (watermark == 0) {
+            newRunItems = table.top(INITIAL_ITEMS_OFFSET)
+                    .orderBy(RunItemEntry.COLUMN_NAME_RUN_NUMBER, QueryOrder.Descending)
+                    .select(RunItem.LIST_COLUMNS).execute().get();
+        } else {
+            ExecutableQuery<RunItem> query = table.where().field(RunItemEntry.COLUMN_NAME_RUN_NUMBER).gt(watermark);
+            for (int runNumber : getLocalRunNumbers(runItems, watermark))
+                query = query.or().field(RunItemEntry.COLUMN_NAME_RUN_NUMBER).eq(runNumber);
+            newRunItems = query.orderBy(RunItemEntry.COLUMN_NAME_RUN_NUMBER, QueryOrder.Descending)
+                    .select(RunItem.LIST_COLUMNS).execute().get();
+            readTombstones(table, getOldestRunNumber(runItems), watermark, deletedIds);
+        }
+        Log.d(TAG, "Synced " + newRunItems.size() + " new and " + deletedIds.size() + " deleted runs past " + watermark);
+
+        Set<Integer> newRunNumbers = new HashSet<>();
+        for (RunItem runItem : newRunItems)
+            newRunNumbers.add(runItem.getRunNumber());
+        List<RunItem> synced = new ArrayList<>(newRunItems);
+        for (RunItem runItem : runItems) {
+            if (runItem == null || deletedIds.contains(runItem.getId()))
+                continue;
+            if (runItem.isLocalItem() && newRunNumbers.contains(runItem.getRunNumber()))
+                continue;
+            synced.add(runItem);
+        }
+        Collections.sort(synced, new Comparator<RunItem>() {
+            @Override
+            public int compare(RunItem lhs, RunItem rhs) {
+                return Integer.compare(rhs.getRunNumber(), lhs.getRunNumber());
+            }
+        });
+        return synced;
+    }
+
+    /**
+     * Reads the ids of the runs deleted from the server within a range of run numbers, a page at
+     * a time so no tombstone is cut off by the server's page size
+     */
+    private static void readTombstones(MobileServiceTable<RunItem> table, int fromRunNumber, int toRunNumber,
+                                       Set<String> deletedIds) throws ExecutionException, InterruptedException {
+        List<RunItem> page;
+        int skip = 0;
+        do {
+            page = table.where().field(COLUMN_NAME_DELETED).eq(true)
+                    .and().field(RunItemEntry.COLUMN_NAME_RUN_NUMBER).ge(fromRunNumber)
+                    .and().field(RunItemEntry.COLUMN_NAME_RUN_NUMBER).le(toRunNumber)
+                    .includeDeleted()
+                    .orderBy(RunItemEntry.COLUMN_NAME_RUN_NUMBER, QueryOrder.Ascending)
+                    .skip(skip).top(TOMBSTONE_PAGE_SIZE)
+                    .select(RunItemEntry.COLUMN_NAME_ID).execute().get();
+            for (RunItem tombstone : page)
+                deletedIds.add(tombstone.getId());
+            skip += page.size();
+        } while (page.size() == TOMBSTONE_PAGE_SIZE);
+    }
+}
@@ -0,0 +1,222 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.microsoft.asurerun.util.CacheUtil;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+
+/**
+ * Append-only journal of the ticks of the run in progress, written by the RunService so a run
+ * survives the process being killed. Every tick is a fixed-width record appended to a memory
+ * mapped file: writing one is a few stores into memory and never blocks on the disk, and the
+ * kernel keeps the dirty pages even if the process dies.
+ *
+ * The header holds the number of complete records and is only updated after a record is fully
+ * written, so a record torn by the process dying is simply ignored on recovery.
+ */
+public class RunJournal implements Closeable {
+    private static final String TAG = "RunJournal";
+    public static final String FILE_NAME = "run_journal.bin";
+
+    private static final int MAGIC = 0x41524a31; // "ARJ1"
+    private static final int VERSION = 1;
+    // header: magic, version, record count, start time in milliseconds
+    private static final int HEADER_COUNT_OFFSET = 8;
+    private static final int HEADER_START_TIME_OFFSET = 12;
+    private static final int HEADER_SIZE = 32;
+    // record: timestamp, elapsed time, distance, cartesian x y z, elevation gain delta, pace as
+    // doubles, then the means of the accelerometer and gyroscope x y z over the tick as floats
+    private static final int RECORD_SIZE = 8 * 8 + 6 * 4;
+    // the file is mapped and grown this many records at a time, about 10 minutes of running
+    private static final int RECORDS_PER_REGION = 600;
+
+    private final RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+    private int mCount;
+    private int mCapacity;
+
+    private RunJournal(RandomAccessFile file) {
+        mFile = file;
+    }
+
+    /**
+     * @return the journal file of the run in progress
+     */
+    public static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Starts the journal of a new run, discarding the journal of any previous run
+     *
+     * @param startTime the wall clock time the run started at, in milliseconds
+     */
+    public static RunJournal create(Context context, long startTime) throws IOException {
+        File file = getFile(context);
+        if (file.exists() && !file.delete())
+            throw new IOException("Couldn't delete " + file);
+        RunJournal journal = new RunJournal(new RandomAccessFile(file, "rw"));
+        try {
+            journal.map(RECORDS_PER_REGION);
+            journal.mBuffer.putInt(0, MAGIC);
+            journal.mBuffer.putInt(4, VERSION);
+            journal.mBuffer.putInt(HEADER_COUNT_OFFSET, 0);
+            journal.mBuffer.putLong(HEADER_START_TIME_OFFSET, startTime);
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * Deletes the journal, once its run was saved or abandoned
+     */
+    public static void delete(Context context) {
+        File file = getFile(context);
+        if (file.exists() && !file.delete())
+            Log.e(TAG, "Couldn't delete " + file);
+    }
+
+    private void map(int capacity) throws IOException {
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        mBuffer.order(ByteOrder.nativeOrder());
+        mCapacity = capacity;
+    }
+
+    /**
+     * Appends the record of a tick. Positions are in cartesian coordinates, NaN when the tick
+     * doesn't have a new location.
+     *
+     * @param pace the average pace so far in s/km, 0 until the distance is meaningful
+     */
+    public void append(double timestamp, long elapsedTime, double distance, double x, double y, double z,
+                       double elevationGainDelta, double pace, float[] accelerometer, float[] gyroscope) throws IOException {
+        if (mCount == mCapacity)
+            map(mCapacity + RECORDS_PER_REGION);
+        mBuffer.position(HEADER_SIZE + mCount * RECORD_SIZE);
+        mBuffer.putDouble(timestamp)
+                .putDouble(elapsedTime)
+                .putDouble(distance)
+                .putDouble(x)
+                .putDouble(y)
+                .putDouble(z)
+                .putDouble(elevationGainDelta)
+                .putDouble(pace);
+        for (int i = 0; i < 3; ++i)
+            mBuffer.putFloat(accelerometer[i]);
+        for (int i = 0; i < 3; ++i)
+            mBuffer.putFloat(gyroscope[i]);
+        // only count the record once it's complete
+        mBuffer.putInt(HEADER_COUNT_OFFSET, ++mCount);
+    }
+
+    @Override
+    public void close() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't close the run journal", e);
+        }
+        mBuffer = null;
+    }
+
+    /**
+     * Rebuilds the RunItem of a run that was interrupted before it could be saved, replaying the
+     * journal the same way the RunService records its ticks. The keys
+     * must be loaded, since the run gets encrypted. The map thumbnail is lost with the run.
+     *
+     * The journal is kept until the caller has saved the RunItem and calls {@link #delete(Context)},
+     * so the run is recovered again if the process dies before that. Only a journal without a
+     * run to recover is deleted here.
+     *
+     * @return the encrypted RunItem, or null if there is no interrupted run to recover
+     */
+    public static RunItem recover(Context context) {
+        File file = getFile(context);
+        // keep the journal until there is a key to encrypt the run with
+        if (!file.exists() || ApplicationState.getInsertedKeyItem() == null)
+            return null;
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            buffer.order(ByteOrder.nativeOrder());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                Log.e(TAG, "Dropping unreadable run journal");
+                file.delete();
+                return null;
+            }
+            int count = Math.min(buffer.getInt(HEADER_COUNT_OFFSET), (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE);
+            if (count <= 0) {
+                file.delete();
+                return null;
+            }
+            boolean miles = CacheUtil.isMilesUnit(context);
+
+            RunSampleBuffer samples = new RunSampleBuffer();
+            float[] accelerometer = new float[3];
+            float[] gyroscope = new float[3];
+            buffer.position(HEADER_SIZE);
+            for (int i = 0; i < count; ++i) {
+                double timestamp = buffer.getDouble();
+                long elapsedTime = (long) buffer.getDouble();
+                double distance = buffer.getDouble();
+                double x = buffer.getDouble();
+                double y = buffer.getDouble();
+                double z = buffer.getDouble();
+                double elevationGainDelta = buffer.getDouble();
+                double pace = buffer.getDouble();
+                for (int j = 0; j < 3; ++j)
+                    accelerometer[j] = buffer.getFloat();
+                for (int j = 0; j < 3; ++j)
+                    gyroscope[j] = buffer.getFloat();
+                samples.recordTick(timestamp, elapsedTime, distance, x, y, z, elevationGainDelta, pace, miles);
+                // only the means of the sensor windows are journaled, so each tick counts as one event
+                samples.addSensors(accelerometer, gyroscope);
+            }
+            long startTime = buffer.getLong(HEADER_START_TIME_OFFSET);
+
+            RunItem item = new RunItem();
+            new ServerCalculations(item).processAndEncrypt(samples, samples.getElevationGainSum(), null);
+            int runNumber = CacheUtil.loadMaxRunNumber(context) + 1;
+            CacheUtil.cacheMaxRunNumber(context, runNumber);
+            item.setKeyId(ApplicationState.getInsertedKeyItem().getId());
+            item.setRunNumber(runNumber);
+
+            //These are fields used to temporarily show the item not yet loaded on the server
+            item.setIsLocalItem(true);
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(startTime);
+            item.setDate(calendar);
+            item.setTotalDistance(samples.getTotalDistance());
+            item.setElevationGain(samples.getElevationGainSum());
+            item.setTotalTime(samples.getTotalTime());
+            Log.d(TAG, "Recovered run " + runNumber + " from " + count + " ticks");
+            return item;
+        } catch (Exception e) {
+            // kept, the recovery is tried again on the next start
+            Log.e(TAG, "Couldn't recover the run journal", e);
+            return null;
+        } finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't close the run journal", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import com.microsoft.asurerun.util.Configuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.microsoft.asurerun.util.ServiceUtil.MILES_KILOMETERS_CONVERSION_RATE;
+
+/**
+ * Holds the samples recorded during a run in growable primitive columns, so recording doesn't box
+ * every value and the columns can be copied straight into the slot layout
+ * {@link ServerCalculations#processAndEncrypt(RunSampleBuffer, double, android.graphics.Bitmap)}
+ * encrypts.
+ */
+public class RunSampleBuffer {
+    /**
+     * The route is sampled once every this many ticks of the RunService, starting with the first
+     */
+    public static final int SAMPLE_INTERVAL = 2;
+
+    /**
+     * A growable array of doubles
+     */
+    public static class Column {
+        private double[] mValues;
+        private int mSize;
+
+        Column(int initialCapacity) {
+            mValues = new double[initialCapacity];
+        }
+
+        public void add(double value) {
+            if (mSize == mValues.length)
+                mValues = Arrays.copyOf(mValues, Math.max(1, mValues.length * 2));
+            mValues[mSize++] = value;
+        }
+
+        public double get(int index) {
+            if (index >= mSize)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+            return mValues[index];
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        /**
+         * @return the first value, or 0 if the column is empty
+         */
+        public double first() {
+            return mSize > 0 ? mValues[0] : 0;
+        }
+
+        /**
+         * @return the last value, or 0 if the column is empty
+         */
+        public double last() {
+            return mSize > 0 ? mValues[mSize - 1] : 0;
+        }
+
+        public double sum() {
+            double sum = 0;
+            for (int i = 0; i < mSize; ++i)
+                sum += mValues[i];
+            return sum;
+        }
+
+        public void clear() {
+            mSize = 0;
+        }
+
+        /**
+         * Copies the column into slots [offset, offset + length), padding whatever the column
+         * doesn't fill with the given value. Values past the length are dropped.
+         */
+        void copyTo(double[] slots, int offset, int length, double padding) {
+            int count = Math.min(mSize, length);
+            System.arraycopy(mValues, 0, slots, offset, count);
+            Arrays.fill(slots, offset + count, offset + length, padding);
+        }
+
+        /**
+         * @return the values boxed into a new list, for the UI code that still works with lists
+         */
+        public List<Double> toList() {
+            List<Double> list = new ArrayList<>(mSize);
+            for (int i = 0; i < mSize; ++i)
+                list.add(mValues[i]);
+            return list;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(Arrays.copyOf(mValues, mSize));
+        }
+    }
+
+    // what half a ciphertext holds, with the default poly modulus enough for a run of about an
+    // hour and a half with a sample every 2 seconds
+    private final int mInitialCapacity = SlotLayout.getActive().getHalfSlotCount();
+    // the located samples, with their timestamps
+    private final RouteCompressor mRoute = new RouteCompressor(Configuration.getRouteTolerance());
+    private final Column mTimeStamps = new Column(mInitialCapacity);
+    private final Column mElevationGainDeltas = new Column(mInitialCapacity);
+    private final Column mAvgPaceDeltas = new Column(mInitialCapacity);
+    // the sensors are only kept as statistics of the whole run, whatever their rate
+    private final SensorStats mAccelerometerStats = new SensorStats();
+    private final SensorStats mGyroscopeStats = new SensorStats();
+
+    // totals of the ticks recorded with recordTick
+    private int mTickCount;
+    private long mTotalTime;
+    private double mTotalDistance;
+    private double mElevationGainSum;
+
+    /**
+     * Records a tick of the RunService. The elevation gain is taken from every tick, the route, the
+     * deltas and the timestamps once every {@link #SAMPLE_INTERVAL} ticks. The sensors are added
+     * separately, since they are sampled much faster than the ticks.
+     *
+     * @param x the cartesian position, NaN when the tick has no new location
+     * @param pace the average pace so far in s/km, 0 until the distance is meaningful
+     * @param miles true if the paces are recorded in s/mile
+     * @return true if the tick was sampled, so its location (if any) is part of the route
+     */
+    public boolean recordTick(double timestamp, long elapsedTime, double distance, double x, double y, double z,
+                              double elevationGainDelta, double pace, boolean miles) {
+        int tick = mTickCount++;
+        mTotalTime = elapsedTime;
+        mTotalDistance = distance;
+        mElevationGainSum += elevationGainDelta;
+        if (tick % SAMPLE_INTERVAL != 0)
+            return false;
+        if (!Double.isNaN(x))
+            addCoordinate(x, y, z, timestamp);
+        addDeltas(elevationGainDelta, (long) (miles ? pace * MILES_KILOMETERS_CONVERSION_RATE : pace));
+        addTimeStamp(timestamp);
+        return true;
+    }
+
+    /**
+     * @return the elapsed time of the last tick in seconds
+     */
+    public long getTotalTime() { return mTotalTime; }
+
+    /**
+     * @return the distance of the last tick in km
+     */
+    public double getTotalDistance() { return mTotalDistance; }
+
+    /**
+     * @return the elevation gain of all the ticks in meters
+     */
+    public double getElevationGainSum() { return mElevationGainSum; }
+
+    public void addCoordinate(double x, double y, double z, double timeStamp) {
+        mRoute.add(x, y, z, timeStamp);
+    }
+
+    public void addTimeStamp(double timeStamp) {
+        mTimeStamps.add(timeStamp);
+    }
+
+    public void addDeltas(double elevationGainDelta, double avgPaceDelta) {
+        mElevationGainDeltas.add(elevationGainDelta);
+        mAvgPaceDeltas.add(avgPaceDelta);
+    }
+
+    /**
+     * Adds the sensor events of a window of the run, the windows are reset by the caller
+     */
+    public void addSensorWindows(SensorStats accelerometer, SensorStats gyroscope) {
+        mAccelerometerStats.merge(accelerometer);
+        mGyroscopeStats.merge(gyroscope);
+    }
+
+    /**
+     * Adds a single sensor event each
+     *
+     * @param accelerometer the x, y and z values of the accelerometer
+     * @param gyroscope the x, y and z values of the gyroscope
+     */
+    public void addSensors(float[] accelerometer, float[] gyroscope) {
+        mAccelerometerStats.add(accelerometer);
+        mGyroscopeStats.add(gyroscope);
+    }
+
+    /**
+     * Clears the GPS samples, the only ones that have to be dropped once they're encrypted
+     */
+    public void clearGPS() {
+        mRoute.clear();
+        mTimeStamps.clear();
+    }
+
+    public RouteCompressor getRoute() { return mRoute; }
+    public Column getTimeStamps() { return mTimeStamps; }
+    public Column getElevationGainDeltas() { return mElevationGainDeltas; }
+    public Column getAvgPaceDeltas() { return mAvgPaceDeltas; }
+    public SensorStats getAccelerometerStats() { return mAccelerometerStats; }
+    public SensorStats getGyroscopeStats() { return mGyroscopeStats; }
+}
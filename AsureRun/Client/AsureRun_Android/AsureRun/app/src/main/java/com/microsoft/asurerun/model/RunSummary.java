@@ -0,0 +1,117 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import android.provider.BaseColumns;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * The decrypted values of a RunItem needed to show it in the run history and the predictions,
+ * without the per point data only the run details need. The map thumbnail is left to the
+ * {@link ThumbnailCache}, so a summary kept by its run stays small.
+ */
+public class RunSummary {
+
+    public static class RunSummaryEntry implements BaseColumns {
+        public static final String TABLE_NAME = "runSummaries";
+        public static final String COLUMN_NAME_RUN_ID = "runId";
+        public static final String COLUMN_NAME_KEY_ID = "keyId";
+        public static final String COLUMN_NAME_CIPHER_HASH = "cipherHash";
+        public static final String COLUMN_NAME_SUMMARY = "summary";
+    }
+
+    // bumped whenever the serialized layout changes, older entries are then ignored
+    private static final int SERIAL_VERSION = 3;
+
+    private final double mTotalDistanceKm;
+    private final double mTotalTimeSec;
+    private final double mElevationGain;
+    private final Calendar mDate;
+    private final boolean mHasStartTime;
+    private final double mMlResult;
+
+    /**
+     * Takes the start hour of the run only if its timestamps were already decrypted, they're in
+     * a ciphertext that isn't downloaded to list runs
+     */
+    public RunSummary(ServerCalculations calculations) {
+        this(calculations.getTotalDistance(), calculations.getTotalTime(), calculations.getElevationGain(),
+                calculations.getDay(), calculations.hasStartTime(), calculations.getMlResult());
+    }
+
+    private RunSummary(double totalDistanceKm, double totalTimeSec, double elevationGain, Calendar date,
+                       boolean hasStartTime, double mlResult) {
+        mTotalDistanceKm = totalDistanceKm;
+        mTotalTimeSec = totalTimeSec;
+        mElevationGain = elevationGain;
+        mDate = date;
+        mHasStartTime = hasStartTime;
+        mMlResult = mlResult;
+    }
+
+    /**
+     * @return total distance in Kilometers
+     */
+    public double getTotalDistance() { return mTotalDistanceKm; }
+
+    /**
+     * @return total time in seconds
+     */
+    public double getTotalTime() { return mTotalTimeSec; }
+    public double getElevationGain() { return mElevationGain; }
+    public Calendar getDate() { return mDate; }
+
+    /**
+     * @return true if the date holds the start hour of the run, otherwise it's only the day
+     */
+    public boolean hasStartTime() { return mHasStartTime; }
+    public double getMlResult() { return mMlResult; }
+
+    /**
+     * Serializes the summary so it can be stored by RunSummaryDbHelper
+     */
+    byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SERIAL_VERSION);
+        out.writeDouble(mTotalDistanceKm);
+        out.writeDouble(mTotalTimeSec);
+        out.writeDouble(mElevationGain);
+        out.writeDouble(mMlResult);
+        out.writeBoolean(mDate != null);
+        if (mDate != null)
+            out.writeLong(mDate.getTimeInMillis());
+        out.writeBoolean(mHasStartTime);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads back a summary serialized with {@link #toBytes()}
+     *
+     * @return the summary, or null if it was written with another layout
+     */
+    static RunSummary fromBytes(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != SERIAL_VERSION)
+            return null;
+        double totalDistanceKm = in.readDouble();
+        double totalTimeSec = in.readDouble();
+        double elevationGain = in.readDouble();
+        double mlResult = in.readDouble();
+        Calendar date = null;
+        if (in.readBoolean()) {
+            date = new GregorianCalendar();
+            date.setTimeInMillis(in.readLong());
+        }
+        boolean hasStartTime = in.readBoolean();
+        return new RunSummary(totalDistanceKm, totalTimeSec, elevationGain, date, hasStartTime, mlResult);
+    }
+}
@@ -0,0 +1,247 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.microsoft.asurerun.model.RunSummary.RunSummaryEntry;
+import com.microsoft.asurerun.model.ThumbnailCache.ThumbnailEntry;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Persistent cache of decrypted RunSummaries, so the run history can be shown after a restart
+ * without decrypting every run again. The summaries are plaintext run data, so they are stored
+ * encrypted with AES-GCM under a key derived from the local SEAL secret key; a summary never
+ * outlives the secret key that could decrypt the run anyway.
+ *
+ * An entry is only returned for the same run id, the same ciphertexts and the same key id it
+ * was stored with. The map thumbnails, compressed to PNG, are kept apart from the summaries so a
+ * summary can be read without decoding its thumbnail; this is the disk tier of the
+ * {@link ThumbnailCache}.
+ */
+public class RunSummaryDbHelper extends SQLiteOpenHelper {
+    private static final String TAG = "RunSummaryDbHelper";
+
+    private static final String SQL_CREATE_ENTRIES =
+            "CREATE TABLE " + RunSummaryEntry.TABLE_NAME + " (" +
+                    RunSummaryEntry.COLUMN_NAME_RUN_ID + " TEXT PRIMARY KEY, " +
+                    RunSummaryEntry.COLUMN_NAME_KEY_ID + " TEXT, " +
+                    RunSummaryEntry.COLUMN_NAME_CIPHER_HASH + " TEXT, " +
+                    RunSummaryEntry.COLUMN_NAME_SUMMARY + " BLOB)";
+
+    private static final String SQL_CREATE_THUMBNAILS =
+            "CREATE TABLE " + ThumbnailEntry.TABLE_NAME + " (" +
+                    ThumbnailEntry.COLUMN_NAME_RUN_ID + " TEXT PRIMARY KEY, " +
+                    ThumbnailEntry.COLUMN_NAME_KEY_ID + " TEXT, " +
+                    ThumbnailEntry.COLUMN_NAME_CIPHER_HASH + " TEXT, " +
+                    ThumbnailEntry.COLUMN_NAME_PNG + " BLOB)";
+
+    private static final String SQL_DELETE_ENTRIES =
+            "DROP TABLE IF EXISTS " + RunSummaryEntry.TABLE_NAME;
+
+    private static final String SQL_DELETE_THUMBNAILS =
+            "DROP TABLE IF EXISTS " + ThumbnailEntry.TABLE_NAME;
+
+    // If you change the database schema, you must increment the database version.
+    public static final int DATABASE_VERSION = 2;
+    public static final String DATABASE_NAME = "RunSummary.db";
+
+    private static final String CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH_BITS = 128;
+    // keeps the derived AES key distinct from any other use of the secret key
+    private static final String KEY_DERIVATION_LABEL = "AsureRun run summary cache";
+    // bound into the thumbnails along with the run id, so they can't be swapped with summaries
+    private static final String THUMBNAIL_AAD_PREFIX = "thumbnail:";
+
+    private final SecretKeySpec mKey;
+    private final String mKeyId;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    /**
+     * @param context the application context
+     * @param secretKey the contents of the local SEAL secret key file
+     * @param keyId the id of the KeyItem the runs are currently encrypted with
+     */
+    public RunSummaryDbHelper(Context context, byte[] secretKey, String keyId) throws GeneralSecurityException {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(KEY_DERIVATION_LABEL.getBytes());
+        mKey = new SecretKeySpec(digest.digest(secretKey), "AES");
+        mKeyId = keyId;
+        // entries of any previous key can never be read again
+        getWritableDatabase().delete(RunSummaryEntry.TABLE_NAME,
+                RunSummaryEntry.COLUMN_NAME_KEY_ID + " IS NOT ?", new String[]{ keyId });
+        getWritableDatabase().delete(ThumbnailEntry.TABLE_NAME,
+                ThumbnailEntry.COLUMN_NAME_KEY_ID + " IS NOT ?", new String[]{ keyId });
+    }
+
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_THUMBNAILS);
+    }
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // This database is only a cache of data that can be decrypted again, so its upgrade
+        // policy is to simply to discard the data and start over
+        db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL(SQL_DELETE_THUMBNAILS);
+        onCreate(db);
+    }
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        onUpgrade(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Hashes the ciphertexts a run is listed with, so a cached summary is dropped as soon as any
+     * of them changes on the server. The coordinates and deltas are left out, they're only
+     * downloaded once the run is opened.
+     */
+    public static String hashCiphers(RunItem runItem) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[][] ciphers = {
+                runItem.getCipherThumbnail(),
+                runItem.getCipherGyro(),
+                runItem.getStats(),
+                runItem.getSummary(),
+                runItem.getChunkStats(),
+                runItem.getChunkPoints() != null ? runItem.getChunkPoints().getBytes(StandardCharsets.UTF_8) : null
+        };
+        for (byte[] cipher : ciphers) {
+            // length prefix so moving bytes between ciphertexts changes the hash
+            int length = cipher != null ? cipher.length : -1;
+            digest.update(ByteBuffer.allocate(4).putInt(length).array());
+            if (cipher != null)
+                digest.update(cipher);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * @return the cached summary of the run, or null if there is none for these ciphertexts
+     */
+    public RunSummary get(String runId, String cipherHash) {
+        String[] projection = { RunSummaryEntry.COLUMN_NAME_SUMMARY };
+        String selection = RunSummaryEntry.COLUMN_NAME_RUN_ID + " = ? AND " +
+                RunSummaryEntry.COLUMN_NAME_KEY_ID + " = ? AND " +
+                RunSummaryEntry.COLUMN_NAME_CIPHER_HASH + " = ?";
+        String[] selectionArgs = { runId, mKeyId, cipherHash };
+        Cursor cursor = getReadableDatabase().query(RunSummaryEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, null);
+        try {
+            if (!cursor.moveToFirst())
+                return null;
+            return RunSummary.fromBytes(decrypt(runId, cursor.getBlob(0)));
+        } catch (Exception e) {
+            Log.e(TAG, "Dropping unreadable summary of run " + runId, e);
+            delete(runId);
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Stores the summary of a run, replacing any older one
+     */
+    public void put(String runId, String cipherHash, RunSummary summary) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put(RunSummaryEntry.COLUMN_NAME_RUN_ID, runId);
+            values.put(RunSummaryEntry.COLUMN_NAME_KEY_ID, mKeyId);
+            values.put(RunSummaryEntry.COLUMN_NAME_CIPHER_HASH, cipherHash);
+            values.put(RunSummaryEntry.COLUMN_NAME_SUMMARY, encrypt(runId, summary.toBytes()));
+            getWritableDatabase().insertWithOnConflict(RunSummaryEntry.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (Exception e) {
+            Log.e(TAG, "Couldn't cache summary of run " + runId, e);
+        }
+    }
+
+    /**
+     * @return the cached PNG thumbnail of the run, or null if there is none for these ciphertexts
+     */
+    public byte[] getThumbnail(String runId, String cipherHash) {
+        String[] projection = { ThumbnailEntry.COLUMN_NAME_PNG };
+        String selection = ThumbnailEntry.COLUMN_NAME_RUN_ID + " = ? AND " +
+                ThumbnailEntry.COLUMN_NAME_KEY_ID + " = ? AND " +
+                ThumbnailEntry.COLUMN_NAME_CIPHER_HASH + " = ?";
+        String[] selectionArgs = { runId, mKeyId, cipherHash };
+        Cursor cursor = getReadableDatabase().query(ThumbnailEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, null);
+        try {
+            if (!cursor.moveToFirst())
+                return null;
+            return decrypt(THUMBNAIL_AAD_PREFIX + runId, cursor.getBlob(0));
+        } catch (Exception e) {
+            Log.e(TAG, "Dropping unreadable thumbnail of run " + runId, e);
+            getWritableDatabase().delete(ThumbnailEntry.TABLE_NAME,
+                    ThumbnailEntry.COLUMN_NAME_RUN_ID + " = ?", new String[]{ runId });
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Stores the PNG thumbnail of a run, replacing any older one
+     */
+    public void putThumbnail(String runId, String cipherHash, byte[] png) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put(ThumbnailEntry.COLUMN_NAME_RUN_ID, runId);
+            values.put(ThumbnailEntry.COLUMN_NAME_KEY_ID, mKeyId);
+            values.put(ThumbnailEntry.COLUMN_NAME_CIPHER_HASH, cipherHash);
+            values.put(ThumbnailEntry.COLUMN_NAME_PNG, encrypt(THUMBNAIL_AAD_PREFIX + runId, png));
+            getWritableDatabase().insertWithOnConflict(ThumbnailEntry.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (Exception e) {
+            Log.e(TAG, "Couldn't cache thumbnail of run " + runId, e);
+        }
+    }
+
+    public void delete(String runId) {
+        getWritableDatabase().delete(RunSummaryEntry.TABLE_NAME,
+                RunSummaryEntry.COLUMN_NAME_RUN_ID + " = ?", new String[]{ runId });
+        getWritableDatabase().delete(ThumbnailEntry.TABLE_NAME,
+                ThumbnailEntry.COLUMN_NAME_RUN_ID + " = ?", new String[]{ runId });
+    }
+
+    public void deleteAll() {
+        getWritableDatabase().delete(RunSummaryEntry.TABLE_NAME, null, null);
+        getWritableDatabase().delete(ThumbnailEntry.TABLE_NAME, null, null);
+    }
+
+    /**
+     * Encrypts a serialized summary or thumbnail, binding it to its run id so rows can't be
+     * swapped around
+     */
+    private byte[] encrypt(String runId, byte[] plain) throws GeneralSecurityException {
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        mRandom.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, mKey, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv));
+        cipher.updateAAD(runId.getBytes());
+        byte[] encrypted = cipher.doFinal(plain);
+        return ByteBuffer.allocate(iv.length + encrypted.length).put(iv).put(encrypted).array();
+    }
+
+    private byte[] decrypt(String runId, byte[] stored) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, mKey, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, stored, 0, GCM_IV_LENGTH));
+        cipher.updateAAD(runId.getBytes());
+        return cipher.doFinal(stored, GCM_IV_LENGTH, stored.length - GCM_IV_LENGTH);
+    }
+}
@@ -0,0 +1,78 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+/**
+ * The total distance, time and number of runs of one or more runs. Encrypted, every slot is a
+ * plain sum, so the totals of two ciphertexts are added by the server without decrypting them:
+ * this is what the SummaryItem of a key accumulates.
+ */
+public class RunTotals {
+    private static final int DISTANCE_SLOT = 0;
+    private static final int TIME_SLOT = 1;
+    private static final int RUNS_SLOT = 2;
+
+    private double mDistanceKm;
+    private double mTimeSec;
+    private long mRuns;
+
+    public RunTotals() {
+    }
+
+    public RunTotals(double distanceKm, double timeSec, long runs) {
+        mDistanceKm = distanceKm;
+        mTimeSec = timeSec;
+        mRuns = runs;
+    }
+
+    public double getDistance() { return mDistanceKm; }
+    public double getTime() { return mTimeSec; }
+    public long getRuns() { return mRuns; }
+
+    public void add(double distanceKm, double timeSec, long runs) {
+        mDistanceKm += distanceKm;
+        mTimeSec += timeSec;
+        mRuns += runs;
+    }
+
+    public void add(RunTotals other) {
+        add(other.mDistanceKm, other.mTimeSec, other.mRuns);
+    }
+
+    /**
+     * @return the totals with every value negated, adding them to a sum removes these totals
+     */
+    public RunTotals negate() {
+        return new RunTotals(-mDistanceKm, -mTimeSec, -mRuns);
+    }
+
+    /**
+     * Lays out the totals in the slots of a ciphertext
+     */
+    public void writeSlots(double[] slots) {
+        slots[DISTANCE_SLOT] = mDistanceKm;
+        slots[TIME_SLOT] = mTimeSec;
+        slots[RUNS_SLOT] = mRuns;
+    }
+
+    public byte[] encrypt() {
+        double[] slots = new double[SlotLayout.getActive().getSlotCount()];
+        writeSlots(slots);
+        return ApplicationState.encryptToBytes(slots);
+    }
+
+    public static RunTotals decrypt(byte[] cipher) {
+        double[] slots = ApplicationState.decryptFromBytes(cipher);
+        // the run count is a sum of ones, CKKS only gets it approximately
+        return new RunTotals(slots[DISTANCE_SLOT], slots[TIME_SLOT], Math.round(slots[RUNS_SLOT]));
+    }
+
+    @Override
+    public String toString() {
+        return "RunTotals{" +
+                "mDistanceKm=" + mDistanceKm +
+                ", mTimeSec=" + mTimeSec +
+                ", mRuns=" + mRuns +
+                '}';
+    }
+}
@@ -0,0 +1,147 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import java.util.Arrays;
+
+/**
+ * Streaming statistics of a 3 axis sensor: the mean, variance, min and max of each axis and of
+ * the magnitude, in constant memory whatever the number of events. The mean and variance are
+ * updated with Welford's algorithm, and windows are merged into the run totals with Chan's
+ * parallel variant, so no event needs to be kept around.
+ */
+public class SensorStats {
+    public static final int X = 0;
+    public static final int Y = 1;
+    public static final int Z = 2;
+    public static final int MAGNITUDE = 3;
+    private static final int VALUES = 4;
+
+    /**
+     * The number of features written by {@link #writeFeatures(double[], int)}
+     */
+    public static final int FEATURE_COUNT = 3 * 3 + 4;
+
+    private long mCount;
+    private final double[] mMean = new double[VALUES];
+    private final double[] mM2 = new double[VALUES];
+    private final double[] mMin = new double[VALUES];
+    private final double[] mMax = new double[VALUES];
+
+    public SensorStats() {
+        reset();
+    }
+
+    /**
+     * Adds an event
+     *
+     * @param values the x, y and z values of the sensor
+     */
+    public void add(float[] values) {
+        double x = values[X];
+        double y = values[Y];
+        double z = values[Z];
+        ++mCount;
+        add(X, x);
+        add(Y, y);
+        add(Z, z);
+        add(MAGNITUDE, Math.sqrt(x * x + y * y + z * z));
+    }
+
+    private void add(int index, double value) {
+        double delta = value - mMean[index];
+        mMean[index] += delta / mCount;
+        mM2[index] += delta * (value - mMean[index]);
+        mMin[index] = Math.min(mMin[index], value);
+        mMax[index] = Math.max(mMax[index], value);
+    }
+
+    /**
+     * Adds all the events of other, as if they had been added to this one by one
+     */
+    public void merge(SensorStats other) {
+        if (other.mCount == 0)
+            return;
+        long count = mCount + other.mCount;
+        for (int i = 0; i < VALUES; ++i) {
+            double delta = other.mMean[i] - mMean[i];
+            mMean[i] += delta * other.mCount / count;
+            mM2[i] += other.mM2[i] + delta * delta * mCount * other.mCount / count;
+            mMin[i] = Math.min(mMin[i], other.mMin[i]);
+            mMax[i] = Math.max(mMax[i], other.mMax[i]);
+        }
+        mCount = count;
+    }
+
+    public void reset() {
+        mCount = 0;
+        Arrays.fill(mMean, 0);
+        Arrays.fill(mM2, 0);
+        Arrays.fill(mMin, Double.POSITIVE_INFINITY);
+        Arrays.fill(mMax, Double.NEGATIVE_INFINITY);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param index one of X, Y, Z or MAGNITUDE
+     * @return the mean, 0 without events
+     */
+    public double getMean(int index) {
+        return mMean[index];
+    }
+
+    /**
+     * @param index one of X, Y, Z or MAGNITUDE
+     * @return the population variance, 0 without events
+     */
+    public double getVariance(int index) {
+        return mCount > 0 ? mM2[index] / mCount : 0;
+    }
+
+    /**
+     * @param index one of X, Y, Z or MAGNITUDE
+     * @return the min, 0 without events
+     */
+    public double getMin(int index) {
+        return mCount > 0 ? mMin[index] : 0;
+    }
+
+    /**
+     * @param index one of X, Y, Z or MAGNITUDE
+     * @return the max, 0 without events
+     */
+    public double getMax(int index) {
+        return mCount > 0 ? mMax[index] : 0;
+    }
+
+    /**
+     * Copies the mean of each axis into values
+     */
+    public void getMeans(float[] values) {
+        values[X] = (float) mMean[X];
+        values[Y] = (float) mMean[Y];
+        values[Z] = (float) mMean[Z];
+    }
+
+    /**
+     * Writes the features beyond the means of the axes: the variance, min and max of each axis,
+     * then the mean, variance, min and max of the magnitude.
+     *
+     * @return the offset right after the features written
+     */
+    public int writeFeatures(double[] slots, int offset) {
+        for (int i = X; i <= Z; ++i) {
+            slots[offset++] = getVariance(i);
+            slots[offset++] = getMin(i);
+            slots[offset++] = getMax(i);
+        }
+        slots[offset++] = getMean(MAGNITUDE);
+        slots[offset++] = getVariance(MAGNITUDE);
+        slots[offset++] = getMin(MAGNITUDE);
+        slots[offset++] = getMax(MAGNITUDE);
+        return offset;
+    }
+}
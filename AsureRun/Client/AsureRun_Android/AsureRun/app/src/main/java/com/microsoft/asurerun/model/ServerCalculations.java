@@ -5,6 +5,7 @@ package com.microsoft.asurerun.model;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Process;
 import android.util.Log;
 
 import com.google.android.gms.maps.model.LatLng;
@@ -14,11 +15,20 @@ import com.microsoft.asurerun.util.MapUtil;
 import com.microsoft.asurerun.util.Utils;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.microsoft.asurerun.util.MapUtil.MAP_THUMBNAIL_HEIGHT;
 import static com.microsoft.asurerun.util.MapUtil.MAP_THUMBNAIL_WIDTH;
@@ -26,256 +36,521 @@ import static com.microsoft.asurerun.util.MapUtil.MAP_THUMBNAIL_WIDTH;
 public class ServerCalculations {
 
     private RunItem mRunItem;
+    // the layout the ciphertexts of the run are in, the one of the keys they're encrypted with
+    private final SlotLayout mLayout;
 
     private double mTotalDistanceKm;
     private double mTotalTimeSec;
     private double mElevationGain;
-    private Bitmap mThumbnail;
     private Calendar mDate;
     private LatLng[] mCoordinates;
     private List<Double> mElevationGainDeltas;
     private List<Double> mAvgPaceDeltas;
     private double[] mTimeStamps;
     private double mMlResult;
+    // the year and day of the run, as laid out in the summary
+    private int mYear;
+    private int mDayOfYear;
 
-    public static final int CIPHER_SIZE = 4096;
+    // which of the lazily decrypted facets are ready, the coordinates are ready once set
+    private boolean mStatsReady;
+    private boolean mSummaryReady;
+    private boolean mTimeStampsReady;
+    private boolean mDeltasReady;
+    private boolean mMlResultReady;
 
     public static final double EARTH_RADIUS = 6371.0;
 
-    public static final int SUMMARY_DAY_OF_WEEK_OFFSET = 100;
-    public static final int SUMMARY_WEEK_OF_YEAR_OFFSET = SUMMARY_DAY_OF_WEEK_OFFSET + 7;
-    public static final int SUMMARY_DAY_OFFSET = SUMMARY_WEEK_OF_YEAR_OFFSET + 53;
-    public static final int SUMMARY_DATE_SIZE = SUMMARY_DAY_OFFSET + 366;
-    public static final int SUMMARY_ELEVATION_GAIN_OFFSET = SUMMARY_DATE_SIZE;
+    // the number of ciphertexts decrypted for a run, the thumbnail is decrypted on its own
+    private static final int DECRYPTED_CIPHER_COUNT = 6;
 
     private final static String TAG = ServerCalculations.class.getCanonicalName();
+    private static final int CHUNK_POOL_SIZE = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Slot buffer the ciphertexts of a run are decrypted into. Runs are decrypted from several
+     * background threads at once, so each thread keeps and reuses its own buffer. It's allocated
+     * on first use, and again if the slot count grows.
+     */
+    private static final ThreadLocal<ByteBuffer> sDecryptSlotBuffer = new ThreadLocal<>();
+
+    /**
+     * Pixel buffer the thumbnails are converted into, one per thread like the slot buffer
+     */
+    private static final ThreadLocal<int[]> sThumbnailPixels = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[MAP_THUMBNAIL_WIDTH * MAP_THUMBNAIL_HEIGHT];
+        }
+    };
+
+    /**
+     * Encrypts and decrypts the route chunks of a run in parallel. Its tasks never take the lock
+     * of a run, so a run can wait on its chunks while holding its own.
+     */
+    private static final ExecutorService sChunkExecutor = Executors.newFixedThreadPool(CHUNK_POOL_SIZE, new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "RouteChunk #" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     public ServerCalculations(RunItem runItem) {
         this.mRunItem = runItem;
+        this.mLayout = SlotLayout.getActive();
     }
 
-    public void processAndEncrypt(ArrayList<Double> cartesianX,
-                                  ArrayList<Double> cartesianY,
-                                  ArrayList<Double> cartesianZ,
-                                  ArrayList<Double> timeStamps,
-                                  ArrayList<float[]> gyroscopeValues,
-                                  ArrayList<float[]> accelerometerValues,
-                                  ArrayList<Double> elevationGainDeltas,
-                                  ArrayList<Double> avgPaceDelta, double mElevationGainSum, Bitmap mapSnapshot) {
-
-        Log.e(TAG, "Timestamps: " + timeStamps.toString());
-        Log.e(TAG, "CartesianX: " + cartesianX.toString());
-        Log.e(TAG, "CartesianY: " + cartesianY.toString());
-        Log.e(TAG, "CartesianZ: " + cartesianZ.toString());
-
-        double[] arrayXY = new double[CIPHER_SIZE];
-        double[] arrayZT = new double[CIPHER_SIZE];
-        double[] arrayEG = new double[CIPHER_SIZE];
-        int halfCipherSize = CIPHER_SIZE / 2;
-        for (int i = 0; i < elevationGainDeltas.size(); ++i) {
-            arrayEG[i] = elevationGainDeltas.get(i);
-            arrayEG[i + halfCipherSize] = avgPaceDelta.get(i);
-        }
-        for (int i = 0; i < cartesianX.size(); ++i) {
-            arrayXY[i] = cartesianX.get(i);
-            arrayXY[i + halfCipherSize] = cartesianY.get(i);
-            arrayZT[i] = cartesianZ.get(i);
-            arrayZT[i + halfCipherSize] = timeStamps.get(i);
-        }
-        double lastX = 0;
-        double lastY = 0;
-        double lastZ = 0;
-        double lastT = 0;
-        if (!cartesianX.isEmpty()) {
-            lastX = arrayXY[cartesianX.size() - 1];
-            lastY = arrayXY[cartesianX.size() - 1 + halfCipherSize];
-            lastZ = arrayZT[cartesianX.size() - 1];
-        }
-        if (!timeStamps.isEmpty())
-            lastT = timeStamps.get(timeStamps.size() - 1);
-        for (int i = cartesianX.size(); i < timeStamps.size(); ++i) {
-            arrayXY[i] = lastX;
-            arrayXY[i + halfCipherSize] = lastY;
-            arrayZT[i] = lastZ;
-            arrayZT[i + halfCipherSize] = timeStamps.get(i);
-        }
-        for (int i = timeStamps.size(); i < halfCipherSize; ++i) {
-            arrayXY[i] = lastX;
-            arrayXY[i + halfCipherSize] = lastY;
-            arrayZT[i] = lastZ;
-            arrayZT[i + halfCipherSize] = lastT;
+    /**
+     * Lays out the samples of a run in the slots the server expects and encrypts them into the
+     * RunItem. Each column is copied straight from the sample buffer into its half of a cipher,
+     * samples past half a cipher are dropped, except for the route which is compressed to fit
+     * the {@link RouteChunk}s. The chunks past the first one are encrypted in parallel.
+     */
+    public void processAndEncrypt(RunSampleBuffer samples, double mElevationGainSum, Bitmap mapSnapshot) {
+
+        Log.e(TAG, "Timestamps: " + samples.getTimeStamps());
+
+        int cipherSize = mLayout.getSlotCount();
+        double[] arrayXY = new double[cipherSize];
+        double[] arrayZT = new double[cipherSize];
+        double[] arrayEG = new double[cipherSize];
+        int halfCipherSize = mLayout.getHalfSlotCount();
+        samples.getElevationGainDeltas().copyTo(arrayEG, 0, halfCipherSize, 0);
+        samples.getAvgPaceDeltas().copyTo(arrayEG, halfCipherSize, halfCipherSize, 0);
+        // the route is only fit in the slots now, each point keeping its own timestamp
+        RouteCompressor route = samples.getRoute();
+        int routePoints = route.compress(RouteChunk.getMaxPoints(mLayout));
+        int[] chunkPoints = RouteChunk.split(mLayout, routePoints);
+        Log.d(TAG, "Encrypting a route of " + routePoints + " points in " + chunkPoints.length + " chunks");
+        // the server times a run from its first to its last timestamp slot, so these are the
+        // first and last samples of the run rather than its first and last fixes
+        RunSampleBuffer.Column timeStamps = samples.getTimeStamps();
+        double startTime = timeStamps.isEmpty() ? Double.NaN : timeStamps.first();
+        double endTime = timeStamps.isEmpty() ? Double.NaN : timeStamps.last();
+        List<Future<byte[][]>> chunkCiphers = encryptChunks(mLayout, route, chunkPoints.length, endTime);
+        if (routePoints == 0) {
+            // without any location the timestamps still date and time the run
+            timeStamps.copyTo(arrayZT, halfCipherSize, halfCipherSize, timeStamps.last());
+        } else {
+            route.writeSlots(arrayXY, arrayZT, 0, halfCipherSize);
+            writeRunTimes(mLayout, arrayZT, startTime, chunkPoints.length == 1 ? endTime : Double.NaN);
         }
 
-        double averageGyroX = 0;
-        double averageGyroY = 0;
-        double averageGyroZ = 0;
-        double averageAccX = 0;
-        double averageAccY = 0;
-        double averageAccZ = 0;
-        for(int i = 0; i < gyroscopeValues.size(); ++i) {
-            averageGyroX += gyroscopeValues.get(i)[0];
-            averageGyroY += gyroscopeValues.get(i)[1];
-            averageGyroZ += gyroscopeValues.get(i)[2];
-            averageAccX += accelerometerValues.get(i)[0];
-            averageAccY += accelerometerValues.get(i)[1];
-            averageAccZ += accelerometerValues.get(i)[2];
-        }
-        if(gyroscopeValues.size() > 0) {
-            averageGyroX /= gyroscopeValues.size();
-            averageGyroY /= gyroscopeValues.size();
-            averageGyroZ /= gyroscopeValues.size();
-            averageAccX /= gyroscopeValues.size();
-            averageAccY /= gyroscopeValues.size();
-            averageAccZ /= gyroscopeValues.size();
-        }
-        double[] gyroData = new double[CIPHER_SIZE];
-        gyroData[0] = averageGyroX;
-        gyroData[1] = averageGyroY;
-        gyroData[2] = averageGyroZ;
-        gyroData[3] = averageAccX;
-        gyroData[4] = averageAccY;
-        gyroData[5] = averageAccZ;
+        // the means of the axes stay in the first slots, the only ones the server model weights
+        SensorStats gyroscope = samples.getGyroscopeStats();
+        SensorStats accelerometer = samples.getAccelerometerStats();
+        double[] gyroData = new double[cipherSize];
+        gyroData[0] = gyroscope.getMean(SensorStats.X);
+        gyroData[1] = gyroscope.getMean(SensorStats.Y);
+        gyroData[2] = gyroscope.getMean(SensorStats.Z);
+        gyroData[3] = accelerometer.getMean(SensorStats.X);
+        gyroData[4] = accelerometer.getMean(SensorStats.Y);
+        gyroData[5] = accelerometer.getMean(SensorStats.Z);
+        int featureOffset = gyroscope.writeFeatures(gyroData, mLayout.getSensorFeaturesOffset());
+        accelerometer.writeFeatures(gyroData, featureOffset);
 
         Calendar today = Calendar.getInstance();
-        int offset = 0;
-        int yearofCentury = today.get(Calendar.YEAR) % 100;
-        offset += 100;
-        int dayOfWeek = today.get(Calendar.DAY_OF_WEEK) - 1 + offset; //[Sunday-Saturday] maps to [1-7] so subtract 1
-        offset += 7;
-        int weekOfYear = today.get(Calendar.WEEK_OF_YEAR) - 1 + offset; //first week is 1 so subtract
-        offset += 53;
-        int dayOfYear = today.get(Calendar.DAY_OF_YEAR) - 1 + offset; //first day is 1 so subtract 1
-        offset += 366;
-        double[] summaryMask = new double[CIPHER_SIZE];
-        summaryMask[yearofCentury] = 1;
-        summaryMask[halfCipherSize + yearofCentury] = 1;
-        summaryMask[dayOfWeek] = 1;
-        summaryMask[halfCipherSize + dayOfWeek] = 1;
-        summaryMask[weekOfYear] = 1;
-        summaryMask[halfCipherSize + weekOfYear] = 1;
-        summaryMask[dayOfYear] = 1;
-        summaryMask[halfCipherSize + dayOfYear] = 1;
-        summaryMask[SUMMARY_ELEVATION_GAIN_OFFSET] = mElevationGainSum;
-        System.arraycopy(summaryMask, 0, summaryMask, CIPHER_SIZE / 2, CIPHER_SIZE / 2);
-        if (mapSnapshot != null) {
-            double[] doublePixels = new double[CIPHER_SIZE];
-            int [] intPixels = new int[CIPHER_SIZE];
+        int yearofCentury = today.get(Calendar.YEAR) % 100 + mLayout.getSummaryYearOffset();
+        int dayOfWeek = today.get(Calendar.DAY_OF_WEEK) - 1 + mLayout.getSummaryDayOfWeekOffset(); //[Sunday-Saturday] maps to [1-7] so subtract 1
+        int weekOfYear = today.get(Calendar.WEEK_OF_YEAR) - 1 + mLayout.getSummaryWeekOfYearOffset(); //first week is 1 so subtract
+        int dayOfYear = today.get(Calendar.DAY_OF_YEAR) - 1 + mLayout.getSummaryDayOffset(); //first day is 1 so subtract 1
+        // only the one-hots and the elevation gain aren't zero, the same in both halves
+        SparseSlots summaryMask = new SparseSlots(cipherSize, 10)
+                .setMirrored(yearofCentury, 1)
+                .setMirrored(dayOfWeek, 1)
+                .setMirrored(weekOfYear, 1)
+                .setMirrored(dayOfYear, 1)
+                .setMirrored(mLayout.getSummaryElevationGainOffset(), mElevationGainSum);
+        double[] doublePixels = null;
+        // keys with fewer slots than pixels go without a thumbnail
+        if (mapSnapshot != null && mLayout.isThumbnailEnabled()) {
+            doublePixels = new double[cipherSize];
+            int [] intPixels = new int[mLayout.getThumbnailSlotCount()];
             mapSnapshot.getPixels(intPixels, 0, MAP_THUMBNAIL_WIDTH, 0, 0, MAP_THUMBNAIL_WIDTH, MAP_THUMBNAIL_HEIGHT);
             for(int i = 0; i < intPixels.length; i++){
                 doublePixels[i] = intPixels[i];
             }
-            String encryptThumbnail = ApplicationState.encrypt(doublePixels);
-            this.mRunItem.setCipherThumbnail(encryptThumbnail);
         }
-        this.mRunItem.setCipherEP(ApplicationState.encrypt(arrayEG));
-        this.mRunItem.setCipher1(ApplicationState.encrypt(arrayXY));
-        this.mRunItem.setCipher2(ApplicationState.encrypt(arrayZT));
-        this.mRunItem.setSummary(ApplicationState.encrypt(summaryMask));
-        this.mRunItem.setCipherGyro(ApplicationState.encrypt(gyroData));
-    }
-
-    public void decrypt() throws Exception {
-        clearValues();
-        if (Checks.isBase64(this.mRunItem.getCipher1()) && Checks.isBase64(this.mRunItem.getCipher2())) {
-            double[] xy = ApplicationState.decrypt(this.mRunItem.getCipher1());
-            double[] zt = ApplicationState.decrypt(this.mRunItem.getCipher2());
-            mCoordinates = pullCoordinates(xy, zt);
-            mTimeStamps = pullTimeStamps(zt);
+        // the totals are only kept locally, and added to the lifetime totals once the run is uploaded
+        double[] totals = new double[cipherSize];
+        new RunTotals(samples.getTotalDistance(), samples.getTotalTime(), 1).writeSlots(totals);
+        // Encrypt the dense columns of the run in a single native call, the summary from its slot assignments
+        byte[][] ciphers;
+        if (doublePixels != null) {
+            ciphers = ApplicationState.encryptBatch(arrayEG, arrayXY, arrayZT, gyroData, totals, doublePixels);
+            this.mRunItem.setCipherThumbnail(ciphers[5]);
         } else {
-            throw new Exception("xyCipher is a bad Base64 string");
+            ciphers = ApplicationState.encryptBatch(arrayEG, arrayXY, arrayZT, gyroData, totals);
         }
-        if (Checks.isBase64(this.mRunItem.getSummary())) {
-            double[] summary = ApplicationState.decrypt(this.mRunItem.getSummary());
-            mElevationGain = calculateElevationGain(summary);
-            mDate = pullDate(summary, mTimeStamps);
-        } else {
-            throw new Exception("encryptedSummary is a bad Base64 string");
+        this.mRunItem.setCipherEP(ciphers[0]);
+        this.mRunItem.setCipher1(ciphers[1]);
+        this.mRunItem.setCipher2(ciphers[2]);
+        this.mRunItem.setCipherGyro(ciphers[3]);
+        this.mRunItem.setCipherTotals(ciphers[4]);
+        this.mRunItem.setSummary(ApplicationState.encryptSparse(summaryMask));
+        this.mRunItem.setChunkPoints(RouteChunk.formatPoints(chunkPoints));
+        if (!chunkCiphers.isEmpty()) {
+            List<byte[]> packed = new ArrayList<>();
+            for (byte[][] chunk : getAll(chunkCiphers))
+                packed.addAll(Arrays.asList(chunk));
+            this.mRunItem.setCipherChunks(RouteChunk.pack(packed));
         }
-        /*
-        The stats array contains from [0, halfLength - 2] the squared delta between each two points
-        sent up to the server. At [halfLength - 1] is the total time.
-         */
-        if (Checks.isBase64(this.mRunItem.getStats())) {
-            double[] stats = ApplicationState.decrypt(this.mRunItem.getStats());
-            mTotalTimeSec = stats[CIPHER_SIZE / 2 - 1];
-            mTotalDistanceKm = sumUpDistances(stats, mTotalTimeSec);
-        } else {
-            throw new Exception("encryptedStats is a bad Base64 string");
+    }
+
+    /**
+     * Starts encrypting the coordinate ciphertexts of the route chunks past the first one. The
+     * route must not change until they're done.
+     *
+     * @return the cipher1 and cipher2 of each chunk
+     */
+    private static List<Future<byte[][]>> encryptChunks(final SlotLayout layout, final RouteCompressor route, int chunkCount,
+                                                        double endTime) {
+        List<Callable<byte[][]>> tasks = new ArrayList<>();
+        for (int i = 1; i < chunkCount; ++i) {
+            final int firstPoint = RouteChunk.getFirstPoint(layout, i);
+            final double chunkEndTime = i == chunkCount - 1 ? endTime : Double.NaN;
+            tasks.add(new Callable<byte[][]>() {
+                @Override
+                public byte[][] call() {
+                    double[] xy = new double[layout.getSlotCount()];
+                    double[] zt = new double[layout.getSlotCount()];
+                    route.writeSlots(xy, zt, firstPoint, layout.getHalfSlotCount());
+                    writeRunTimes(layout, zt, Double.NaN, chunkEndTime);
+                    return ApplicationState.encryptBatch(xy, zt);
+                }
+            });
         }
-        if (Checks.isBase64(this.mRunItem.getCipherEP())) {
-            double[] eG = ApplicationState.decrypt(this.mRunItem.getCipherEP());
-            int halfCipherSize = CIPHER_SIZE / 2;
-            for (int i = 0; i < Math.round(mTotalTimeSec / 2); ++i) {
-                mElevationGainDeltas.add(eG[i]);
-                mAvgPaceDeltas.add(eG[i + halfCipherSize]);
-            }
-        } else {
-            throw new Exception("cipherEp is a bad Base64 string");
+        return submitAll(tasks);
+    }
+
+    /**
+     * Overwrites the first and last timestamp slots of a chunk, the ones the server takes its time
+     * from. The times of the chunks add up, so only the first chunk gets the start of the run and
+     * only the last one its end.
+     *
+     * @param startTime the first timestamp, NaN to keep the one of the route
+     * @param endTime the last timestamp, NaN to keep the one of the route
+     */
+    private static void writeRunTimes(SlotLayout layout, double[] zt, double startTime, double endTime) {
+        int halfCipherSize = layout.getHalfSlotCount();
+        if (!Double.isNaN(startTime))
+            zt[halfCipherSize] = startTime;
+        if (!Double.isNaN(endTime))
+            zt[2 * halfCipherSize - 1] = endTime;
+    }
+
+    private static <T> List<Future<T>> submitAll(List<Callable<T>> tasks) {
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks)
+            futures.add(sChunkExecutor.submit(task));
+        return futures;
+    }
+
+    /**
+     * Waits for every task to be done
+     *
+     * @return their results in order
+     * @throws RuntimeException the one a task threw, or an IllegalStateException if interrupted
+     */
+    private static <T> List<T> getAll(List<Future<T>> futures) {
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> future : futures)
+                results.add(future.get());
+        } catch (InterruptedException e) {
+            for (Future<T> future : futures)
+                future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while processing the route chunks", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
         }
-        if (Checks.isBase64(this.mRunItem.getCipherThumbnail())) {
-            double[] doublePixel = ApplicationState.decrypt(this.mRunItem.getCipherThumbnail());
-            int[]pixel = new int[doublePixel.length];
-            Bitmap bmp = Bitmap.createBitmap(MAP_THUMBNAIL_WIDTH, MAP_THUMBNAIL_HEIGHT, Bitmap.Config.ARGB_8888);
-            for(int i = 0; i< pixel.length; i++)
-                pixel[i]= Double.valueOf(doublePixel[i]).intValue();
-            bmp.setPixels(pixel, 0, MAP_THUMBNAIL_WIDTH, 0, 0, MAP_THUMBNAIL_WIDTH, MAP_THUMBNAIL_HEIGHT);
-            mThumbnail = bmp;
-        } else {
-            throw new Exception("cipherThumbnail is a bad Base64 string");
+        return results;
+    }
+
+    /**
+     * Seeds the facets a cached RunSummary already holds, so reading them doesn't decrypt anything
+     */
+    synchronized void seed(RunSummary summary) {
+        mTotalDistanceKm = summary.getTotalDistance();
+        mTotalTimeSec = summary.getTotalTime();
+        mStatsReady = true;
+        mElevationGain = summary.getElevationGain();
+        Calendar date = summary.getDate();
+        if (date != null) {
+            mYear = date.get(Calendar.YEAR);
+            mDayOfYear = date.get(Calendar.DAY_OF_YEAR);
+            // a date without the start hour is completed once the timestamps are decrypted
+            mDate = summary.hasStartTime() ? date : null;
         }
+        mSummaryReady = date != null;
+        mMlResult = summary.getMlResult();
+        mMlResultReady = true;
+    }
 
-        if (Checks.isBase64(this.mRunItem.getCipherGyro())) {
-            double[] gemmResult = ApplicationState.decrypt(this.mRunItem.getCipherGyro());
-            mMlResult = 1.0 / (1.0 + Math.exp(-gemmResult[0]));
-        } else {
-            throw new Exception("cipherGyro is a bad Base64 string");
+    /**
+     * Decrypts every facet that hasn't been decrypted yet with a single native call. The facets
+     * are otherwise decrypted one by one, the first time one of the getters needs them.
+     */
+    public synchronized void decrypt() throws Exception {
+        if (Checks.isNullOrEmpty(this.mRunItem.getCipher1()) || Checks.isNullOrEmpty(this.mRunItem.getCipher2())) {
+            throw new Exception("xyCipher is missing");
+        }
+        if (Checks.isNullOrEmpty(this.mRunItem.getSummary())) {
+            throw new Exception("encryptedSummary is missing");
+        }
+        if (Checks.isNullOrEmpty(this.mRunItem.getStats())) {
+            throw new Exception("encryptedStats is missing");
+        }
+        if (Checks.isNullOrEmpty(this.mRunItem.getCipherEP())) {
+            throw new Exception("cipherEp is missing");
+        }
+        if (Checks.isNullOrEmpty(this.mRunItem.getCipherGyro())) {
+            throw new Exception("cipherGyro is missing");
+        }
+        boolean needCoordinates = mCoordinates == null;
+        boolean needZt = needCoordinates || !mTimeStampsReady;
+        List<byte[]> ciphers = new ArrayList<>();
+        if (needCoordinates)
+            ciphers.add(mRunItem.getCipher1());
+        if (needZt)
+            ciphers.add(mRunItem.getCipher2());
+        if (!mSummaryReady)
+            ciphers.add(mRunItem.getSummary());
+        if (!mStatsReady)
+            ciphers.add(mRunItem.getStats());
+        if (!mDeltasReady)
+            ciphers.add(mRunItem.getCipherEP());
+        if (!mMlResultReady)
+            ciphers.add(mRunItem.getCipherGyro());
+        if (ciphers.isEmpty())
+            return;
+
+        // Decrypt the missing facets in a single native call, straight into this thread's slot buffer
+        DoubleBuffer[] plains = decryptCiphers(mLayout, ciphers.toArray(new byte[ciphers.size()][]));
+        int next = 0;
+        DoubleBuffer xy = needCoordinates ? plains[next++] : null;
+        DoubleBuffer zt = needZt ? plains[next++] : null;
+        if (!mTimeStampsReady)
+            readTimeStamps(zt);
+        if (needCoordinates)
+            mCoordinates = stitchCoordinates(pullCoordinates(mLayout, xy, zt, mLayout.getHalfSlotCount()));
+        if (!mSummaryReady)
+            readSummary(plains[next++]);
+        if (!mStatsReady)
+            readStats(plains[next++]);
+        if (!mDeltasReady)
+            readDeltas(plains[next++]);
+        if (!mMlResultReady)
+            readMlResult(plains[next]);
+        getDate();
+    }
+
+    /**
+     * Decrypts ciphertexts with a single native call into this thread's slot buffer.
+     *
+     * @return a view over the slots of each ciphertext, only valid until the next call on this thread
+     */
+    private static DoubleBuffer[] decryptCiphers(SlotLayout layout, byte[]... ciphers) {
+        int slotCount = layout.getSlotCount();
+        ByteBuffer slotBuffer = sDecryptSlotBuffer.get();
+        if (slotBuffer == null || slotBuffer.asDoubleBuffer().capacity() < ciphers.length * slotCount) {
+            slotBuffer = ApplicationState.allocateSlotBuffer(Math.max(DECRYPTED_CIPHER_COUNT, ciphers.length) * slotCount);
+            sDecryptSlotBuffer.set(slotBuffer);
+        }
+        ApplicationState.decryptBatchIntoBuffer(slotBuffer, slotCount, ciphers);
+        DoubleBuffer slots = slotBuffer.asDoubleBuffer();
+        DoubleBuffer[] plains = new DoubleBuffer[ciphers.length];
+        for (int i = 0; i < ciphers.length; ++i)
+            plains[i] = plainAt(slots, i, slotCount);
+        return plains;
+    }
+
+    /**
+     * @return a view over the slots of the index-th ciphertext decrypted into the slot buffer
+     */
+    private static DoubleBuffer plainAt(DoubleBuffer slots, int index, int slotCount) {
+        slots.limit((index + 1) * slotCount);
+        slots.position(index * slotCount);
+        DoubleBuffer plain = slots.slice();
+        slots.clear();
+        return plain;
+    }
+
+    /**
+     * @throws IllegalStateException if the ciphertext of a facet is missing
+     */
+    private static byte[] requireCipher(byte[] cipher, String name) {
+        if (Checks.isNullOrEmpty(cipher))
+            throw new IllegalStateException(name + " is missing");
+        return cipher;
+    }
+
+    private synchronized void ensureStats() {
+        if (!mStatsReady)
+            readStats(decryptCiphers(mLayout, requireCipher(mRunItem.getStats(), "encryptedStats"))[0]);
+    }
+
+    private synchronized void ensureSummary() {
+        if (!mSummaryReady)
+            readSummary(decryptCiphers(mLayout, requireCipher(mRunItem.getSummary(), "encryptedSummary"))[0]);
+    }
+
+    private synchronized void ensureTimeStamps() {
+        if (!mTimeStampsReady)
+            readTimeStamps(decryptCiphers(mLayout, requireCipher(mRunItem.getCipher2(), "xyCipher"))[0]);
+    }
+
+    private synchronized void ensureCoordinates() {
+        if (mCoordinates == null) {
+            DoubleBuffer[] plains = decryptCiphers(mLayout, requireCipher(mRunItem.getCipher1(), "xyCipher"),
+                    requireCipher(mRunItem.getCipher2(), "xyCipher"));
+            if (!mTimeStampsReady)
+                readTimeStamps(plains[1]);
+            mCoordinates = stitchCoordinates(pullCoordinates(mLayout, plains[0], plains[1], mLayout.getHalfSlotCount()));
+        }
+    }
+
+    private synchronized void ensureDeltas() {
+        // the number of deltas comes from the stats, decrypt them first so they don't share the slot buffer
+        ensureStats();
+        if (!mDeltasReady)
+            readDeltas(decryptCiphers(mLayout, requireCipher(mRunItem.getCipherEP(), "cipherEp"))[0]);
+    }
+
+    private synchronized void ensureMlResult() {
+        if (!mMlResultReady)
+            readMlResult(decryptCiphers(mLayout, requireCipher(mRunItem.getCipherGyro(), "cipherGyro"))[0]);
+    }
+
+    /*
+    The stats array contains from [0, halfLength - 2] the squared delta between each two points
+    sent up to the server. At [halfLength - 1] is the total time, see SlotLayout.getStatsTimeSlot.
+    Each route chunk has stats of its own, the ones past the first chunk are decrypted in parallel
+    and added up, the chunks sharing their end points.
+     */
+    private void readStats(DoubleBuffer stats) {
+        final SlotLayout layout = mLayout;
+        List<RouteChunk> chunks = mRunItem.getRouteChunks();
+        List<Callable<double[]>> tasks = new ArrayList<>();
+        for (final RouteChunk chunk : chunks.subList(1, chunks.size())) {
+            final byte[] chunkStats = requireCipher(chunk.getStats(), "chunkStats");
+            tasks.add(new Callable<double[]>() {
+                @Override
+                public double[] call() {
+                    DoubleBuffer plain = decryptCiphers(layout, chunkStats)[0];
+                    double time = plain.get(layout.getStatsTimeSlot());
+                    return new double[]{ time, sumUpDistances(layout, plain, time, chunk.getPoints()) };
+                }
+            });
+        }
+        List<Future<double[]>> chunkTotals = submitAll(tasks);
+        mTotalTimeSec = stats.get(layout.getStatsTimeSlot());
+        mTotalDistanceKm = sumUpDistances(layout, stats, mTotalTimeSec, chunks.get(0).getPoints());
+        for (double[] totals : getAll(chunkTotals)) {
+            mTotalTimeSec += totals[0];
+            mTotalDistanceKm += totals[1];
+        }
+        mStatsReady = true;
+    }
+
+    private void readSummary(DoubleBuffer summary) {
+        mElevationGain = calculateElevationGain(summary);
+        mYear = pullYear(summary);
+        mDayOfYear = pullDayOfYear(summary);
+        mSummaryReady = true;
+    }
+
+    private void readTimeStamps(DoubleBuffer zt) {
+        mTimeStamps = pullTimeStamps(zt);
+        mTimeStampsReady = true;
+    }
+
+    // needs the stats to be read first
+    private void readDeltas(DoubleBuffer eG) {
+        List<Double> elevationGainDeltas = new ArrayList<>();
+        List<Double> avgPaceDeltas = new ArrayList<>();
+        int halfCipherSize = mLayout.getHalfSlotCount();
+        // the run may be longer than the deltas, those past half a cipher are dropped
+        long deltaCount = Math.min(halfCipherSize, Math.round(mTotalTimeSec / 2));
+        for (int i = 0; i < deltaCount; ++i) {
+            elevationGainDeltas.add(eG.get(i));
+            avgPaceDeltas.add(eG.get(i + halfCipherSize));
         }
+        mElevationGainDeltas = elevationGainDeltas;
+        mAvgPaceDeltas = avgPaceDeltas;
+        mDeltasReady = true;
+    }
+
+    /**
+     * Decrypts the map thumbnail of the run into a thumbnail sized bitmap, reusing it rather than
+     * allocating a new one. The thumbnail isn't kept here, see {@link ThumbnailCache}.
+     */
+    synchronized void decryptThumbnail(Bitmap thumbnail) {
+        DoubleBuffer doublePixel = decryptCiphers(mLayout, requireCipher(mRunItem.getCipherThumbnail(), "cipherThumbnail"))[0];
+        int[] pixel = sThumbnailPixels.get();
+        for (int i = 0; i < pixel.length; i++)
+            pixel[i] = (int) doublePixel.get(i);
+        thumbnail.setPixels(pixel, 0, MAP_THUMBNAIL_WIDTH, 0, 0, MAP_THUMBNAIL_WIDTH, MAP_THUMBNAIL_HEIGHT);
     }
 
-    private void clearValues() {
-        mTotalDistanceKm = 0;
-        mTotalTimeSec = 0;
-        mElevationGain = 0;
-        mElevationGainDeltas = new ArrayList<>();
-        mAvgPaceDeltas = new ArrayList<>();
+    private void readMlResult(DoubleBuffer gemmResult) {
+        mMlResult = 1.0 / (1.0 + Math.exp(-gemmResult.get(0)));
+        mMlResultReady = true;
     }
 
-    private double sumUpDistances(double[] stats, double totalTime) {
+    /**
+     * @param points the number of points of the route chunk, or {@link RouteChunk#UNKNOWN_POINTS}
+     *               for runs recorded every 2 seconds before routes were split
+     */
+    private static double sumUpDistances(SlotLayout layout, DoubleBuffer stats, double totalTime, int points) {
         double distance = 0;
-        int endCipher = CIPHER_SIZE / 2 - 1;
-        for (int i = 0; i < endCipher && i < Math.round(totalTime / 2); ++i) {
-            double stat = Math.abs(stats[i]);
+        int endCipher = layout.getStatsTimeSlot();
+        long deltaCount = points != RouteChunk.UNKNOWN_POINTS ? points - 1 : Math.round(totalTime / 2);
+        for (int i = 0; i < endCipher && i < deltaCount; ++i) {
+            double stat = Math.abs(stats.get(i));
             if (stat >= 0)
                 distance += Math.sqrt(stat);
         }
         return distance;
     }
 
-    private double calculateElevationGain(double[] summary) {
+    private double calculateElevationGain(DoubleBuffer summary) {
         // find first mask to divide elevation slot by
-        for (int i = 0; i < 100; ++i)
-            if (summary[i] > 0.0001)
-                return summary[SUMMARY_ELEVATION_GAIN_OFFSET] / summary[i];
+        for (int i = mLayout.getSummaryYearOffset(); i < mLayout.getSummaryDayOfWeekOffset(); ++i)
+            if (summary.get(i) > 0.0001)
+                return summary.get(mLayout.getSummaryElevationGainOffset()) / summary.get(i);
         return 0;
     }
 
-    private Calendar pullDate(double[] summary, double[] timestamps) {
-
-        int actualYear = 2000;
-        int actualDay = 0;
-        int actualHour = 0;
+    private int pullYear(DoubleBuffer summary) {
+        for (int year = 0; year < mLayout.getSummaryDayOffset(); ++year)
+            if (summary.get(year) > 1) //TODO: The server seems to be down scaling the 1 to roughly this value. Change this back to 1 after fixing server side.
+                return year + 2000; //TODO: maybe make this app persist beyond the year 2100
+        return 2000;
+    }
 
-        for (int year = 0; year < SUMMARY_DAY_OFFSET; ++year)
-            if (summary[year] > 1) { //TODO: The server seems to be down scaling the 1 to roughly this value. Change this back to 1 after fixing server side.
-                actualYear = year + 2000; //TODO: maybe make this app persist beyond the year 2100
-                break;
-            }
+    private int pullDayOfYear(DoubleBuffer summary) {
         for (int day = 0; day < 366; ++day)
-            if (summary[day + SUMMARY_DAY_OFFSET] > 1) { //TODO: The server seems to be down scaling the 1 to roughly this value. Change this back to 1 after fixing server side.
-                actualDay = day + 1;// add 1 because first day starts at 1
-                break;
-            }
+            if (summary.get(day + mLayout.getSummaryDayOffset()) > 1) //TODO: The server seems to be down scaling the 1 to roughly this value. Change this back to 1 after fixing server side.
+                return day + 1;// add 1 because first day starts at 1
+        return 0;
+    }
 
+    private Calendar pullDate(int actualYear, int actualDay, double[] timestamps) {
+        int actualHour = 0;
         if (timestamps != null && timestamps.length > 0) {
             double startTime = timestamps[0];
             actualHour = DateUtil.getTimeFromSeconds(startTime).getHours();
@@ -288,19 +563,75 @@ public class ServerCalculations {
         return calendar;
     }
 
-    private LatLng[] pullCoordinates(double[] xy, double[] zt) {
-        int halfCipherSize = CIPHER_SIZE / 2;
-        LatLng[] coordinates = new LatLng[halfCipherSize];
+    /**
+     * @param count the number of points to read, at most half a cipher
+     */
+    private static LatLng[] pullCoordinates(SlotLayout layout, DoubleBuffer xy, DoubleBuffer zt, int count) {
+        int halfCipherSize = layout.getHalfSlotCount();
+        LatLng[] coordinates = new LatLng[Math.max(0, Math.min(count, halfCipherSize))];
         for (int i = 0; i < coordinates.length; ++i) {
-            double x = xy[i];
-            double y = xy[i + halfCipherSize];
-            double z = zt[i];
+            double x = xy.get(i);
+            double y = xy.get(i + halfCipherSize);
+            double z = zt.get(i);
             coordinates[i] = cartesianToLatLng(x, y, z);
         }
         return coordinates;
     }
 
-    private LatLng cartesianToLatLng(double x, double y, double z) {
+    /**
+     * Decrypts the coordinates of the route chunks past the first one in parallel and appends
+     * them to the coordinates of the first chunk, each chunk without the point it shares with
+     * the chunk before it
+     *
+     * @param first the coordinates of the first chunk, as many as its slots
+     * @return the first coordinates as they are if the route isn't split
+     */
+    private LatLng[] stitchCoordinates(LatLng[] first) {
+        final SlotLayout layout = mLayout;
+        List<RouteChunk> chunks = mRunItem.getRouteChunks();
+        if (chunks.size() == 1)
+            return first;
+        List<Callable<LatLng[]>> tasks = new ArrayList<>();
+        for (final RouteChunk chunk : chunks.subList(1, chunks.size())) {
+            final byte[] cipher1 = requireCipher(chunk.getCipher1(), "cipherChunks");
+            final byte[] cipher2 = requireCipher(chunk.getCipher2(), "cipherChunks");
+            tasks.add(new Callable<LatLng[]>() {
+                @Override
+                public LatLng[] call() {
+                    DoubleBuffer[] plains = decryptCiphers(layout, cipher1, cipher2);
+                    return pullCoordinates(layout, plains[0], plains[1], chunk.getPoints());
+                }
+            });
+        }
+        List<LatLng[]> rest = getAll(submitAll(tasks));
+        int firstPoints = chunks.get(0).getPoints();
+        int size = firstPoints;
+        for (LatLng[] coordinates : rest)
+            size += coordinates.length - 1;
+        LatLng[] stitched = Arrays.copyOf(first, size);
+        int next = firstPoints;
+        for (LatLng[] coordinates : rest) {
+            System.arraycopy(coordinates, 1, stitched, next, coordinates.length - 1);
+            next += coordinates.length - 1;
+        }
+        return stitched;
+    }
+
+    /**
+     * Converts a position to the cartesian coordinates that get encrypted, the inverse of
+     * {@link #cartesianToLatLng(double, double, double)}
+     *
+     * @param cartesian receives x, y and z
+     */
+    public static void latLngToCartesian(double latitudeDegrees, double longitudeDegrees, double[] cartesian) {
+        double latitudeRadians = Math.toRadians(latitudeDegrees);
+        double longitudeRadians = Math.toRadians(longitudeDegrees);
+        cartesian[0] = EARTH_RADIUS * Math.sin(longitudeRadians) * Math.cos(latitudeRadians);
+        cartesian[1] = EARTH_RADIUS * Math.sin(latitudeRadians);
+        cartesian[2] = EARTH_RADIUS * Math.cos(longitudeRadians) * Math.cos(latitudeRadians);
+    }
+
+    private static LatLng cartesianToLatLng(double x, double y, double z) {
         x /= EARTH_RADIUS;
         y /= EARTH_RADIUS;
         z /= EARTH_RADIUS;
@@ -312,19 +643,22 @@ public class ServerCalculations {
         return new LatLng(Math.toDegrees(latitudeRadians), Math.toDegrees(longitudeRadians));
     }
 
-    private double[] pullTimeStamps(double[] zt) {
-        int halfCipherSize = CIPHER_SIZE / 2;
+    private double[] pullTimeStamps(DoubleBuffer zt) {
+        int halfCipherSize = mLayout.getHalfSlotCount();
         double[] timeStamps = new double[halfCipherSize];
-        System.arraycopy(zt, halfCipherSize, timeStamps, 0, halfCipherSize);
+        zt.position(halfCipherSize);
+        zt.get(timeStamps, 0, halfCipherSize);
+        zt.rewind();
         return timeStamps;
     }
 
-    // Public getters
+    // Public getters, each one only decrypts the ciphertexts it needs the first time it's called
 
     /**
      * @return total distance in Kilometers
      */
     public double getTotalDistance() {
+        ensureStats();
         return mTotalDistanceKm;
     }
 
@@ -332,6 +666,7 @@ public class ServerCalculations {
      * @return total time in seconds
      */
     public double getTotalTime() {
+        ensureStats();
         return mTotalTimeSec;
     }
 
@@ -339,6 +674,7 @@ public class ServerCalculations {
      * @return average speed in s/km
      */
     public double getAverageSpeed() {
+        ensureStats();
         if (this.mTotalDistanceKm >= 0.001) {
             return mTotalTimeSec / mTotalDistanceKm;
         }
@@ -346,34 +682,59 @@ public class ServerCalculations {
     }
 
     public double getElevationGain() {
+        ensureSummary();
         return mElevationGain;
     }
 
-    public Calendar getDate() {
+    public synchronized Calendar getDate() {
+        if (mDate == null) {
+            ensureSummary();
+            ensureTimeStamps();
+            mDate = pullDate(mYear, mDayOfYear, mTimeStamps);
+        }
         return mDate;
     }
 
+    /**
+     * @return the day of the run, with its start hour only if {@link #hasStartTime()}. Unlike
+     * {@link #getDate()} this never decrypts the timestamps, only the summary.
+     */
+    public synchronized Calendar getDay() {
+        if (hasStartTime())
+            return getDate();
+        ensureSummary();
+        return pullDate(mYear, mDayOfYear, null);
+    }
+
+    /**
+     * @return true if the start hour of the run is known without decrypting anything more
+     */
+    public synchronized boolean hasStartTime() {
+        return mDate != null || mTimeStampsReady;
+    }
+
     public LatLng[] getCoordinates() {
+        ensureCoordinates();
         return mCoordinates;
     }
 
     public double[] getTimeStamps() {
+        ensureTimeStamps();
         return mTimeStamps;
     }
 
     public List<Double> getElevationGainDeltas() {
+        ensureDeltas();
         return mElevationGainDeltas;
     }
 
     public List<Double> getAvgPaceDeltas() {
+        ensureDeltas();
         return mAvgPaceDeltas;
     }
 
-    public Bitmap getThumbnail() {
-        return mThumbnail;
-    }
-
     public double getMlResult() {
+        ensureMlResult();
         return mMlResult;
     }
 
@@ -0,0 +1,122 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import com.microsoft.asurerun.util.Configuration;
+
+import static com.microsoft.asurerun.util.MapUtil.MAP_THUMBNAIL_HEIGHT;
+import static com.microsoft.asurerun.util.MapUtil.MAP_THUMBNAIL_WIDTH;
+
+/**
+ * Where the values of a run go in the slots of its ciphertexts, planned from the poly modulus the
+ * keys are made with. A ciphertext has half the poly modulus of slots, and the server splits the
+ * coordinate, delta, stats and summary ciphertexts in halves, so most columns get half of them.
+ *
+ * The summary holds one-hot slots for the year of the century, the day of the week, the week of
+ * the year and the day of the year, then the elevation gain, the same in both halves. The map
+ * thumbnail is only encrypted when its pixels fit in a ciphertext.
+ */
+public class SlotLayout {
+    private static final int SUMMARY_YEARS = 100;
+    private static final int SUMMARY_DAYS_OF_WEEK = 7;
+    private static final int SUMMARY_WEEKS_OF_YEAR = 53;
+    private static final int SUMMARY_DAYS_OF_YEAR = 366;
+    // the means of the gyroscope's then the accelerometer's axes, the only slots the server model weights
+    private static final int SENSOR_MEANS = 6;
+
+    private static SlotLayout sActive;
+
+    private final int mPolyModulus;
+    private final int mSlotCount;
+    private final int mSummaryDayOfWeekOffset;
+    private final int mSummaryWeekOfYearOffset;
+    private final int mSummaryDayOffset;
+    private final int mSummaryElevationGainOffset;
+    private final boolean mThumbnailEnabled;
+
+    /**
+     * @return the layout for the poly modulus of the configuration, the default one until the
+     * configuration is loaded
+     */
+    public static synchronized SlotLayout getActive() {
+        int polyModulus = Configuration.getPolyModulus();
+        if (polyModulus <= 0)
+            polyModulus = Configuration.DEFAULT_POLY_MODULUS;
+        if (sActive == null || sActive.mPolyModulus != polyModulus)
+            sActive = new SlotLayout(polyModulus);
+        return sActive;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the poly modulus isn't a power of two, or too small
+     * for half a ciphertext to hold the summary
+     */
+    public SlotLayout(int polyModulus) {
+        if (polyModulus <= 0 || Integer.bitCount(polyModulus) != 1)
+            throw new IllegalArgumentException("The poly modulus must be a power of two: " + polyModulus);
+        mPolyModulus = polyModulus;
+        mSlotCount = polyModulus / 2;
+        int offset = SUMMARY_YEARS;
+        mSummaryDayOfWeekOffset = offset;
+        offset += SUMMARY_DAYS_OF_WEEK;
+        mSummaryWeekOfYearOffset = offset;
+        offset += SUMMARY_WEEKS_OF_YEAR;
+        mSummaryDayOffset = offset;
+        offset += SUMMARY_DAYS_OF_YEAR;
+        mSummaryElevationGainOffset = offset++;
+        if (offset > getHalfSlotCount() || getSensorFeaturesOffset() + 2 * SensorStats.FEATURE_COUNT > mSlotCount)
+            throw new IllegalArgumentException("A poly modulus of " + polyModulus + " can't hold a run");
+        mThumbnailEnabled = getThumbnailSlotCount() <= mSlotCount;
+    }
+
+    public int getPolyModulus() { return mPolyModulus; }
+
+    /**
+     * @return the number of slots of a ciphertext
+     */
+    public int getSlotCount() { return mSlotCount; }
+
+    /**
+     * @return the number of slots of half a ciphertext, the samples a column can hold
+     */
+    public int getHalfSlotCount() { return mSlotCount / 2; }
+
+    /**
+     * @return the slot of the stats holding the total time, right after the squared deltas
+     */
+    public int getStatsTimeSlot() { return getHalfSlotCount() - 1; }
+
+    /**
+     * @return the first slot of the year of the century in the summary
+     */
+    public int getSummaryYearOffset() { return 0; }
+    public int getSummaryDayOfWeekOffset() { return mSummaryDayOfWeekOffset; }
+    public int getSummaryWeekOfYearOffset() { return mSummaryWeekOfYearOffset; }
+    public int getSummaryDayOffset() { return mSummaryDayOffset; }
+    public int getSummaryElevationGainOffset() { return mSummaryElevationGainOffset; }
+
+    /**
+     * The extra sensor features of the ML cipher, the gyroscope's then the accelerometer's, start
+     * right after the means of the axes. See {@link SensorStats#writeFeatures(double[], int)}.
+     */
+    public int getSensorFeaturesOffset() { return SENSOR_MEANS; }
+
+    /**
+     * @return true if the map thumbnail fits in a ciphertext and gets encrypted
+     */
+    public boolean isThumbnailEnabled() { return mThumbnailEnabled; }
+
+    /**
+     * @return the number of slots the pixels of the map thumbnail take
+     */
+    public int getThumbnailSlotCount() { return MAP_THUMBNAIL_WIDTH * MAP_THUMBNAIL_HEIGHT; }
+
+    @Override
+    public String toString() {
+        return "SlotLayout{" +
+                "mPolyModulus=" + mPolyModulus +
+                ", mSlotCount=" + mSlotCount +
+                ", mThumbnailEnabled=" + mThumbnailEnabled +
+                '}';
+    }
+}
@@ -0,0 +1,76 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import java.util.Arrays;
+
+/**
+ * The slots of a ciphertext that are all zero but a few, such as the one-hots of the summary,
+ * built as slot assignments. The whole slot vector is then only laid out by the native encoder,
+ * see {@link ApplicationState#encryptSparse(SparseSlots)}.
+ */
+public class SparseSlots {
+    private final int mSlotCount;
+    private int[] mSlots;
+    private double[] mValues;
+    private int mSize;
+
+    /**
+     * @param slotCount the number of slots of the ciphertext
+     * @param capacity the number of assignments expected, grown as needed
+     */
+    public SparseSlots(int slotCount, int capacity) {
+        mSlotCount = slotCount;
+        mSlots = new int[Math.max(1, capacity)];
+        mValues = new double[mSlots.length];
+    }
+
+    /**
+     * Assigns a value to a slot, a later assignment of the same slot wins
+     *
+     * @throws IllegalArgumentException if the slot is past the slots of the ciphertext
+     */
+    public SparseSlots set(int slot, double value) {
+        if (slot < 0 || slot >= mSlotCount)
+            throw new IllegalArgumentException("Slot " + slot + " isn't within " + mSlotCount + " slots");
+        if (mSize == mSlots.length) {
+            mSlots = Arrays.copyOf(mSlots, mSize * 2);
+            mValues = Arrays.copyOf(mValues, mSize * 2);
+        }
+        mSlots[mSize] = slot;
+        mValues[mSize] = value;
+        ++mSize;
+        return this;
+    }
+
+    /**
+     * Assigns a value to a slot of the first half of the ciphertext and to the same slot of the
+     * second half
+     *
+     * @throws IllegalArgumentException if the slot is past the first half
+     */
+    public SparseSlots setMirrored(int slot, double value) {
+        int halfSlotCount = mSlotCount / 2;
+        if (slot >= halfSlotCount)
+            throw new IllegalArgumentException("Slot " + slot + " isn't within the first " + halfSlotCount + " slots");
+        set(slot, value);
+        return set(halfSlotCount + slot, value);
+    }
+
+    public int getSlotCount() { return mSlotCount; }
+
+    /**
+     * @return the assigned slots, only the first {@link #size()} are used
+     */
+    int[] getSlots() { return mSlots; }
+
+    /**
+     * @return the values of the assigned slots, only the first {@link #size()} are used
+     */
+    double[] getValues() { return mValues; }
+
+    /**
+     * @return the number of assignments
+     */
+    public int size() { return mSize; }
+}
@@ -2,28 +2,44 @@
 // Licensed under the MIT License.
 package com.microsoft.asurerun.model;
 
+/**
+ * The {@link RunTotals} of every run of a key, added up by the server as the runs come in
+ */
 public class SummaryItem {
+    public static final String COLUMN_NAME_ID = "id";
+    public static final String COLUMN_NAME_KEY_ID = "keyId";
 
-    @com.google.gson.annotations.SerializedName("id")
+    @com.google.gson.annotations.SerializedName(COLUMN_NAME_ID)
     private String mId;
 
-    @com.google.gson.annotations.SerializedName("keyId")
+    @com.google.gson.annotations.SerializedName(COLUMN_NAME_KEY_ID)
     private String mKeyId;
 
     @com.google.gson.annotations.SerializedName("userId")
     private String mUserId;
 
+    /**
+     * The encrypted RunTotals, a patch adds the one sent to the one stored
+     */
     @com.google.gson.annotations.SerializedName("summary")
-    private String mSummary;
+    private byte[] mSummary;
 
     public SummaryItem() {
     }
 
-    public String getSummary() {
+    public String getId() {
+        return mId;
+    }
+
+    public void setId(String mId) {
+        this.mId = mId;
+    }
+
+    public byte[] getSummary() {
         return mSummary;
     }
 
-    public void setSummary(String mSummary) {
+    public void setSummary(byte[] mSummary) {
         this.mSummary = mSummary;
     }
 
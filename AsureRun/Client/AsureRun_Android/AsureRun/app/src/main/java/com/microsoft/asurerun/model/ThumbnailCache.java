@@ -0,0 +1,172 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.model;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.provider.BaseColumns;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+
+import static com.microsoft.asurerun.util.MapUtil.MAP_THUMBNAIL_HEIGHT;
+import static com.microsoft.asurerun.util.MapUtil.MAP_THUMBNAIL_WIDTH;
+
+/**
+ * The decrypted map thumbnails of the runs, in three tiers: a size bounded LRU of bitmaps in
+ * memory, the compressed PNGs of the summary cache on disk, and last the cipherThumbnail of the
+ * run. Runs don't hold on to their thumbnail, so the memory thumbnails take is capped however
+ * long the history is.
+ *
+ * Bitmaps evicted from memory go to a small pool and are decoded or decrypted into again, all
+ * thumbnails having the same size. An evicted bitmap must then no longer be shown: the memory
+ * tier holds many more thumbnails than fit on screen, and a row looks its thumbnail up again
+ * every time it is bound, so only thumbnails long scrolled away are ever evicted.
+ */
+public class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+    // 128 thumbnails of 64x64 ARGB_8888
+    private static final int MAX_MEMORY_BYTES = 2 * 1024 * 1024;
+    private static final int MAX_POOL_SIZE = 8;
+
+    public static class ThumbnailEntry implements BaseColumns {
+        public static final String TABLE_NAME = "thumbnails";
+        public static final String COLUMN_NAME_RUN_ID = "runId";
+        public static final String COLUMN_NAME_KEY_ID = "keyId";
+        public static final String COLUMN_NAME_CIPHER_HASH = "cipherHash";
+        public static final String COLUMN_NAME_PNG = "png";
+    }
+
+    private static ThumbnailCache sInstance;
+
+    private final LruCache<String, Bitmap> mMemory;
+    private final ArrayDeque<Bitmap> mPool = new ArrayDeque<>();
+
+    public static synchronized ThumbnailCache getInstance() {
+        if (sInstance == null)
+            sInstance = new ThumbnailCache();
+        return sInstance;
+    }
+
+    private ThumbnailCache() {
+        mMemory = new LruCache<String, Bitmap>(MAX_MEMORY_BYTES) {
+            @Override
+            protected int sizeOf(String runId, Bitmap thumbnail) {
+                return thumbnail.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String runId, Bitmap oldThumbnail, Bitmap newThumbnail) {
+                // removed or replaced thumbnails may still be on screen, only evicted ones are reused
+                if (evicted)
+                    release(oldThumbnail);
+            }
+        };
+    }
+
+    /**
+     * @return the thumbnail of the run if it's in memory, null otherwise. Never blocks.
+     */
+    public Bitmap getCached(String runId) {
+        return runId != null ? mMemory.get(runId) : null;
+    }
+
+    /**
+     * Gets the thumbnail of a run, reading it from the summary cache or decrypting it if it isn't
+     * in memory. This may decrypt, so it must not be called from the main thread.
+     */
+    public Bitmap load(RunItem item) throws Exception {
+        String runId = item.getId();
+        Bitmap thumbnail = getCached(runId);
+        if (thumbnail != null)
+            return thumbnail;
+        // looks the run up in the summary cache, which gives its cipher hash
+        ServerCalculations serverCalculation = item.getServerCalculations();
+        String cipherHash = item.getSummaryCipherHash();
+        RunSummaryDbHelper summaryDb = ApplicationState.getRunSummaryDb();
+        boolean cacheable = summaryDb != null && runId != null && cipherHash != null;
+        if (cacheable) {
+            byte[] png = summaryDb.getThumbnail(runId, cipherHash);
+            if (png != null)
+                thumbnail = decode(png);
+        }
+        if (thumbnail == null) {
+            thumbnail = obtain();
+            try {
+                serverCalculation.decryptThumbnail(thumbnail);
+            } catch (RuntimeException e) {
+                release(thumbnail);
+                throw e;
+            }
+            if (cacheable)
+                summaryDb.putThumbnail(runId, cipherHash, compress(thumbnail));
+        }
+        if (runId == null)
+            return thumbnail;
+        synchronized (mMemory) {
+            // another thread may have loaded the same run meanwhile, keep the one that may be shown
+            Bitmap loaded = mMemory.get(runId);
+            if (loaded != null) {
+                release(thumbnail);
+                return loaded;
+            }
+            mMemory.put(runId, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Drops the thumbnail of a run from memory, the summary cache takes care of the disk
+     */
+    public void remove(String runId) {
+        if (runId != null)
+            mMemory.remove(runId);
+    }
+
+    public void clear() {
+        mMemory.evictAll();
+    }
+
+    /**
+     * @return a thumbnail sized bitmap from the pool, or a new one if the pool is empty
+     */
+    private Bitmap obtain() {
+        synchronized (mPool) {
+            Bitmap pooled = mPool.poll();
+            if (pooled != null)
+                return pooled;
+        }
+        return Bitmap.createBitmap(MAP_THUMBNAIL_WIDTH, MAP_THUMBNAIL_HEIGHT, Bitmap.Config.ARGB_8888);
+    }
+
+    private void release(Bitmap thumbnail) {
+        synchronized (mPool) {
+            if (mPool.size() < MAX_POOL_SIZE)
+                mPool.push(thumbnail);
+        }
+    }
+
+    private Bitmap decode(byte[] png) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inBitmap = obtain();
+        Bitmap thumbnail = null;
+        try {
+            thumbnail = BitmapFactory.decodeByteArray(png, 0, png.length, options);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Couldn't decode a cached thumbnail", e);
+        }
+        // the thumbnail is decrypted again instead
+        if (thumbnail == null)
+            release(options.inBitmap);
+        return thumbnail;
+    }
+
+    private static byte[] compress(Bitmap thumbnail) {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        thumbnail.compress(Bitmap.CompressFormat.PNG, 100, png);
+        return png.toByteArray();
+    }
+}
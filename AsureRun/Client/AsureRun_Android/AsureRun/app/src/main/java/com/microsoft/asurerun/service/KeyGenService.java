@@ -12,9 +12,12 @@ import android.os.Message;
 import android.util.Log;
 
 import com.microsoft.asurerun.model.ApplicationState;
+import com.microsoft.asurerun.model.RunItem;
+import com.microsoft.asurerun.model.RunJournal;
 import com.microsoft.asurerun.util.Configuration;
 import com.microsoft.asurerun.util.Utils;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -103,6 +106,7 @@ public class KeyGenService extends Service {
                             KeyGenService.this.sendBroadcast(intent);
                         }
                     });
+                    recoverInterruptedRun();
                 } catch (Exception e) {
                     Log.e(TAG, "Error creating crypto context: " + e.getMessage());
                     //send error state
@@ -131,6 +135,29 @@ public class KeyGenService extends Service {
         Utils.runAsyncTask(task);
     }
 
+    /**
+     * Saves the run that was being tracked when the process was last killed, now that there are
+     * keys to encrypt it with
+     */
+    private void recoverInterruptedRun() {
+        if (RunService.isTracking())
+            return;
+        RunItem item = RunJournal.recover(this);
+        if (item != null) {
+            try {
+                ApplicationState.storeLocalRunItem(item);
+            } catch (IOException e) {
+                // the journal is kept, the run is recovered again on the next start
+                Log.e(TAG, "Couldn't save the recovered run", e);
+                return;
+            }
+            // only now that the run is saved can its journal go
+            RunJournal.delete(this);
+            ApplicationState.getLocalRunItems().add(0, item);
+            SyncDataService.startSendDataOnServer(this);
+        }
+    }
+
     /**
      * sends a broadcast intent with error
      */
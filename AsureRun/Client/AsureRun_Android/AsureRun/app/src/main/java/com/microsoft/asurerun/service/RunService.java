@@ -16,11 +16,14 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.location.Location;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
@@ -30,11 +33,20 @@ import com.google.android.gms.location.LocationCallback;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.maps.model.LatLng;
 import com.microsoft.asurerun.R;
+import com.microsoft.asurerun.model.RunJournal;
+import com.microsoft.asurerun.model.RunSampleBuffer;
+import com.microsoft.asurerun.model.SensorStats;
+import com.microsoft.asurerun.model.ServerCalculations;
 import com.microsoft.asurerun.ui.RunActivity;
+import com.microsoft.asurerun.util.CacheUtil;
 import com.microsoft.asurerun.util.ServiceUtil;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Timer;
@@ -60,8 +72,43 @@ public class RunService extends Service implements SensorEventListener {
     private double currentAltitude;
     private double maxAltitude;
     private SensorManager mSensorManager;
-    private float[] mAccelerometerMatrix = new float[3];
-    private float[] mGyroscopeMatrix = new float[3];
+    // the sensors are sampled at the game rate but delivered in batches, so the CPU can sleep
+    // in between: about a second of events at a time, the length of a tick
+    private static final int SENSOR_MAX_REPORT_LATENCY_US = 1000000;
+    // statistics of the sensor events since the last tick, folded into the samples every tick
+    private final SensorStats mAccelerometerWindow = new SensorStats();
+    private final SensorStats mGyroscopeWindow = new SensorStats();
+    // the means of the last windows that had events, journaled with every tick
+    private final float[] mAccelerometerMatrix = new float[3];
+    private final float[] mGyroscopeMatrix = new float[3];
+    // the number of ticks the UI can fall behind before it misses some, about 4 minutes
+    private static final int TICK_RING_CAPACITY = 256;
+    // journal of the run in progress, so it can be recovered if the process gets killed
+    private RunJournal mJournal;
+    private final double[] mCartesian = new double[3];
+    private static volatile boolean sIsTracking;
+
+    /**
+     * Thread the run is tracked on: the ticks, the location updates and the sensor events are
+     * all handled there, so the samples are only ever written by a single thread.
+     */
+    private HandlerThread mTrackerThread;
+    private Handler updateHandler;
+    // the authoritative samples and route of the run, only written on the tracker thread
+    private final RunSampleBuffer mSamples = new RunSampleBuffer();
+    private final ArrayList<LatLng> mRoute = new ArrayList<>();
+    private final RunTickRing mTicks = new RunTickRing(TICK_RING_CAPACITY);
+    private boolean mMiles;
+    private final IBinder mBinder = new LocalBinder();
+
+    /**
+     * Binder handing the bound activity the service itself, so it can read the ticks directly
+     */
+    public class LocalBinder extends Binder {
+        public RunService getService() {
+            return RunService.this;
+        }
+    }
 
 
     /**
@@ -96,10 +143,32 @@ public class RunService extends Service implements SensorEventListener {
 
     }
 
+    /**
+     * @return true while a run is being tracked, its journal then belongs to the run in progress
+     */
+    public static boolean isTracking() {
+        return sIsTracking;
+    }
+
     private void startService() {
+        if (sIsTracking)
+            return;
         startForeground(FOREGROUND_ID, buildForegroundNotification());
-        mSensorManager.registerListener(this, mSensorManager.getDefaultSensor(TYPE_ACCELEROMETER), SensorManager.SENSOR_DELAY_GAME);
-        mSensorManager.registerListener(this, mSensorManager.getDefaultSensor(TYPE_GYROSCOPE), SensorManager.SENSOR_DELAY_GAME);
+        sIsTracking = true;
+        mMiles = CacheUtil.isMilesUnit(this);
+        mTrackerThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mTrackerThread.start();
+        updateHandler = new UpdateHandler(this, mTrackerThread.getLooper());
+        try {
+            mJournal = RunJournal.create(this, System.currentTimeMillis());
+        } catch (IOException e) {
+            // the run can still be tracked, it just won't survive the process being killed
+            Log.e(LOG_TAG, "Couldn't create the run journal", e);
+        }
+        mSensorManager.registerListener(this, mSensorManager.getDefaultSensor(TYPE_ACCELEROMETER), SensorManager.SENSOR_DELAY_GAME,
+                SENSOR_MAX_REPORT_LATENCY_US, updateHandler);
+        mSensorManager.registerListener(this, mSensorManager.getDefaultSensor(TYPE_GYROSCOPE), SensorManager.SENSOR_DELAY_GAME,
+                SENSOR_MAX_REPORT_LATENCY_US, updateHandler);
         mLocationRequest = new LocationRequest();
         mLocationRequest.setInterval(UPDATE_TIME);
         mLocationRequest.setFastestInterval(UPDATE_TIME);
@@ -109,10 +178,10 @@ public class RunService extends Service implements SensorEventListener {
                     Manifest.permission.ACCESS_FINE_LOCATION)
                     == PackageManager.PERMISSION_GRANTED) {
                 //Location Permission already granted
-                mFusedLocationClient.requestLocationUpdates(mLocationRequest, mLocationCallback, Looper.myLooper());
+                mFusedLocationClient.requestLocationUpdates(mLocationRequest, mLocationCallback, mTrackerThread.getLooper());
             }
         } else {
-            mFusedLocationClient.requestLocationUpdates(mLocationRequest, mLocationCallback, Looper.myLooper());
+            mFusedLocationClient.requestLocationUpdates(mLocationRequest, mLocationCallback, mTrackerThread.getLooper());
         }
         timer.scheduleAtFixedRate(new mainTask(), 0, 1000);
     }
@@ -135,9 +204,9 @@ public class RunService extends Service implements SensorEventListener {
     public void onSensorChanged(SensorEvent sensorEvent) {
         Sensor sensor = sensorEvent.sensor;
         if (sensor.getType() == TYPE_ACCELEROMETER) {
-            mAccelerometerMatrix = sensorEvent.values;
+            mAccelerometerWindow.add(sensorEvent.values);
         } else if (sensor.getType() == TYPE_GYROSCOPE) {
-            mGyroscopeMatrix = sensorEvent.values;
+            mGyroscopeWindow.add(sensorEvent.values);
         }
     }
 
@@ -152,15 +221,63 @@ public class RunService extends Service implements SensorEventListener {
         }
     }
 
-    @Override
-    public void onDestroy() {
-        Log.d(LOG_TAG, "stopped");
-        super.onDestroy();
+    /**
+     * Stops tracking the run and waits for the tracker thread to finish its last tick, after
+     * which the samples and the route of the run can be read from any thread.
+     */
+    public void stopTracking() {
+        if (mTrackerThread == null)
+            return;
         if (mFusedLocationClient != null) {
             mFusedLocationClient.removeLocationUpdates(mLocationCallback);
         }
         mSensorManager.unregisterListener(this);
         timer.cancel();
+        mTrackerThread.quitSafely();
+        try {
+            mTrackerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mTrackerThread = null;
+        // keep the events delivered since the last tick
+        mSamples.addSensorWindows(mAccelerometerWindow, mGyroscopeWindow);
+        mAccelerometerWindow.reset();
+        mGyroscopeWindow.reset();
+        // the journal is left on disk, RunActivity deletes it once the run is saved
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+        sIsTracking = false;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(LOG_TAG, "stopped");
+        super.onDestroy();
+        stopTracking();
+    }
+
+    /**
+     * @return the ring the UI reads the ticks of the run from
+     */
+    public RunTickRing getTicks() {
+        return mTicks;
+    }
+
+    /**
+     * @return the samples of the run, only safe to read once {@link #stopTracking()} returned
+     */
+    public RunSampleBuffer getSamples() {
+        return mSamples;
+    }
+
+    /**
+     * @return the route of the run, only safe to read once {@link #stopTracking()} returned
+     */
+    public List<LatLng> getRoute() {
+        return mRoute;
     }
 
     LocationCallback mLocationCallback = new LocationCallback() {
@@ -206,15 +323,14 @@ public class RunService extends Service implements SensorEventListener {
         return notification;
     }
 
-    private final Handler updateHandler = new UpdateHandler(this);
-
     /**
-     *
+     * Handles the ticks of the run on the tracker thread
      */
     private static class UpdateHandler extends Handler {
         private WeakReference<RunService> mServiceRef;
 
-        public UpdateHandler(final RunService service) {
+        public UpdateHandler(final RunService service, Looper looper) {
+            super(looper);
             this.mServiceRef = new WeakReference<>(service);
         }
 
@@ -222,18 +338,19 @@ public class RunService extends Service implements SensorEventListener {
         public void handleMessage(Message msg) {
             super.handleMessage(msg);
             final RunService service = mServiceRef.get();
+            if (service == null)
+                return;
             // increment elapsed time
             // TODO: this shouldn't be the way to keep track of time, need to use the system clock to be more accurate
             service.mElapsedTime++;
 
-            Intent intent = new Intent();
-            intent.setAction(UPDATE_ACTION);
+            boolean hasLocation = false;
+            double elevationGainDelta = 0;
 
-            // send location changes
+            // record location changes
             if (service.currentLocation != null && service.mLastLocation == null) {
                 // added first location
-                intent.putExtra(LATITUDE_KEY, service.currentLocation.getLatitude());
-                intent.putExtra(LONGITUDE_KEY, service.currentLocation.getLongitude());
+                hasLocation = true;
                 if (service.currentLocation.hasAltitude()) {
                     service.currentAltitude = service.currentLocation.getAltitude();
                 }
@@ -241,9 +358,8 @@ public class RunService extends Service implements SensorEventListener {
                     service.mLastLocation != null && service.mLastLocation.distanceTo(service.currentLocation) > MIN_DISTANCE_UPDATE
                     && service.currentLocation.getAccuracy() < MIN_ACCURACY_GPS) {
                 Log.d(LOG_TAG, service.currentLocation.toString());
-                intent.putExtra(LATITUDE_KEY, service.currentLocation.getLatitude());
-                intent.putExtra(LONGITUDE_KEY, service.currentLocation.getLongitude());
-                // send elevation delta
+                hasLocation = true;
+                // record elevation delta
                 if (service.currentLocation.hasAltitude()) {
                     double currentAltitude = (service.currentLocation.getAltitude() - service.currentAltitude);
                     service.currentAltitude = service.currentLocation.getAltitude();
@@ -252,22 +368,12 @@ public class RunService extends Service implements SensorEventListener {
                     }
                     double elevationGain = currentAltitude - service.maxAltitude;
                     if (elevationGain <= MIN_ELEVATION_GAIN_DELTA_UPDATE) {
-                        intent.putExtra(ELEVATION_GAIN_KEY, Math.max(0.0, elevationGain));
+                        elevationGainDelta = Math.max(0.0, elevationGain);
                     }
-                } else {
-                    intent.putExtra(ELEVATION_GAIN_KEY, 0.0);
                 }
             }
-            // send accelerometer values
-            intent.putExtra(ACCELEROMETER_KEY, service.mAccelerometerMatrix);
-            // send gyroscope values
-            intent.putExtra(GYROSCOPE_KEY, service.mGyroscopeMatrix);
-            // send location timestamp
-            intent.putExtra(TIMESTAMP_KEY, getTimeSinceMidnight(Calendar.getInstance().getTimeInMillis()));
-            // update UI with time elapsed and distance traveled
-            intent.putExtra(DISTANCE_KEY, service.distance);
-            intent.putExtra(TIME_KEY, service.mElapsedTime);
-            service.sendBroadcast(intent);
+            double timestamp = getTimeSinceMidnight(Calendar.getInstance().getTimeInMillis());
+            service.recordTick(timestamp, hasLocation, elevationGainDelta);
         }
 
         /**
@@ -290,9 +396,47 @@ public class RunService extends Service implements SensorEventListener {
     }
 
 
+    /**
+     * Records a tick in the samples of the run and the journal, then publishes it to the UI
+     */
+    private void recordTick(double timestamp, boolean hasLocation, double elevationGainDelta) {
+        if (hasLocation) {
+            ServerCalculations.latLngToCartesian(currentLocation.getLatitude(), currentLocation.getLongitude(), mCartesian);
+        } else {
+            Arrays.fill(mCartesian, Double.NaN);
+        }
+        double pace = distance > 0.01 ? mElapsedTime / distance : 0;
+        // a window without events, the sensors' batch not being delivered yet, keeps the last means
+        if (mAccelerometerWindow.getCount() > 0)
+            mAccelerometerWindow.getMeans(mAccelerometerMatrix);
+        if (mGyroscopeWindow.getCount() > 0)
+            mGyroscopeWindow.getMeans(mGyroscopeMatrix);
+        if (mJournal != null) {
+            try {
+                mJournal.append(timestamp, mElapsedTime, distance, mCartesian[0], mCartesian[1], mCartesian[2],
+                        elevationGainDelta, pace, mAccelerometerMatrix, mGyroscopeMatrix);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Couldn't append to the run journal", e);
+                mJournal.close();
+                mJournal = null;
+            }
+        }
+        boolean sampled = mSamples.recordTick(timestamp, mElapsedTime, distance, mCartesian[0], mCartesian[1], mCartesian[2],
+                elevationGainDelta, pace, mMiles);
+        mSamples.addSensorWindows(mAccelerometerWindow, mGyroscopeWindow);
+        mAccelerometerWindow.reset();
+        mGyroscopeWindow.reset();
+        boolean isRoutePoint = sampled && hasLocation;
+        if (isRoutePoint)
+            mRoute.add(new LatLng(currentLocation.getLatitude(), currentLocation.getLongitude()));
+        mTicks.publish(mElapsedTime, distance, mSamples.getElevationGainSum(), pace,
+                hasLocation ? currentLocation.getLatitude() : Double.NaN,
+                hasLocation ? currentLocation.getLongitude() : Double.NaN, isRoutePoint);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return mBinder;
     }
 }
 
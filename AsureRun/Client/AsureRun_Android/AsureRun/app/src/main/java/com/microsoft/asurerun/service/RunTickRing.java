@@ -0,0 +1,95 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free single producer ring of the latest ticks of the RunService. The service publishes a
+ * tick every second from its tracker thread, and the UI reads them at its own pace from the main
+ * thread. Nothing ever blocks: a reader that falls more than a ring behind just skips the ticks
+ * that were overwritten, the authoritative samples of the run are kept by the service.
+ */
+public class RunTickRing {
+    /**
+     * The state of the run after a tick. Ticks are immutable, so a reader can never see one
+     * half written.
+     */
+    public static class Tick {
+        public final long sequence;
+        public final long elapsedTime; // in seconds
+        public final double distance; // in km
+        public final double elevationGainSum; // in meters
+        public final double pace; // in s/km, 0 until the distance is meaningful
+        public final double latitude; // NaN when the tick has no new location
+        public final double longitude;
+        public final boolean isRoutePoint; // true if the location was added to the route of the run
+
+        Tick(long sequence, long elapsedTime, double distance, double elevationGainSum, double pace,
+             double latitude, double longitude, boolean isRoutePoint) {
+            this.sequence = sequence;
+            this.elapsedTime = elapsedTime;
+            this.distance = distance;
+            this.elevationGainSum = elevationGainSum;
+            this.pace = pace;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.isRoutePoint = isRoutePoint;
+        }
+
+        public boolean hasLocation() {
+            return !Double.isNaN(latitude);
+        }
+    }
+
+    private final AtomicReferenceArray<Tick> mTicks;
+    private final int mMask;
+    // the number of ticks published so far, only written by the producer
+    private final AtomicLong mPublished = new AtomicLong();
+
+    /**
+     * @param capacity the number of ticks kept, rounded up to a power of two
+     */
+    public RunTickRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mTicks = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+    }
+
+    /**
+     * Publishes the next tick, must only be called from the producer thread
+     */
+    void publish(long elapsedTime, double distance, double elevationGainSum, double pace,
+                 double latitude, double longitude, boolean isRoutePoint) {
+        long sequence = mPublished.get();
+        mTicks.lazySet((int) sequence & mMask, new Tick(sequence, elapsedTime, distance, elevationGainSum,
+                pace, latitude, longitude, isRoutePoint));
+        mPublished.lazySet(sequence + 1);
+    }
+
+    /**
+     * @return the sequence the next published tick will get
+     */
+    public long getPublished() {
+        return mPublished.get();
+    }
+
+    /**
+     * @return the oldest tick that can still be read
+     */
+    public long getOldest() {
+        return Math.max(0, mPublished.get() - mTicks.length());
+    }
+
+    /**
+     * @return the tick with the given sequence, or null if it wasn't published yet or was
+     * already overwritten
+     */
+    public Tick get(long sequence) {
+        if (sequence < 0 || sequence >= mPublished.get())
+            return null;
+        Tick tick = mTicks.get((int) sequence & mMask);
+        return tick != null && tick.sequence == sequence ? tick : null;
+    }
+}
@@ -0,0 +1,191 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.service;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.microsoft.asurerun.model.ApplicationState;
+import com.microsoft.asurerun.model.LifetimeSummary;
+import com.microsoft.asurerun.model.RunItem;
+import com.microsoft.asurerun.model.RunItemDbHelper;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Uploads the unsent runs of the local database to the server. The database is the queue: a run
+ * stays there until the server has it, along with the number of failed attempts and the time of
+ * the next one, so uploads survive the process being killed and resume on the next sync.
+ *
+ * At most {@link #MAX_PARALLEL_UPLOADS} runs are inserted at once, failures are retried with an
+ * exponential backoff, and the run list is refreshed once when the queue drains rather than after
+ * every single upload.
+ *
+ * Once inserted, a run stays queued until its totals are added to the {@link LifetimeSummary},
+ * so they are added exactly once even if that fails or the process dies in between. A run deleted
+ * from the server is queued the same way with its negated totals, see
+ * {@link RunItemDbHelper#queueTotalsRemoval(int, String, byte[])}.
+ */
+public class RunUploadQueue {
+    private final static String TAG = RunUploadQueue.class.getSimpleName();
+    private static final int MAX_PARALLEL_UPLOADS = 2;
+    private static final long INITIAL_BACKOFF = 5 * 1000; // in milliseconds
+    private static final long MAX_BACKOFF = 10 * 60 * 1000; // in milliseconds
+
+    private static final RunItemDbHelper.Backoff BACKOFF = new RunItemDbHelper.Backoff() {
+        @Override
+        public long getDelay(int attempts) {
+            // 5s, 10s, 20s... capped at 10 minutes
+            int shift = Math.min(attempts - 1, 16);
+            return Math.min(MAX_BACKOFF, INITIAL_BACKOFF << shift);
+        }
+    };
+
+    private static RunUploadQueue sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // the run numbers being inserted right now
+    private final Set<Integer> mInFlight = new HashSet<>();
+    // true if a run was uploaded since the run list was last refreshed
+    private boolean mUploaded;
+
+    // retries go through the SyncDataService, so the database is never read on the main thread
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            SyncDataService.startSendDataOnServer(mContext);
+        }
+    };
+
+    private RunUploadQueue(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    public static synchronized RunUploadQueue getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new RunUploadQueue(context);
+        return sInstance;
+    }
+
+    /**
+     * Starts uploading the runs that are due, as many as there are free upload slots. Safe to
+     * call from any thread and as often as needed.
+     */
+    public synchronized void drain() {
+        if (ApplicationState.getInsertedKeyItem() == null)
+            return;
+        long now = System.currentTimeMillis();
+        int freeSlots = MAX_PARALLEL_UPLOADS - mInFlight.size();
+        if (freeSlots > 0) {
+            List<RunItem> dueItems = ApplicationState.getDueLocalRunItems(now, RunItemDbHelper.SYNC_STATE_UPLOADED, mInFlight, freeSlots);
+            for (RunItem item : dueItems)
+                addTotals(item);
+            freeSlots -= dueItems.size();
+        }
+        if (freeSlots > 0) {
+            List<RunItem> dueItems = ApplicationState.getDueLocalRunItems(now, RunItemDbHelper.SYNC_STATE_REMOVED, mInFlight, freeSlots);
+            for (RunItem item : dueItems)
+                addTotals(item);
+            freeSlots -= dueItems.size();
+        }
+        if (freeSlots > 0) {
+            List<RunItem> dueItems = ApplicationState.getDueLocalRunItems(now, RunItemDbHelper.SYNC_STATE_UNSENT, mInFlight, freeSlots);
+            for (RunItem item : dueItems)
+                upload(item);
+        }
+        if (mInFlight.isEmpty())
+            onIdle();
+    }
+
+    private void upload(final RunItem item) {
+        final int runNumber = item.getRunNumber();
+        mInFlight.add(runNumber);
+        if (item.getKeyId() == null)
+            item.setKeyId(ApplicationState.getInsertedKeyItem().getId());
+        Futures.addCallback(ApplicationState.getRunTable().insert(item), new FutureCallback<RunItem>() {
+            @Override
+            public void onSuccess(RunItem result) {
+                Log.d(TAG, "Uploaded run " + runNumber);
+                ApplicationState.markLocalRunUploaded(runNumber);
+                synchronized (RunUploadQueue.this) {
+                    mUploaded = true;
+                }
+                if (item.getCipherTotals() != null) {
+                    // still in flight, this is already a worker thread
+                    sendTotals(item);
+                } else {
+                    synchronized (RunUploadQueue.this) {
+                        mInFlight.remove(runNumber);
+                    }
+                    drain();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                Log.e(TAG, "Error uploading run " + runNumber + ": " + t.getMessage());
+                ApplicationState.recordFailedLocalRunUpload(runNumber, System.currentTimeMillis(), BACKOFF);
+                synchronized (RunUploadQueue.this) {
+                    mInFlight.remove(runNumber);
+                }
+                drain();
+            }
+        }, AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void addTotals(final RunItem item) {
+        mInFlight.add(item.getRunNumber());
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendTotals(item);
+            }
+        });
+    }
+
+    /**
+     * Adds the totals of an uploaded run to the lifetime totals, blocking, then releases its slot
+     */
+    private void sendTotals(RunItem item) {
+        int runNumber = item.getRunNumber();
+        try {
+            LifetimeSummary.add(item.getCipherTotals());
+            Log.d(TAG, "Added the totals of run " + runNumber);
+            ApplicationState.deleteLocalRunItem(runNumber);
+            synchronized (this) {
+                mUploaded = true;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error adding the totals of run " + runNumber + ": " + e.getMessage());
+            ApplicationState.recordFailedLocalRunUpload(runNumber, System.currentTimeMillis(), BACKOFF);
+        }
+        synchronized (this) {
+            mInFlight.remove(runNumber);
+        }
+        drain();
+    }
+
+    /**
+     * Nothing is being uploaded: refresh the run list if anything was, and wake up for the next
+     * retry if any is pending
+     */
+    private void onIdle() {
+        if (mUploaded) {
+            mUploaded = false;
+            SyncDataService.startRefreshItems(mContext);
+        }
+        mHandler.removeCallbacks(mDrainRunnable);
+        long now = System.currentTimeMillis();
+        long nextAttempt = ApplicationState.getNextLocalRunUploadTime(now);
+        if (nextAttempt > 0)
+            mHandler.postDelayed(mDrainRunnable, nextAttempt - now);
+    }
+}
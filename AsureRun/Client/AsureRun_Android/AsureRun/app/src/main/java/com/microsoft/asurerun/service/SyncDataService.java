@@ -22,15 +22,15 @@ import com.microsoft.appcenter.analytics.Analytics;
 import com.microsoft.asurerun.R;
 import com.microsoft.asurerun.model.ApplicationState;
 import com.microsoft.asurerun.model.RunItem;
+import com.microsoft.asurerun.model.RunItemSync;
 import com.microsoft.asurerun.util.Utils;
 import com.microsoft.windowsazure.mobileservices.MobileServiceException;
 import com.microsoft.windowsazure.mobileservices.MobileServiceList;
-import com.microsoft.windowsazure.mobileservices.table.query.QueryOrder;
 
-import static com.microsoft.asurerun.model.ApplicationState.INITIAL_ITEMS_OFFSET;
 import static com.microsoft.asurerun.util.ServiceUtil.*;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -103,7 +103,7 @@ public class SyncDataService extends IntentService {
                 Analytics.trackEvent(TAG + " Refresh run items START");
                 NotificationManagerCompat notificationManager = NotificationManagerCompat.from(this);
                 notificationManager.notify(NOTIFICATION_ID, buildNotification("AsureRun", "Syncing data...", R.drawable.ic_tracking, null));
-                handleRefreshItems(notificationManager, false);
+                handleRefreshItems(notificationManager);
             } else if (DELETE_DATA_ON_FIRST_START_ACTION.equals(action)) {
                 Log.d(TAG, "Delete data on first start");
                 Analytics.trackEvent(TAG + " Delete data on first start");
@@ -121,7 +121,8 @@ public class SyncDataService extends IntentService {
     private void handleDeleteDataOnFirstStart() {
         ListenableFuture<MobileServiceList<RunItem>> items = null;
         try {
-            items = ApplicationState.getRunTable().execute();
+            // deleting only needs the ids
+            items = ApplicationState.getRunTable().select(RunItem.RunItemEntry.COLUMN_NAME_ID).execute();
             Futures.addCallback(items, new FutureCallback<MobileServiceList<RunItem>>() {
                 @Override
                 public void onSuccess(MobileServiceList<RunItem> result) {
@@ -145,44 +146,14 @@ public class SyncDataService extends IntentService {
      * Handle action SendDataOnServer in the provided background thread
      */
     private void handleSendDataOnServer() {
-        RunItem item = ApplicationState.getLocalRunItems().get(0);
-        sendRunItem(item);
-    }
-
-    /**
-     * The real worker function that sends the run item.
-     *
-     * @param item The RunItem to send
-     */
-    private void sendRunItem(RunItem item) {
-        // send item on server
-        ListenableFuture<RunItem> listenableInsert = ApplicationState.getRunTable().insert(item);
-        Futures.addCallback(listenableInsert, new FutureCallback<RunItem>() {
-            @Override
-            public void onSuccess(RunItem result) {
-                Log.e(TAG, "Inserting item ok");
-                NotificationManagerCompat notificationManager = NotificationManagerCompat.from(SyncDataService.this);
-                notificationManager.notify(NOTIFICATION_ID, buildNotification("AsureRun", "Syncing data...", R.drawable.ic_tracking, null));
-                handleRefreshItems(notificationManager, true);
-                ApplicationState.deleteLocalRunItem(result);
-            }
-
-            @Override
-            public void onFailure(Throwable t) {
-                Log.e(TAG, "Error inserting run data on Server " + t.getMessage());
-                NotificationManagerCompat notificationManager = NotificationManagerCompat.from(SyncDataService.this);
-                //todo add retry action
-                notificationManager.notify(NOTIFICATION_ID,
-                        buildNotification("AsureRun", "An error occurred while sending data.", R.drawable.ic_tracking, null));
-            }
-        });
+        RunUploadQueue.getInstance(this).drain();
     }
 
     /**
      * Handle action RefreshItems in the provided background thread
      */
-    private void handleRefreshItems(NotificationManagerCompat notificationManager, boolean loadFirstTopItem) {
-        RefreshItemsAsync task = new RefreshItemsAsync(notificationManager, loadFirstTopItem);
+    private void handleRefreshItems(NotificationManagerCompat notificationManager) {
+        RefreshItemsAsync task = new RefreshItemsAsync(notificationManager);
         Utils.runAsyncTask(task);
     }
 
@@ -218,25 +189,25 @@ public class SyncDataService extends IntentService {
 
     private class RefreshItemsAsync extends AsyncTask<Void, Void, Void> {
         private NotificationManagerCompat mNotificationManager;
+        private List<RunItem> mCurrentRunItems;
         private List<RunItem> mRunItems;
-        private boolean mLoadFirstTopItem;
 
-        public RefreshItemsAsync(final NotificationManagerCompat notificationManager, boolean loadFirstTopItem) {
+        public RefreshItemsAsync(final NotificationManagerCompat notificationManager) {
             mNotificationManager = notificationManager;
-            mLoadFirstTopItem = loadFirstTopItem;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            // the shared list is only touched from the main thread
+            mCurrentRunItems = new ArrayList<>(ApplicationState.getLocalRunItems());
         }
 
         @Override
         protected Void doInBackground(Void... voids) {
             try {
                 Log.e(TAG, "Start refresh items");
-                int offset;
-                if (mLoadFirstTopItem) {
-                    offset = 1; // we refresh only first top item
-                } else {
-                    offset = INITIAL_ITEMS_OFFSET; // load the initial number of items
-                }
-                mRunItems = ApplicationState.getRunTable().top(offset).orderBy("runNumber", QueryOrder.Descending).execute().get();
+                // only the runs past the ones already downloaded
+                mRunItems = RunItemSync.sync(mCurrentRunItems);
             } catch (ExecutionException | InterruptedException e) {
                 Log.e(TAG, e.getMessage());
                 mNotificationManager.cancel(NOTIFICATION_ID);
@@ -249,15 +220,8 @@ public class SyncDataService extends IntentService {
         protected void onPostExecute(Void aVoid) {
             super.onPostExecute(aVoid);
             if (mRunItems != null) {
-                if (mLoadFirstTopItem) {
-                    // remove local item
-                    ApplicationState.getLocalRunItems().remove(0);
-                    // add remote item
-                    ApplicationState.getLocalRunItems().add(0,mRunItems.get(0));
-                } else {
-                    ApplicationState.getLocalRunItems().clear();
-                    ApplicationState.getLocalRunItems().addAll(mRunItems);
-                }
+                ApplicationState.getLocalRunItems().clear();
+                ApplicationState.getLocalRunItems().addAll(mRunItems);
                 sendUnsentRunItems();
                 sendRefreshItemsFinished();
                 Map<String, String> properties = new HashMap<>();
@@ -272,23 +236,24 @@ public class SyncDataService extends IntentService {
         }
 
         private void sendUnsentRunItems() {
-            if (ApplicationState.getInsertedKeyItem() != null) {
-                RunItem[] localDbItems = ApplicationState.getLocalRunItemsDb();
-                for (RunItem localItem : localDbItems) {
-                    boolean match = false;
-                    for (RunItem serverItem : mRunItems) {
-                        if (localItem.getRunNumber() == serverItem.getRunNumber()) {
-                            match = true;
-                            ApplicationState.deleteLocalRunItem(localItem);
-                            break;
-                        }
-                    }
-                    if (!match) {
-                        localItem.setKeyId(ApplicationState.getInsertedKeyItem().getId());
-                        sendRunItem(localItem);
-                    }
+            if (ApplicationState.getInsertedKeyItem() == null)
+                return;
+            if (ApplicationState.countUnsentLocalRunItems() > 0) {
+                Map<Integer, RunItem> serverItems = new HashMap<>();
+                for (RunItem item : mRunItems) {
+                    if (!item.isLocalItem())
+                        serverItems.put(item.getRunNumber(), item);
+                }
+                // the runs the server already has were sent before the app could record it,
+                // only their totals are left to send
+                for (int runNumber : ApplicationState.getUnsentLocalRunNumbers()) {
+                    if (serverItems.containsKey(runNumber))
+                        ApplicationState.markLocalRunUploaded(runNumber);
                 }
             }
+            // the queue reads the ciphertexts, so it's drained off the main thread, it also
+            // sends the totals of the runs already uploaded
+            startSendDataOnServer(SyncDataService.this);
         }
     }
 }
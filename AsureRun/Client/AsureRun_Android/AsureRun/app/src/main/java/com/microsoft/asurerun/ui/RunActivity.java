@@ -7,10 +7,12 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
@@ -20,6 +22,8 @@ import android.location.Location;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
 import android.provider.Settings;
 import android.support.v4.content.ContextCompat;
@@ -36,9 +40,12 @@ import com.microsoft.appcenter.analytics.Analytics;
 import com.microsoft.asurerun.model.ApplicationState;
 import com.microsoft.asurerun.R;
 import com.microsoft.asurerun.model.RunItem;
+import com.microsoft.asurerun.model.RunJournal;
+import com.microsoft.asurerun.model.RunSampleBuffer;
 import com.microsoft.asurerun.model.ServerCalculations;
 import com.microsoft.asurerun.service.KeyGenService;
 import com.microsoft.asurerun.service.RunService;
+import com.microsoft.asurerun.service.RunTickRing;
 import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.android.gms.location.LocationCallback;
 import com.google.android.gms.location.LocationRequest;
@@ -49,13 +56,13 @@ import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.LatLng;
-import com.google.android.gms.maps.model.PolylineOptions;
 import com.microsoft.asurerun.service.SyncDataService;
 import com.microsoft.asurerun.util.CacheUtil;
 import com.microsoft.asurerun.util.Checks;
 import com.microsoft.asurerun.util.DateUtil;
 import com.microsoft.asurerun.util.DialogUtil;
 import com.microsoft.asurerun.util.MapUtil;
+import com.microsoft.asurerun.util.RouteLayer;
 import com.microsoft.asurerun.util.Utils;
 
 import java.util.ArrayList;
@@ -75,15 +82,14 @@ import static com.microsoft.asurerun.util.CacheUtil.loadMaxRunNumber;
 import static com.microsoft.asurerun.util.MapUtil.MAP_THUMBNAIL_HEIGHT;
 import static com.microsoft.asurerun.util.MapUtil.MAP_THUMBNAIL_WIDTH;
 import static com.microsoft.asurerun.util.ServiceUtil.*;
-import static java.lang.Math.cos;
-import static java.lang.Math.sin;
-import static java.lang.Math.toRadians;
 
 public class RunActivity extends AppCompatActivity implements OnMapReadyCallback {
     /**
      * Google maps variable
      */
     private GoogleMap mMap; // TODO: we need to investigate if data is being sent to google in plain text.
+    // draws polylinePoints, created once the map is ready
+    private RouteLayer mRouteLayer;
 
     /*
      * View variable declaration
@@ -118,14 +124,8 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
     private Intent backgroundServiceIntent;
     private LocationRequest mLocationRequest;
     private FusedLocationProviderClient mFusedLocationClient;
-    private ArrayList<Double> cartesianX;
-    private ArrayList<Double> cartesianY;
-    private ArrayList<Double> cartesianZ;
-    private ArrayList<float[]> accelerometerValues;
-    private ArrayList<float[]> gyroscopeValues;
-    private ArrayList<Double> timeStamps;
-    private ArrayList<Double> elevationGainDeltas;
-    private ArrayList<Double> avgPaceDeltas;
+    // the samples of the run that get encrypted once it's over, taken from the RunService
+    private RunSampleBuffer mSamples = new RunSampleBuffer();
     private double mElevationGainSum;
     private double mDistance;
     private String mElapsedTime;
@@ -133,8 +133,33 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
     private long mTotalTime;
     private Bitmap mMapSnapshot;
 
-    private static int FRAME_UPDATE_INTERVAL = 2;
-    private int mFrameUpdateInterval = 1;
+    // how often the UI pulls the latest ticks from the RunService, in milliseconds
+    private final static long UI_REFRESH_INTERVAL = 500;
+    private RunService mRunService;
+    private boolean mIsBound;
+    // the sequence of the next tick to read from the RunService
+    private long mNextTick;
+    private final Handler mRefreshHandler = new Handler();
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pullTicks();
+            mRefreshHandler.postDelayed(this, UI_REFRESH_INTERVAL);
+        }
+    };
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mRunService = ((RunService.LocalBinder) service).getService();
+            pullTicks();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mRunService = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -189,19 +214,20 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
                 }
             }
         });
-        cartesianX = new ArrayList<Double>();
-        cartesianY = new ArrayList<Double>();
-        cartesianZ = new ArrayList<Double>();
-        timeStamps = new ArrayList<Double>();
-        gyroscopeValues = new ArrayList<>();
-        accelerometerValues = new ArrayList<>();
-        elevationGainDeltas = new ArrayList<>();
-        avgPaceDeltas = new ArrayList<>();
     }
 
     private void startRunSummaryActivity() {
         unregisterReceiver(mBroadcastReceiver);
-        ApplicationState.setAvgPaceValList(avgPaceDeltas);
+        ApplicationState.setAvgPaceValList(mSamples.getAvgPaceDeltas().toList());
+        // save elevation gain deltas to draw graph
+        RunSampleBuffer.Column elevationGainDeltas = mSamples.getElevationGainDeltas();
+        for (int i = 0; i < elevationGainDeltas.size(); ++i) {
+            if (unitMeasure.equals(KILOMETERS_VALUE)) {
+                ApplicationState.getElevationGainDeltas().add(elevationGainDeltas.get(i));
+            } else {
+                ApplicationState.getElevationGainDeltas().add(elevationGainDeltas.get(i) / METER_FOOT_CONVERSION_RATE);
+            }
+        }
         Intent myIntent = new Intent(RunActivity.this, RunSummaryActivity.class);
         myIntent.putExtra(DISTANCE_SUMMARY_KEY, mDistance);
         myIntent.putExtra(TIME_SUMMARY_KEY, mTotalTime);
@@ -267,6 +293,8 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
         backgroundServiceIntent = new Intent(RunActivity.this, RunService.class);
         backgroundServiceIntent.setAction(START_TRACKER);
         startService(backgroundServiceIntent);
+        // the samples are pulled from the service instead of being broadcast
+        mIsBound = bindService(new Intent(RunActivity.this, RunService.class), mServiceConnection, Context.BIND_AUTO_CREATE);
     }
 
     /**
@@ -281,6 +309,17 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
         if (mCurrentState != State.Stopped) {
             removeLocationListener();
             mCurrentState = State.Stopped;
+            if (mRunService != null) {
+                // take over the samples of the run, including the ticks the UI didn't pull yet
+                mRunService.stopTracking();
+                pullTicks();
+                mSamples = mRunService.getSamples();
+                polylinePoints = new ArrayList<>(mRunService.getRoute());
+                mTotalTime = mSamples.getTotalTime();
+                mDistance = mSamples.getTotalDistance();
+                mElevationGainSum = mSamples.getElevationGainSum();
+            }
+            mRefreshHandler.removeCallbacks(mRefreshRunnable);
             //stop background service
             backgroundServiceIntent = new Intent(RunActivity.this, RunService.class);
             backgroundServiceIntent.setAction(STOP_TRACKER);
@@ -307,9 +346,6 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
                     && !Checks.isLocationEnabled(RunActivity.this) ) {
                     Analytics.trackEvent(TAG + " GPS error");
                      showGpsAccuracyWarning();
-            } else if (intent.getAction().equals(UPDATE_ACTION)) {
-                updateUI(intent);
-                updateSensorsData(intent);
             } else if (intent.getAction().equals(KEY_GEN_UPDATE_ACTION)) {
                 if (intent.hasExtra(STATE_KEY)) {
                     String event = intent.getStringExtra(STATE_KEY);
@@ -332,16 +368,14 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
      * Clears all the variables that are used to encrypt the GPS data
      */
     private void clearGPSVariables() {
-        cartesianX.clear();
-        cartesianY.clear();
-        cartesianZ.clear();
-        timeStamps.clear();
+        mSamples.clearGPS();
     }
 
     @Override
     public void onMapReady(GoogleMap googleMap) {
         mMap = googleMap;
         MapUtil.changeMapStyle(TAG, mMap, this);
+        mRouteLayer = new RouteLayer(mMap, PATH_WIDTH, Color.argb(255, 255, 140, 0));
         mLocationRequest = new LocationRequest();
         mLocationRequest.setInterval(UPDATE_TIME);
         mLocationRequest.setFastestInterval(UPDATE_TIME);
@@ -361,25 +395,34 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
     }
 
     /**
-     * updates sensors data
-     * @param intent the update intent from Service
+     * Reads the ticks the RunService published since the last call and updates the UI with them
      */
-    private void updateSensorsData(Intent intent){
-        float accelerometerMatrix[] = intent.getFloatArrayExtra(ACCELEROMETER_KEY);
-        Log.d(TAG,"Accelerometer x = "+accelerometerMatrix[0]+" y = "+accelerometerMatrix[1]+" z = "+accelerometerMatrix[2]);
-        accelerometerValues.add(accelerometerMatrix);
-        float gyroscopeMatrix[] = intent.getFloatArrayExtra(GYROSCOPE_KEY);
-        Log.d(TAG,"Gyroscope x = "+gyroscopeMatrix[0]+" y = "+gyroscopeMatrix[1]+" z = "+gyroscopeMatrix[2]);
-        gyroscopeValues.add(gyroscopeMatrix);
+    private void pullTicks() {
+        if (mRunService == null)
+            return;
+        RunTickRing ticks = mRunService.getTicks();
+        // skip the ticks that were overwritten while the UI wasn't pulling them
+        mNextTick = Math.max(mNextTick, ticks.getOldest());
+        RunTickRing.Tick latest = null;
+        for (RunTickRing.Tick tick = ticks.get(mNextTick); tick != null; tick = ticks.get(++mNextTick)) {
+            if (tick.hasLocation()) {
+                mLastLocation = new LatLng(tick.latitude, tick.longitude);
+                if (tick.isRoutePoint)
+                    polylinePoints.add(mLastLocation);
+            }
+            latest = tick;
+        }
+        if (latest != null)
+            updateUI(latest);
     }
 
     /**
      * This function allows to update UI
-     * @param intent the update intent from Service
+     * @param tick the latest tick of the RunService
      */
-    private void updateUI(Intent intent) {
+    private void updateUI(RunTickRing.Tick tick) {
         // set elapsed time label
-        mTotalTime = intent.getLongExtra(TIME_KEY, 0);
+        mTotalTime = tick.elapsedTime;
         mElapsedTime = String.format("%02d:%02d",
                 TimeUnit.SECONDS.toMinutes(mTotalTime),
                 TimeUnit.SECONDS.toSeconds(mTotalTime -
@@ -389,71 +432,32 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
             // shows the elapsed time on the screen
             mTimeText.setText(mElapsedTime);
         }
-        double latitude = intent.getDoubleExtra(LATITUDE_KEY, 0);
-        double longitude = intent.getDoubleExtra(LONGITUDE_KEY, 0);
-
-        LatLng latLng = new LatLng(latitude, longitude);
-        // update map every second
-        if (latitude != 0 && longitude != 0) {
-            mLastLocation = latLng;
-            Log.e(TAG, latLng.toString());
-            updateMap(latLng);
-        } else if (mLastLocation != null) {
+        if (mLastLocation != null) {
             Log.e(TAG, mLastLocation.toString());
             updateMap(mLastLocation);
         }
-        if(++mFrameUpdateInterval != FRAME_UPDATE_INTERVAL) {
-            return;
-        }
-        mFrameUpdateInterval = 0;
-        if (latitude != 0 && longitude != 0) {
-            polylinePoints.add(latLng);
-            // converting coordinates
-            convertCartesian(latLng.latitude, latLng.longitude);
-            mLastLocation = latLng;
-            Log.e(TAG, latLng.toString());
-            updateMap(latLng);
-        }
-        // add new elevation gain delta
-        mDistance = intent.getDoubleExtra(DISTANCE_KEY, 0.0); // return distance in km
-        mElevationGainSum += intent.getDoubleExtra(ELEVATION_GAIN_KEY, 0.0);
-        elevationGainDeltas.add(intent.getDoubleExtra(ELEVATION_GAIN_KEY, 0.0));
+        mDistance = tick.distance; // distance in km
+        mElevationGainSum = tick.elevationGainSum;
         if (unitMeasure.equals(KILOMETERS_VALUE)) {
             // shows distance in miles
             mDistanceText.setText(String.format("%.1f", mDistance));
             mElevationGainText.setText(String.format("%.1f ", mElevationGainSum));
             mElevationGainText.append(getString(R.string.run_settings_distance_unit_meter));
-            // save elevation gain deltas to draw graph
-            ApplicationState.getElevationGainDeltas().add(intent.getDoubleExtra(ELEVATION_GAIN_KEY, 0.0));
         } else {
             // shows distance in miles
             mDistanceText.setText(String.format("%.1f", mDistance / MILES_KILOMETERS_CONVERSION_RATE));
             mElevationGainText.setText(String.format("%.1f ", mElevationGainSum / METER_FOOT_CONVERSION_RATE));
             mElevationGainText.append(getString(R.string.run_settings_distance_unit_foot));
-            // save elevation gain deltas to draw graph
-            ApplicationState.getElevationGainDeltas().add(intent.getDoubleExtra(ELEVATION_GAIN_KEY, 0.0) / METER_FOOT_CONVERSION_RATE);
         }
         if (mDistance > 0.01) {
-            double avgPace = 0;
+            long avgPace;
             if (unitMeasure.equals(MILES_VALUE)) {
-                double distance = mDistance / MILES_KILOMETERS_CONVERSION_RATE; // convert in Miles
-                avgPace = (long) (mTotalTime / distance);
+                avgPace = (long) (tick.pace * MILES_KILOMETERS_CONVERSION_RATE); // convert in s/mile
             } else {
-                avgPace = (long) (mTotalTime / mDistance);
+                avgPace = (long) tick.pace;
             }
             // shows the avgPace on the screen
-            mRunPace.setText(DateUtil.getFormattedTimeFromSeconds((long) avgPace));
-            // save avg pace deltas to draw graph
-            avgPaceDeltas.add(avgPace);
-        } else {
-            avgPaceDeltas.add(0d);
-        }
-
-        // Adding timestamp
-        if (intent.hasExtra(TIME_KEY)) {
-            double timestamp = intent.getDoubleExtra(TIMESTAMP_KEY, 0);
-            Log.e(TAG, "TIME_ENTRY : " + timestamp);
-            timeStamps.add(timestamp);
+            mRunPace.setText(DateUtil.getFormattedTimeFromSeconds(avgPace));
         }
     }
 
@@ -471,25 +475,10 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
         mMap.moveCamera(CameraUpdateFactory.newLatLng(mMap.getProjection().fromScreenLocation(mMapPoint)));
     }
 
-    /**
-     * @param latitudeDegrees  latitude in degrees
-     * @param longitudeDegrees longitude in degrees
-     */
-    private void convertCartesian(double latitudeDegrees, double longitudeDegrees) {
-        Log.e(TAG, "add coordinates");
-        double latitudeRadians = toRadians(latitudeDegrees);
-        double longitudeRadians = toRadians(longitudeDegrees);
-        cartesianX.add(ServerCalculations.EARTH_RADIUS * sin(longitudeRadians) * cos(latitudeRadians));
-        cartesianY.add(ServerCalculations.EARTH_RADIUS * sin(latitudeRadians));
-        cartesianZ.add(ServerCalculations.EARTH_RADIUS * cos(longitudeRadians) * cos(latitudeRadians));
-    }
-
-
     @Override
     protected void onStart() {
         super.onStart();
         IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(UPDATE_ACTION);
         intentFilter.addAction(AIRPLANE_MODE_ACTION);
         intentFilter.addAction(GPS_PROVIDER_CHANGED_ACTION);
         intentFilter.addAction(KEY_GEN_UPDATE_ACTION);
@@ -498,17 +487,12 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
     }
 
     /**
-     * This function allows to draw a route on a map
+     * This function allows to draw a route on a map, only the points added since the last call
+     * are drawn again
      */
     private void drawRoute() {
-        if (polylinePoints.size() > 1) {
-            mMap.addPolyline(new PolylineOptions()
-                    .addAll(polylinePoints)
-                    .width(PATH_WIDTH)
-                    .color(Color.argb(255, 255, 140, 0))
-            );
-
-        }
+        if (mRouteLayer != null)
+            mRouteLayer.update(polylinePoints);
     }
 
     LocationCallback mLocationCallback = new LocationCallback() {
@@ -544,6 +528,13 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
         }
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // nothing to draw, the RunService keeps all the samples meanwhile
+        mRefreshHandler.removeCallbacks(mRefreshRunnable);
+    }
+
     @Override
     protected void onStop() {
         super.onStop();
@@ -553,6 +544,11 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mRefreshHandler.removeCallbacks(mRefreshRunnable);
+        if (mIsBound) {
+            unbindService(mServiceConnection);
+            mIsBound = false;
+        }
         stopService(new Intent(this, RunService.class));
         removeLocationListener();
     }
@@ -650,6 +646,8 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
     @Override
     public void onResume() {
         super.onResume();
+        if (mCurrentState == State.Running)
+            mRefreshHandler.post(mRefreshRunnable);
         // check onResume if the keys are created
         if (ApplicationState.isKeysCreated()) {
             //hide message
@@ -665,6 +663,9 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
         Context context = RunActivity.this;
         //unregister receiver
         unregisterReceiver(mBroadcastReceiver);
+        // the run is abandoned
+        stopRunService();
+        RunJournal.delete(context);
         if (finishAll) {
             // finish this activity
             ((Activity) context).finish();
@@ -683,8 +684,7 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
                 final RunItem item = new RunItem();
 
                 ServerCalculations calculations = new ServerCalculations(item);
-                calculations.processAndEncrypt(cartesianX, cartesianY, cartesianZ, timeStamps, gyroscopeValues,
-                        accelerometerValues, elevationGainDeltas, avgPaceDeltas, mElevationGainSum, mMapSnapshot);
+                calculations.processAndEncrypt(mSamples, mElevationGainSum, mMapSnapshot);
                 clearGPSVariables();
                 Log.e(TAG, "Inserting run data on Server ");
                 Analytics.trackEvent("Inserting run data on Server ");
@@ -707,9 +707,11 @@ public class RunActivity extends AppCompatActivity implements OnMapReadyCallback
                 if (mMapSnapshot != null)
                     item.setMapSnapshot(mMapSnapshot);
 
-                // add the current run item in the local memory
-                ApplicationState.getLocalRunItems().add(0, item);
+                // add the current run item in the local memory, once it's saved
                 ApplicationState.storeLocalRunItem(item);
+                ApplicationState.getLocalRunItems().add(0, item);
+                // the run is saved, it doesn't need to be recovered anymore
+                RunJournal.delete(RunActivity.this);
                 // send data on server
                 SyncDataService.startSendDataOnServer(RunActivity.this);
             } catch (final Exception e) {
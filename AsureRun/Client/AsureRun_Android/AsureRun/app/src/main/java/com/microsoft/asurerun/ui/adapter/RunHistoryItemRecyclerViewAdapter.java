@@ -9,8 +9,11 @@ import android.support.annotation.NonNull;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
+import android.support.v7.recyclerview.extensions.AsyncListDiffer;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -19,18 +22,27 @@ import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.microsoft.asurerun.R;
 import com.microsoft.asurerun.model.ApplicationState;
+import com.microsoft.asurerun.model.RunDecryptionEngine;
 import com.microsoft.asurerun.model.RunItem;
-import com.microsoft.asurerun.model.ServerCalculations;
+import com.microsoft.asurerun.model.RunSummary;
+import com.microsoft.asurerun.model.ThumbnailCache;
 import com.microsoft.asurerun.ui.fragments.HistoryDetailsFragment;
 import com.microsoft.asurerun.util.Utils;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 
 import static com.microsoft.asurerun.util.CacheUtil.MILES_VALUE;
 import static com.microsoft.asurerun.util.DateUtil.*;
@@ -38,11 +50,37 @@ import static com.microsoft.asurerun.util.ServiceUtil.MILES_KILOMETERS_CONVERSIO
 
 
 /**
- * {@link RecyclerView.Adapter} that can display a {@link RunItem}
+ * {@link RecyclerView.Adapter} that can display a {@link RunItem}. New lists are diffed against
+ * the shown one on a background thread, and only the rows that changed are rebound. A row whose
+ * summary isn't decrypted yet shows a placeholder until it is, the rows on screen being decrypted
+ * ahead of any other run.
  */
 public class RunHistoryItemRecyclerViewAdapter extends RecyclerView.Adapter {
 
-    private List<RunItem> mValues;
+    // the id of the progress row, run numbers are never negative
+    private static final long LOADING_ITEM_ID = -2;
+
+    /**
+     * Rows are the same run if they have the same run number, and unchanged as long as the run
+     * is still local, or still the same run on the server
+     */
+    private static final DiffUtil.ItemCallback<RunItem> DIFF_CALLBACK = new DiffUtil.ItemCallback<RunItem>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull RunItem oldItem, @NonNull RunItem newItem) {
+            return oldItem.getRunNumber() == newItem.getRunNumber();
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull RunItem oldItem, @NonNull RunItem newItem) {
+            return oldItem == newItem || (oldItem.isLocalItem() == newItem.isLocalItem()
+                    && !oldItem.isLocalItem() && TextUtils.equals(oldItem.getId(), newItem.getId()));
+        }
+    };
+
+    private final AsyncListDiffer<RunItem> mDiffer = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    // the runs last set, without the progress row
+    private List<RunItem> mItems;
+    private boolean mShowLoadingItem;
     private Context mContext;
     private final static String TAG = "HIST_ADPT";
     private String mUnitMeasure;
@@ -51,10 +89,13 @@ public class RunHistoryItemRecyclerViewAdapter extends RecyclerView.Adapter {
     private OnLoadMoreListener onLoadMoreListener;
     private final int VIEW_ITEM = 1;
     private final int VIEW_PROG = 0;
+    // how many rows before the end of the list the next page is asked for
+    private static final int LOAD_MORE_DISTANCE = 3;
 
     public RunHistoryItemRecyclerViewAdapter(Context context, String unitMeasure, RecyclerView recyclerView) {
-        mValues = new ArrayList<>();
+        mItems = new ArrayList<>();
         mContext = context;
+        setHasStableIds(true);
         mUnitMeasure = unitMeasure;
         if (recyclerView.getLayoutManager() instanceof LinearLayoutManager) {
             final LinearLayoutManager linearLayoutManager = (LinearLayoutManager) recyclerView
@@ -66,7 +107,7 @@ public class RunHistoryItemRecyclerViewAdapter extends RecyclerView.Adapter {
                     super.onScrolled(recyclerView, dx, dy);
                     totalItemCount = getItemCount() - 1;
                     lastVisibleItem = linearLayoutManager.findLastVisibleItemPosition();
-                    if (!loading && totalItemCount == lastVisibleItem) {
+                    if (!loading && dy > 0 && lastVisibleItem + LOAD_MORE_DISTANCE >= totalItemCount) {
                         if (onLoadMoreListener != null) {
                             onLoadMoreListener.onLoadMore();
                         }
@@ -77,20 +118,64 @@ public class RunHistoryItemRecyclerViewAdapter extends RecyclerView.Adapter {
         }
     }
 
+    /**
+     * Shows the runs, once each, in place of the ones shown. Runs already shown keep their
+     * instance, along with whatever was decrypted for them, and the progress row goes away.
+     */
     public void setItems(List<RunItem> items) {
-        // Only add objects that don't already exist in the current list to avoid unnecessary decryption
-        for(RunItem serverItem : items) {
-            boolean add = true;
-            for(RunItem localItem : mValues) {
-                if (localItem.getRunNumber() == serverItem.getRunNumber()) {
-                    add = false;
-                    break;
-                }
-            }
-            if(add) {
-                mValues.add(serverItem);
-            }
+        Map<String, RunItem> shownItems = new HashMap<>();
+        for (RunItem item : mItems) {
+            if (!item.isLocalItem() && item.getId() != null)
+                shownItems.put(item.getId(), item);
+        }
+        Map<Integer, RunItem> newItems = new LinkedHashMap<>();
+        for (RunItem item : items) {
+            if (item == null || newItems.containsKey(item.getRunNumber()))
+                continue;
+            RunItem shown = item.isLocalItem() ? null : shownItems.get(item.getId());
+            newItems.put(item.getRunNumber(), shown != null ? shown : item);
         }
+        mItems = new ArrayList<>(newItems.values());
+        mShowLoadingItem = false;
+        submit();
+    }
+
+    /**
+     * Shows a progress bar at the bottom of the list while the next page loads
+     */
+    public void showLoadingItem() {
+        mShowLoadingItem = true;
+        submit();
+    }
+
+    public void hideLoadingItem() {
+        if (mShowLoadingItem) {
+            mShowLoadingItem = false;
+            submit();
+        }
+    }
+
+    private void removeItem(RunItem item) {
+        List<RunItem> items = new ArrayList<>(mItems.size());
+        for (RunItem shown : mItems) {
+            // RunItem.equals goes by id, which local runs don't have
+            if (shown != item)
+                items.add(shown);
+        }
+        mItems = items;
+        submit();
+    }
+
+    private void submit() {
+        List<RunItem> list = new ArrayList<>(mItems.size() + 1);
+        list.addAll(mItems);
+        if (mShowLoadingItem)
+            list.add(null);
+        mDiffer.submitList(list);
+    }
+
+    private RunItem getItem(int position) {
+        return mDiffer.getCurrentList().get(position);
     }
 
     @Override
@@ -112,118 +197,229 @@ public class RunHistoryItemRecyclerViewAdapter extends RecyclerView.Adapter {
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder viewHolder, int position) {
         if (viewHolder instanceof RunItemHolder) {
             final RunItemHolder holder = ((RunItemHolder) viewHolder);
-            holder.mItem = mValues.get(position);
+            cancelSummary(holder);
+            holder.mItem = getItem(position);
             Log.e(TAG, "run number: " + holder.mItem.getRunNumber());
-            long avgPace = 0, time = 0;
-            double distance = 0.0;
-            Bitmap thumbnail = null;
-            Calendar calendar = null;
-            double mlResult = 0.0;
-            // get data from items
             if (holder.mItem.isLocalItem()) {
-                Log.e(TAG, "Local item = " + holder.mItem.toString());
-                time = holder.mItem.getTotalTime();
-                distance = (mUnitMeasure.equals(MILES_VALUE)) ? holder.mItem.getTotalDistance() / MILES_KILOMETERS_CONVERSION_RATE : holder.mItem.getTotalDistance();
-                calendar = holder.mItem.getDate();
-            } else {
-                ServerCalculations sv = null;
-                try {
-                    sv = holder.mItem.decryptStatsAndSummary();
-                    time = (long) sv.getTotalTime();
-                    calendar = sv.getDate();
-                    thumbnail = sv.getThumbnail();
-                    distance = (mUnitMeasure.equals(MILES_VALUE)) ? sv.getTotalDistance() / MILES_KILOMETERS_CONVERSION_RATE : sv.getTotalDistance();
-                    mlResult = sv.getMlResult();
-                } catch (Exception e) {
-                    Log.e(TAG, e.getMessage());
-                }
+                bindLocalItem(holder);
+                return;
             }
-
-            if (holder.mItem.isLocalItem()) {
-                holder.mDistance.setVisibility(View.INVISIBLE);
-                holder.mAvgPace.setVisibility(View.INVISIBLE);
-                holder.mRunMap.setImageBitmap(holder.mItem.getMapSnapshot());
-                holder.mTime.setVisibility(View.INVISIBLE);
-                holder.mProcessing.setVisibility(View.VISIBLE);
-                holder.mView.setBackgroundColor(holder.cardInactive);
-                holder.mRunClassification.setVisibility(View.INVISIBLE);
+            // get data from items, decrypting off the main thread if they aren't loaded yet
+            RunSummary summary = holder.mItem.getLoadedRunSummary();
+            if (summary != null) {
+                bindSummary(holder, summary);
             } else {
-                holder.mProcessing.setVisibility(View.INVISIBLE);
-                holder.mDistance.setVisibility(View.VISIBLE);
-                holder.mAvgPace.setVisibility(View.VISIBLE);
-                holder.mTime.setVisibility(View.VISIBLE);
-                holder.mRunClassification.setVisibility(View.VISIBLE);
-                if (thumbnail != null) {
-                    holder.mRunMap.setImageBitmap(thumbnail);
-                } else {
-                    holder.mRunMap.setImageDrawable(mContext.getDrawable(R.drawable.placeholder));
+                bindPlaceholder(holder);
+                loadSummary(holder);
+            }
+            holder.mView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    HistoryDetailsFragment mHistoryDetailsFragment = HistoryDetailsFragment.newInstance();
+                    // set selected RunItem
+                    ApplicationState.setSelectedRunItem(holder.mItem);
+                    FragmentManager fragmentManager = ((FragmentActivity) mContext).getSupportFragmentManager();
+                    FragmentTransaction fragmentTransaction = fragmentManager.beginTransaction();
+                    fragmentTransaction.setCustomAnimations(R.anim.slide_in_left, R.anim.slide_out_right, android.R.anim.slide_in_left, android.R.anim.slide_out_right);
+                    fragmentTransaction.replace(R.id.frameLayout, mHistoryDetailsFragment);
+                    fragmentTransaction.addToBackStack(null);
+                    fragmentTransaction.commit();
                 }
-                holder.mView.setBackgroundColor(holder.cardActive);
-
-                // set distance label
-                holder.mDistance.setText(String.format("%.1f ", distance));
-                // set pace label
-                if (distance >= 0.001) {
-                    avgPace = (long) (time / distance);
-                    holder.mAvgPace.setText(getFormattedTimeFromSeconds(avgPace));
-                    // set pace unit measure
-                    holder.mAvgPace.append("/" + (mUnitMeasure.equals(MILES_VALUE) ? "mi" : "km"));
-                } else {
-                    holder.mAvgPace.setText("00:00");
-                    holder.mAvgPace.append("/" + (mUnitMeasure.equals(MILES_VALUE) ? "mi" : "km"));
+            });
+            holder.mDeleteRun.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    removeItem(holder.mItem);
+                    ApplicationState.deleteRunItem(mContext, holder.mItem);
                 }
+            });
+        } else {
+            ((ProgressViewHolder) viewHolder).progressBar.setIndeterminate(true);
+        }
+    }
 
-                // set unit measure label
-                if (mUnitMeasure.equals(MILES_VALUE)) {
-                    // convert in miles
-                    holder.mDistance.append(mContext.getString(R.string.run_summary_distance_unit_miles));
-                } else {
-                    holder.mDistance.append(mContext.getString(R.string.run_summary_distance_unit_km));
-                }
-                holder.mView.setOnClickListener(new View.OnClickListener() {
-                    @Override
-                    public void onClick(View v) {
-                        HistoryDetailsFragment mHistoryDetailsFragment = HistoryDetailsFragment.newInstance();
-                        // set selected RunItem
-                        ApplicationState.setSelectedRunItem(holder.mItem);
-                        FragmentManager fragmentManager = ((FragmentActivity) mContext).getSupportFragmentManager();
-                        FragmentTransaction fragmentTransaction = fragmentManager.beginTransaction();
-                        fragmentTransaction.setCustomAnimations(R.anim.slide_in_left, R.anim.slide_out_right, android.R.anim.slide_in_left, android.R.anim.slide_out_right);
-                        fragmentTransaction.replace(R.id.frameLayout, mHistoryDetailsFragment);
-                        fragmentTransaction.addToBackStack(null);
-                        fragmentTransaction.commit();
-                        notifyDataSetChanged();
-                    }
-                });
-                holder.mDeleteRun.setOnClickListener(new View.OnClickListener() {
-                    @Override
-                    public void onClick(View v) {
-                        mValues.remove(holder.mItem);
-                        ApplicationState.deleteRunItem(mContext, holder.mItem);
-                        notifyDataSetChanged();
-                    }
-                });
+    @Override
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder viewHolder) {
+        super.onViewRecycled(viewHolder);
+        if (viewHolder instanceof RunItemHolder) {
+            RunItemHolder holder = (RunItemHolder) viewHolder;
+            cancelSummary(holder);
+            // the thumbnail may be evicted and reused while the holder waits in the pool
+            holder.mRunMap.setImageDrawable(null);
+        }
+    }
+
+    /**
+     * Decrypts the summary of the run of the holder ahead of the runs that aren't on screen, and
+     * binds it if the holder still shows that run by then
+     */
+    private void loadSummary(final RunItemHolder holder) {
+        final RunItem item = holder.mItem;
+        final ListenableFuture<RunSummary> future = RunDecryptionEngine.getInstance()
+                .decrypt(item, RunDecryptionEngine.RUN_SUMMARY, RunDecryptionEngine.PRIORITY_VISIBLE);
+        holder.mPendingSummary = future;
+        Futures.addCallback(future, new FutureCallback<RunSummary>() {
+            @Override
+            public void onSuccess(RunSummary summary) {
+                if (holder.mPendingSummary != future)
+                    return;
+                holder.mPendingSummary = null;
+                bindSummary(holder, summary);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (holder.mPendingSummary != future)
+                    return;
+                holder.mPendingSummary = null;
+                if (!(t instanceof CancellationException))
+                    Log.e(TAG, t.getMessage());
+            }
+        }, RunDecryptionEngine.getInstance().getMainThreadExecutor());
+    }
+
+    /**
+     * Loads the thumbnail of the run of the holder, after it was evicted from memory, and shows it
+     * if the holder still shows that run by then
+     */
+    private void loadThumbnail(final RunItemHolder holder) {
+        final ListenableFuture<Bitmap> future = RunDecryptionEngine.getInstance()
+                .decrypt(holder.mItem, RunDecryptionEngine.THUMBNAIL, RunDecryptionEngine.PRIORITY_VISIBLE);
+        holder.mPendingThumbnail = future;
+        Futures.addCallback(future, new FutureCallback<Bitmap>() {
+            @Override
+            public void onSuccess(Bitmap thumbnail) {
+                if (holder.mPendingThumbnail != future)
+                    return;
+                holder.mPendingThumbnail = null;
+                holder.mRunMap.setImageBitmap(thumbnail);
             }
-            holder.mRunClassification.setText(Utils.determineIntensity(mContext.getResources(), mlResult));
-            if (calendar != null) {
-                holder.mDate.setText(getFormattedDateFromCalendar(calendar));
-                holder.mTime.setText(getFormattedTimeFromSeconds(time));
-                holder.mTitle.setText(new SimpleDateFormat("EEEE", Locale.ENGLISH)
-                        .format(calendar.getTime()) + " " + getDayPhases(mContext, calendar) + " Run");
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (holder.mPendingThumbnail != future)
+                    return;
+                holder.mPendingThumbnail = null;
+                if (!(t instanceof CancellationException))
+                    Log.e(TAG, t.getMessage());
             }
+        }, RunDecryptionEngine.getInstance().getMainThreadExecutor());
+    }
+
+    /**
+     * The holder no longer shows the run it was loading: stop decrypting it unless it started
+     */
+    private void cancelSummary(RunItemHolder holder) {
+        if (holder.mPendingSummary != null) {
+            holder.mPendingSummary = null;
+            RunDecryptionEngine.getInstance().cancel(holder.mItem, RunDecryptionEngine.RUN_SUMMARY);
+        }
+        if (holder.mPendingThumbnail != null) {
+            holder.mPendingThumbnail = null;
+            RunDecryptionEngine.getInstance().cancel(holder.mItem, RunDecryptionEngine.THUMBNAIL);
+        }
+    }
+
+    private void bindLocalItem(RunItemHolder holder) {
+        Log.e(TAG, "Local item = " + holder.mItem.toString());
+        holder.mDistance.setVisibility(View.INVISIBLE);
+        holder.mAvgPace.setVisibility(View.INVISIBLE);
+        holder.mRunMap.setImageBitmap(holder.mItem.getMapSnapshot());
+        holder.mTime.setVisibility(View.INVISIBLE);
+        holder.mProcessing.setVisibility(View.VISIBLE);
+        holder.mView.setBackgroundColor(holder.cardInactive);
+        holder.mRunClassification.setVisibility(View.INVISIBLE);
+        holder.mView.setOnClickListener(null);
+        holder.mDeleteRun.setOnClickListener(null);
+        bindDate(holder, holder.mItem.getDate(), true, holder.mItem.getTotalTime());
+    }
+
+    /**
+     * Shows a server run whose summary is still being decrypted
+     */
+    private void bindPlaceholder(RunItemHolder holder) {
+        holder.mProcessing.setVisibility(View.INVISIBLE);
+        holder.mDistance.setVisibility(View.INVISIBLE);
+        holder.mAvgPace.setVisibility(View.INVISIBLE);
+        holder.mTime.setVisibility(View.INVISIBLE);
+        holder.mRunClassification.setVisibility(View.INVISIBLE);
+        holder.mRunMap.setImageDrawable(mContext.getDrawable(R.drawable.placeholder));
+        holder.mView.setBackgroundColor(holder.cardActive);
+        holder.mDate.setText("");
+        holder.mTitle.setText("");
+    }
+
+    private void bindSummary(RunItemHolder holder, RunSummary sv) {
+        long avgPace = 0;
+        long time = (long) sv.getTotalTime();
+        double distance = (mUnitMeasure.equals(MILES_VALUE)) ? sv.getTotalDistance() / MILES_KILOMETERS_CONVERSION_RATE : sv.getTotalDistance();
+        Bitmap thumbnail = ThumbnailCache.getInstance().getCached(holder.mItem.getId());
+
+        holder.mProcessing.setVisibility(View.INVISIBLE);
+        holder.mDistance.setVisibility(View.VISIBLE);
+        holder.mAvgPace.setVisibility(View.VISIBLE);
+        holder.mTime.setVisibility(View.VISIBLE);
+        holder.mRunClassification.setVisibility(View.VISIBLE);
+        if (thumbnail != null) {
+            holder.mRunMap.setImageBitmap(thumbnail);
         } else {
-            ((ProgressViewHolder) viewHolder).progressBar.setIndeterminate(true);
+            holder.mRunMap.setImageDrawable(mContext.getDrawable(R.drawable.placeholder));
+            if (holder.mPendingThumbnail == null)
+                loadThumbnail(holder);
+        }
+        holder.mView.setBackgroundColor(holder.cardActive);
+
+        // set distance label
+        holder.mDistance.setText(String.format("%.1f ", distance));
+        // set pace label
+        if (distance >= 0.001) {
+            avgPace = (long) (time / distance);
+            holder.mAvgPace.setText(getFormattedTimeFromSeconds(avgPace));
+            // set pace unit measure
+            holder.mAvgPace.append("/" + (mUnitMeasure.equals(MILES_VALUE) ? "mi" : "km"));
+        } else {
+            holder.mAvgPace.setText("00:00");
+            holder.mAvgPace.append("/" + (mUnitMeasure.equals(MILES_VALUE) ? "mi" : "km"));
+        }
+
+        // set unit measure label
+        if (mUnitMeasure.equals(MILES_VALUE)) {
+            // convert in miles
+            holder.mDistance.append(mContext.getString(R.string.run_summary_distance_unit_miles));
+        } else {
+            holder.mDistance.append(mContext.getString(R.string.run_summary_distance_unit_km));
+        }
+        holder.mRunClassification.setText(Utils.determineIntensity(mContext.getResources(), sv.getMlResult()));
+        bindDate(holder, sv.getDate(), sv.hasStartTime(), time);
+    }
+
+    /**
+     * @param hasStartTime false if the calendar only holds the day of the run, then the title
+     *                     leaves out the phase of the day
+     */
+    private void bindDate(RunItemHolder holder, Calendar calendar, boolean hasStartTime, long time) {
+        if (calendar != null) {
+            holder.mDate.setText(getFormattedDateFromCalendar(calendar));
+            holder.mTime.setText(getFormattedTimeFromSeconds(time));
+            String day = new SimpleDateFormat("EEEE", Locale.ENGLISH).format(calendar.getTime());
+            holder.mTitle.setText(hasStartTime ? day + " " + getDayPhases(mContext, calendar) + " Run" : day + " Run");
         }
     }
 
     @Override
     public int getItemCount() {
-        return mValues.size();
+        return mDiffer.getCurrentList().size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        RunItem item = getItem(position);
+        return item != null ? item.getRunNumber() : LOADING_ITEM_ID;
     }
 
     @Override
     public int getItemViewType(int position) {
-        return mValues.get(position) != null ? VIEW_ITEM : VIEW_PROG;
+        return getItem(position) != null ? VIEW_ITEM : VIEW_PROG;
     }
 
     public void setOnLoadMoreListener(OnLoadMoreListener onLoadMoreListener) {
@@ -247,6 +443,10 @@ public class RunHistoryItemRecyclerViewAdapter extends RecyclerView.Adapter {
         public final TextView mDeleteRun;
         public final ImageView mRunMap;
         public RunItem mItem;
+        // the summary being decrypted for mItem, null once bound
+        ListenableFuture<RunSummary> mPendingSummary;
+        // the thumbnail being loaded for mItem, null once shown
+        ListenableFuture<Bitmap> mPendingThumbnail;
 
         public int cardActive;
         public int cardInactive;
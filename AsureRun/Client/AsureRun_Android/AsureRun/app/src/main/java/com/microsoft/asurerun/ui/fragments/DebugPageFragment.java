@@ -2,6 +2,8 @@
 // Licensed under the MIT License.
 package com.microsoft.asurerun.ui.fragments;
 
+import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v7.app.AppCompatActivity;
@@ -15,6 +17,8 @@ import android.widget.TextView;
 
 import com.microsoft.asurerun.BuildConfig;
 import com.microsoft.asurerun.R;
+import com.microsoft.asurerun.model.ApplicationState;
+import com.microsoft.asurerun.util.CryptoBenchmark;
 import com.microsoft.asurerun.util.Utils;
 
 import java.text.SimpleDateFormat;
@@ -23,7 +27,8 @@ import java.util.Locale;
 
 public class DebugPageFragment extends Fragment {
     public final static String TAG = DebugPageFragment.class.getCanonicalName();
-    private TextView mDebugLabel,mBuildNumber,mKeyDimension,mBuildDate;
+    private final static int BENCHMARK_ITERATIONS = 5;
+    private TextView mDebugLabel,mBuildNumber,mKeyDimension,mBuildDate,mCryptoBenchmark;
 
     public DebugPageFragment() {
         // Required empty public constructor
@@ -66,6 +71,48 @@ public class DebugPageFragment extends Fragment {
         String debugText = getString(R.string.debug_fragment_header_text_left)+getString(R.string.service_url)+
                 ">"+getString(R.string.service_url)+ getString(R.string.debug_fragment_header_text_right);
         mDebugLabel.setText(Html.fromHtml(debugText));
+        mCryptoBenchmark = (TextView) v.findViewById(R.id.cryptoBenchmark);
+        mCryptoBenchmark.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                runCryptoBenchmark();
+            }
+        });
         return v;
     }
+
+    /**
+     * Times uncached vs single vs batched encryption/decryption of a run on a background thread
+     */
+    private void runCryptoBenchmark() {
+        if (!ApplicationState.isKeysCreated()) {
+            mCryptoBenchmark.setText(R.string.debug_fragment_benchmark_no_keys);
+            return;
+        }
+        mCryptoBenchmark.setEnabled(false);
+        mCryptoBenchmark.setText(R.string.debug_fragment_benchmark_running);
+        final Context context = getActivity().getApplicationContext();
+        Utils.runAsyncTask(new AsyncTask<Void, Void, Void>() {
+            private String mResult;
+
+            @Override
+            protected Void doInBackground(Void... voids) {
+                try {
+                    mResult = CryptoBenchmark.run(context, BENCHMARK_ITERATIONS);
+                } catch (Exception e) {
+                    Log.e(TAG, "Crypto benchmark failed", e);
+                    mResult = context.getString(R.string.debug_fragment_benchmark_failed, e.getMessage());
+                }
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void aVoid) {
+                if (!isAdded())
+                    return;
+                mCryptoBenchmark.setEnabled(true);
+                mCryptoBenchmark.setText(mResult);
+            }
+        });
+    }
 }
@@ -4,6 +4,7 @@ package com.microsoft.asurerun.ui.fragments;
 
 import android.content.Context;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
@@ -39,6 +40,7 @@ import com.microsoft.asurerun.model.ServerCalculations;
 import com.microsoft.asurerun.util.MapUtil;
 import com.microsoft.asurerun.util.Utils;
 
+import java.lang.ref.WeakReference;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -108,48 +110,13 @@ public class HistoryDetailsFragment extends Fragment implements OnMapReadyCallba
         mChart = (LineChart) view.findViewById(R.id.chart);
         mRunClassification = (TextView) view.findViewById(R.id.itemClassification);
         // set UI values
-        long avgPace = 0, time = 0;
-        double distance = 0.0, elevationGain = 0.0;
-        Calendar calendar = null;
         if (mSelectedRunItem.isLocalItem()) {
-            time = mSelectedRunItem.getTotalTime();
-            elevationGain = mSelectedRunItem.getElevationGain();
-            distance = (unitMeasure.equals(MILES_VALUE)) ? mSelectedRunItem.getTotalDistance() / MILES_KILOMETERS_CONVERSION_RATE : mSelectedRunItem.getTotalDistance();
-            calendar = mSelectedRunItem.getDate();
+            double distance = (unitMeasure.equals(MILES_VALUE)) ? mSelectedRunItem.getTotalDistance() / MILES_KILOMETERS_CONVERSION_RATE : mSelectedRunItem.getTotalDistance();
+            showRun(mSelectedRunItem.getTotalTime(), distance, mSelectedRunItem.getElevationGain(), mSelectedRunItem.getDate());
         } else {
-            ServerCalculations sv = null;
-            try {
-                sv = mSelectedRunItem.decryptStatsAndSummary();
-                time = (long) sv.getTotalTime();
-                mElevationGainDeltas = sv.getElevationGainDeltas();
-                mAvgPaceDeltas = sv.getAvgPaceDeltas();
-                if (sv.getElevationGain() > 0)
-                    elevationGain = sv.getElevationGain();
-                calendar = sv.getDate();
-                distance = (unitMeasure.equals(MILES_VALUE)) ? sv.getTotalDistance() / MILES_KILOMETERS_CONVERSION_RATE : sv.getTotalDistance();
-                Log.e(TAG, "distance" + distance);
-                mPolylinePoints = Arrays.asList(sv.getCoordinates());
-                mRunClassification.setText(Utils.determineIntensity(getResources(), sv.getMlResult()));
-            } catch (Exception e) {
-                Log.e(TAG, e.getMessage());
-            }
-        }
-        // set pace label
-        if (distance >= 0.001) {
-            avgPace = (long) (time / distance);
-            mPace.setText(getFormattedTimeFromSeconds(avgPace));
-        }
-        if (calendar != null)
-            mRunTitle.setText(new SimpleDateFormat("EEEE", Locale.ENGLISH).format(calendar.getTime())
-                    + " " + getDayPhases(getActivity(), calendar) + " Run");
-        if (unitMeasure.equals(MILES_VALUE)) {
-            mDistance.setText(String.format("%.1f mi", distance));
-            mElevationGain.setText(String.format("%.1f ft", elevationGain / METER_FOOT_CONVERSION_RATE));
-        } else {
-            mDistance.setText(String.format("%.1f km", distance));
-            mElevationGain.setText(String.format("%.1f m", elevationGain));
+            // the coordinates and deltas are downloaded and decrypted off the main thread
+            Utils.runAsyncTask(new LoadRunDetails(this, mSelectedRunItem));
         }
-        mElapsedTime.setText(getFormattedTimeFromSeconds(time));
         // no description text
         mChart.getDescription().setEnabled(false);
 
@@ -209,6 +176,30 @@ public class HistoryDetailsFragment extends Fragment implements OnMapReadyCallba
         return view;
     }
 
+    /**
+     * Shows the totals of the run
+     *
+     * @param distance in the unit shown
+     */
+    private void showRun(long time, double distance, double elevationGain, Calendar calendar) {
+        // set pace label
+        if (distance >= 0.001) {
+            long avgPace = (long) (time / distance);
+            mPace.setText(getFormattedTimeFromSeconds(avgPace));
+        }
+        if (calendar != null)
+            mRunTitle.setText(new SimpleDateFormat("EEEE", Locale.ENGLISH).format(calendar.getTime())
+                    + " " + getDayPhases(getActivity(), calendar) + " Run");
+        if (unitMeasure.equals(MILES_VALUE)) {
+            mDistance.setText(String.format("%.1f mi", distance));
+            mElevationGain.setText(String.format("%.1f ft", elevationGain / METER_FOOT_CONVERSION_RATE));
+        } else {
+            mDistance.setText(String.format("%.1f km", distance));
+            mElevationGain.setText(String.format("%.1f m", elevationGain));
+        }
+        mElapsedTime.setText(getFormattedTimeFromSeconds(time));
+    }
+
     private void setData() {
         ArrayList<Entry> mAvgPaceEntries = new ArrayList<Entry>();
         ArrayList<Entry> mElevationGainEntries = new ArrayList<Entry>();
@@ -256,10 +247,65 @@ public class HistoryDetailsFragment extends Fragment implements OnMapReadyCallba
     }
 
 
+    /**
+     * Downloads the ciphertexts the run list leaves out, then decrypts everything the details
+     * show, all on a background thread
+     */
+    private static class LoadRunDetails extends AsyncTask<Void, Void, ServerCalculations> {
+        private final WeakReference<HistoryDetailsFragment> mWeakFragment;
+        private final RunItem mRunItem;
+
+        LoadRunDetails(HistoryDetailsFragment fragment, RunItem runItem) {
+            mWeakFragment = new WeakReference<>(fragment);
+            mRunItem = runItem;
+        }
+
+        @Override
+        protected ServerCalculations doInBackground(Void... voids) {
+            try {
+                ServerCalculations sv = mRunItem.decryptStatsAndSummary();
+                // decrypt the per point data here rather than on the main thread
+                sv.getCoordinates();
+                sv.getElevationGainDeltas();
+                sv.getDate();
+                sv.getMlResult();
+                return sv;
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(ServerCalculations sv) {
+            HistoryDetailsFragment fragment = mWeakFragment.get();
+            if (sv == null || fragment == null || !fragment.isAdded())
+                return;
+            fragment.mElevationGainDeltas = sv.getElevationGainDeltas();
+            fragment.mAvgPaceDeltas = sv.getAvgPaceDeltas();
+            double elevationGain = sv.getElevationGain() > 0 ? sv.getElevationGain() : 0;
+            double distance = (fragment.unitMeasure.equals(MILES_VALUE)) ? sv.getTotalDistance() / MILES_KILOMETERS_CONVERSION_RATE : sv.getTotalDistance();
+            Log.e(TAG, "distance" + distance);
+            fragment.showRun((long) sv.getTotalTime(), distance, elevationGain, sv.getDate());
+            fragment.mRunClassification.setText(Utils.determineIntensity(fragment.getResources(), sv.getMlResult()));
+            fragment.setData();
+            fragment.mPolylinePoints = Arrays.asList(sv.getCoordinates());
+            if (fragment.mMap != null)
+                fragment.drawRoute();
+        }
+    }
+
     @Override
     public void onMapReady(GoogleMap googleMap) {
         mMap = googleMap;
         MapUtil.changeMapStyle(TAG, mMap, getActivity());
+        drawRoute();
+    }
+
+    /**
+     * Draws the route of the run once both the map and the coordinates are ready
+     */
+    private void drawRoute() {
         if (mPolylinePoints != null && mPolylinePoints.size() > 1) {
             mMap.addPolyline(new PolylineOptions()
                     .addAll(mPolylinePoints)
@@ -26,8 +26,8 @@ import com.github.mikephil.charting.utils.MPPointF;
 
 import com.microsoft.asurerun.R;
 import com.microsoft.asurerun.model.ApplicationState;
+import com.microsoft.asurerun.model.RunDecryptionEngine;
 import com.microsoft.asurerun.model.RunItem;
-import com.microsoft.asurerun.model.ServerCalculations;
 import com.microsoft.asurerun.util.CacheUtil;
 import com.microsoft.asurerun.util.Utils;
 import com.microsoft.windowsazure.mobileservices.MobileServiceException;
@@ -177,48 +177,49 @@ public class PredictionsFragment extends Fragment {
     }
 
     /**
-     * Decrypts the prediction results. It takes a while, so this is done asynchronously.
+     * Decrypts the prediction results. It takes a while, so this is done in parallel on the
+     * decryption engine, which only decrypts the ML ciphertext of each run.
      */
     private void asyncGetIntensities() {
-        AsyncTask<Void, Void, Void> task = new AsyncTask<Void, Void, Void>() {
+        // Determine how much of each run there is based on the output string of the prediction.
+        final String medIntensityStr = getResources().getString(R.string.classification_medium);
+        final String highIntensityStr = getResources().getString(R.string.classification_high);
+        // No need for low since it's the only other option if medium and high aren't it.
+        List<RunItem> runItems = new ArrayList<>(ApplicationState.getLocalRunItems());
+        RunDecryptionEngine.getInstance().decryptAll(runItems, RunDecryptionEngine.ML_RESULT, new RunDecryptionEngine.Listener<Double>() {
             @Override
-            protected Void doInBackground(Void... params) {
-                // Determine how much of each run there is based on the output string of the prediction.
-                String medIntensityStr = getResources().getString(R.string.classification_medium);
-                String highIntensityStr = getResources().getString(R.string.classification_high);
-                // No need for low since it's the only other option if medium and high aren't it.
-                List<RunItem> runItems = ApplicationState.getLocalRunItems();
-                for(int i = 0; i < runItems.size(); ++i) {
-                    try {
-                        ServerCalculations calc = runItems.get(i).decryptStatsAndSummary();
-                        String mlResult = Utils.determineIntensity(getResources(), calc.getMlResult());
-                        if(mlResult == highIntensityStr)
-                            ++mHighRuns;
-                        else if(mlResult == medIntensityStr)
-                            ++mMedRuns;
-                        else
-                            ++mLowRuns;
-                    } catch(Exception e) {
-                        Log.e(TAG, "Error calculating prediction: " + e.getMessage());
-                    }
-                }
-                return null;
+            public void onRunDecrypted(RunItem item, Double prediction) {
+                if (!isAdded())
+                    return;
+                String mlResult = Utils.determineIntensity(getResources(), prediction);
+                if(mlResult == highIntensityStr)
+                    ++mHighRuns;
+                else if(mlResult == medIntensityStr)
+                    ++mMedRuns;
+                else
+                    ++mLowRuns;
             }
 
             @Override
-            protected void onPostExecute(Void aVoid) {
+            public void onRunDecryptionFailed(RunItem item, Throwable t) {
+                Log.e(TAG, "Error calculating prediction: " + t.getMessage());
+            }
+
+            @Override
+            public void onAllRunsDecrypted() {
+                if (!isAdded())
+                    return;
                 setData();
                 revealPieChart();
             }
-        };
-        Utils.runAsyncTask(task);
+        });
     }
 
     /**
      * Refresh the list with the items in the Mobile Service Table
      */
     private List<RunItem> refreshItemsFromMobileServiceTable() throws MobileServiceException, ExecutionException, InterruptedException {
-        List<RunItem> list = Collections.synchronizedList(ApplicationState.getRunTable().execute().get());
+        List<RunItem> list = Collections.synchronizedList(ApplicationState.getRunTable().select(RunItem.LIST_COLUMNS).execute().get());
         return list;
     }
 
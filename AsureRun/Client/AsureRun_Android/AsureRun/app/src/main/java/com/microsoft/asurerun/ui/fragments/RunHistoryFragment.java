@@ -9,7 +9,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.Handler;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.widget.SwipeRefreshLayout;
@@ -25,18 +24,15 @@ import android.widget.TabHost;
 import android.widget.TextView;
 
 import com.google.common.util.concurrent.FutureCallback;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
 import com.microsoft.asurerun.model.ApplicationState;
 import com.microsoft.asurerun.R;
+import com.microsoft.asurerun.model.LifetimeSummary;
 import com.microsoft.asurerun.model.RunItem;
-import com.microsoft.asurerun.model.ServerCalculations;
+import com.microsoft.asurerun.model.RunItemPager;
+import com.microsoft.asurerun.model.RunItemSync;
+import com.microsoft.asurerun.model.RunTotals;
 import com.microsoft.asurerun.ui.adapter.RunHistoryItemRecyclerViewAdapter;
-import com.microsoft.asurerun.util.CacheUtil;
 import com.microsoft.asurerun.util.Utils;
-import com.microsoft.windowsazure.mobileservices.MobileServiceException;
-import com.microsoft.windowsazure.mobileservices.MobileServiceList;
-import com.microsoft.windowsazure.mobileservices.table.query.QueryOrder;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
@@ -45,7 +41,6 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
-import static com.microsoft.asurerun.model.ApplicationState.INITIAL_ITEMS_OFFSET;
 import static com.microsoft.asurerun.util.DateUtil.getFormattedTimeFromSeconds;
 import static com.microsoft.asurerun.util.DialogUtil.*;
 import static com.microsoft.asurerun.util.CacheUtil.KM_MILES_KEY;
@@ -67,9 +62,8 @@ public class RunHistoryFragment extends Fragment {
     public final static String TAG = "RUN_HISTORY";
     private String unitMeasure;
     private ProgressBar mProgressListBar;
-    private Handler handler;
-    // the number of items that are loaded each time new items are paginated
-    private final int ITEMS_TO_LOAD = 5;
+    // pages the older runs in as the list scrolls down
+    private final RunItemPager mPager = new RunItemPager();
 
 
     /**
@@ -111,44 +105,43 @@ public class RunHistoryFragment extends Fragment {
         mUnitMeasureText.setText((unitMeasure.equals(MILES_VALUE) ? getString(R.string.run_history_unit_label_miles) : getString(R.string.run_history_unit_label_km)));
         mRunItems = Collections.synchronizedList(new ArrayList<RunItem>());
         mAdapter = new RunHistoryItemRecyclerViewAdapter(this.getActivity(), unitMeasure, mRecyclerView);
-        handler = new Handler();
         mAdapter.setOnLoadMoreListener(new RunHistoryItemRecyclerViewAdapter.OnLoadMoreListener() {
             @Override
             public void onLoadMore() {
                 Log.e(TAG, "onLoadMore");
-                //add null , so the adapter will check view_type and show progress bar at bottom
-                mRunItems.add(null);
-                mAdapter.notifyItemInserted(mRunItems.size() - 1);
-                handler.postDelayed(new Runnable() {
+                final int lastSeen;
+                synchronized (mRunItems) {
+                    lastSeen = RunItemPager.getLastSeen(mRunItems);
+                }
+                if (!mPager.hasMore(lastSeen)) {
+                    mAdapter.setLoading(false);
+                    return;
+                }
+                // the progress item only shows up if the page wasn't prefetched
+                final boolean showProgress = !mPager.isReady(lastSeen);
+                if (showProgress)
+                    mAdapter.showLoadingItem();
+                mPager.next(lastSeen, new FutureCallback<List<RunItem>>() {
+                    @Override
+                    public void onSuccess(List<RunItem> result) {
+                        if (!isAdded())
+                            return;
+                        ApplicationState.getLocalRunItems().addAll(result);
+                        mRunItems.addAll(result);
+                        // drops the progress row as well
+                        refreshListItem();
+                        mAdapter.setLoading(false);
+                    }
+
                     @Override
-                    public void run() {
-                        ListenableFuture<MobileServiceList<RunItem>> loadMoreItems = null;
-                        loadMoreItems = ApplicationState.getRunTable().skip(mRunItems.size()).top(ITEMS_TO_LOAD).orderBy("runNumber", QueryOrder.Descending).execute();
-                        Futures.addCallback(loadMoreItems, new FutureCallback<MobileServiceList<RunItem>>() {
-                            @Override
-                            public void onSuccess(MobileServiceList<RunItem> result) {
-                                //   remove progress item
-                                mRunItems.remove(mRunItems.size() - 1);
-                                mAdapter.notifyItemRemoved(mRunItems.size());
-                                ApplicationState.getLocalRunItems().addAll(result);
-                                for (RunItem item : result) {
-                                    mRunItems.add(item);
-                                    mAdapter.notifyItemInserted(mRunItems.size());
-                                }
-                                mAdapter.setLoading(false);
-                                refreshUi();
-                            }
-
-                            @Override
-                            public void onFailure(Throwable t) {
-                                //   remove progress item
-                                mRunItems.remove(mRunItems.size() - 1);
-                                mAdapter.notifyItemRemoved(mRunItems.size());
-                                mAdapter.setLoading(false);
-                            }
-                        });
+                    public void onFailure(Throwable t) {
+                        Log.e(TAG, "Couldn't load more runs: " + t.getMessage());
+                        if (!isAdded())
+                            return;
+                        mAdapter.hideLoadingItem();
+                        mAdapter.setLoading(false);
                     }
-                }, 2000);
+                });
             }
         });
         mRecyclerView.setAdapter(mAdapter);
@@ -157,6 +150,7 @@ public class RunHistoryFragment extends Fragment {
         } else {
             mRunItems.addAll(ApplicationState.getLocalRunItems());
             refreshUi();
+            refreshListItem();
         }
         mSwipeRefresh.setOnRefreshListener(
                 new SwipeRefreshLayout.OnRefreshListener() {
@@ -171,11 +165,12 @@ public class RunHistoryFragment extends Fragment {
     }
 
     /**
-     * Refresh the list with the items in the Mobile Service Table
+     * Refresh the list with the items in the Mobile Service Table, only downloading the runs
+     * past the ones already in the list
      */
 
-    private List<RunItem> refreshItemsFromMobileServiceTable(int offset) throws MobileServiceException, ExecutionException, InterruptedException {
-        List<RunItem> list = Collections.synchronizedList(ApplicationState.getRunTable().top(offset).orderBy("runNumber", QueryOrder.Descending).execute().get());
+    private List<RunItem> refreshItemsFromMobileServiceTable(List<RunItem> currentRunItems) throws ExecutionException, InterruptedException {
+        List<RunItem> list = Collections.synchronizedList(RunItemSync.sync(currentRunItems));
         mRunItems.clear();
         return list;
     }
@@ -197,8 +192,16 @@ public class RunHistoryFragment extends Fragment {
     }
 
     private synchronized void refreshUi() {
-        RefreshHeaderTask task = new RefreshHeaderTask(this);
-        Utils.runAsyncTask(task);
+        Log.e(TAG, "On Refresh Header");
+        mAdapter.setLoading(true);
+        List<RunItem> unsentItems = new ArrayList<>();
+        synchronized (mRunItems) {
+            for (RunItem item : mRunItems) {
+                if (item != null && item.isLocalItem())
+                    unsentItems.add(item);
+            }
+        }
+        Utils.runAsyncTask(new RefreshHeaderTask(this, unsentItems));
     }
 
     @Override
@@ -206,67 +209,69 @@ public class RunHistoryFragment extends Fragment {
         super.onDetach();
     }
 
-    private static class RefreshHeaderTask extends AsyncTask<Void, Void, Void> {
+    /**
+     * Fills the header with the lifetime totals, which the server keeps added up for the key so
+     * they're decrypted once whatever the number of runs. Only the runs that haven't reached the
+     * server yet are added up here.
+     */
+    private static class RefreshHeaderTask extends AsyncTask<Void, Void, RunTotals> {
         WeakReference<RunHistoryFragment> mWeakFragment;
-        RunHistoryFragment historyFragment;
-        long mSumTime = 0;
-        double mSumDistance = 0;
-        long mSumAvgPace = 0;
+        List<RunItem> mUnsentItems;
 
-        public RefreshHeaderTask(RunHistoryFragment fragment) {
+        public RefreshHeaderTask(RunHistoryFragment fragment, List<RunItem> unsentItems) {
             mWeakFragment = new WeakReference<RunHistoryFragment>(fragment);
-            historyFragment = mWeakFragment.get();
-        }
-
-        @Override
-        protected void onPreExecute() {
-            Log.e(TAG, "On Refresh Header");
-            historyFragment.mAdapter.setLoading(true);
+            mUnsentItems = unsentItems;
         }
 
         @Override
-        protected Void doInBackground(Void... params) {
-            for (RunItem item : historyFragment.mRunItems) {
-                if (!item.isLocalItem()) {
-                    ServerCalculations sv = null;
-                    try {
-                        sv = item.decryptStatsAndSummary();
-                        Log.d(TAG, sv.toString());
-                        mSumTime += sv.getTotalTime();
-                        mSumDistance += (historyFragment.unitMeasure.equals(MILES_VALUE)) ? sv.getTotalDistance() / MILES_KILOMETERS_CONVERSION_RATE : sv.getTotalDistance();
-                    } catch (Exception e) {
-                        Log.e(TAG, e.getMessage());
-                        // remove item locally
-                        ApplicationState.getLocalRunItems().remove(item);
-                        ApplicationState.deleteLocalRunItem(item);
-                        this.cancel(true);
-                    }
-                }
-            }
-            if (mSumDistance > 0.001) {
-                mSumAvgPace = (long) (mSumTime / mSumDistance);
+        protected RunTotals doInBackground(Void... params) {
+            try {
+                RunTotals totals = LifetimeSummary.fetch();
+                if (totals == null)
+                    return null;
+                for (RunItem item : mUnsentItems)
+                    totals.add(item.getTotalDistance(), item.getTotalTime(), 1);
+                Log.d(TAG, totals.toString());
+                return totals;
+            } catch (Exception e) {
+                Log.e(TAG, "Couldn't load the lifetime totals: " + e.getMessage());
+                return null;
             }
-            return null;
         }
 
         @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
-            historyFragment.mTotalTime.setText(getFormattedTimeFromSeconds(mSumTime));
-            historyFragment.mTotalDistace.setText(String.format("%.1f", mSumDistance));
-            historyFragment.mTotalAvgPace.setText(getFormattedTimeFromSeconds(mSumAvgPace));
+        protected void onPostExecute(RunTotals totals) {
+            RunHistoryFragment historyFragment = mWeakFragment.get();
+            if (historyFragment == null || !historyFragment.isAdded())
+                return;
+            // without the totals the header keeps what it showed
+            if (totals != null)
+                updateHeader(historyFragment, totals);
             historyFragment.mSwipeRefresh.setRefreshing(false);
             historyFragment.showList();
-            historyFragment.refreshListItem();
             historyFragment.mAdapter.setLoading(false);
             Log.e(TAG, "refresh UI completed");
         }
+
+        private void updateHeader(RunHistoryFragment historyFragment, RunTotals totals) {
+            long sumTime = Math.max(0, Math.round(totals.getTime()));
+            double sumDistance = Math.max(0, (historyFragment.unitMeasure.equals(MILES_VALUE)) ? totals.getDistance() / MILES_KILOMETERS_CONVERSION_RATE : totals.getDistance());
+            long sumAvgPace = 0;
+            if (sumDistance > 0.001) {
+                sumAvgPace = (long) (sumTime / sumDistance);
+            }
+            historyFragment.mTotalTime.setText(getFormattedTimeFromSeconds(sumTime));
+            historyFragment.mTotalDistace.setText(String.format("%.1f", sumDistance));
+            historyFragment.mTotalAvgPace.setText(getFormattedTimeFromSeconds(sumAvgPace));
+            historyFragment.mTotalRun.setText(String.valueOf(Math.max(0, totals.getRuns())));
+        }
     }
 
     private static class RefreshItemsFromServer extends AsyncTask<Void, Void, Void> {
         WeakReference<RunHistoryFragment> mWeakFragment;
         RunHistoryFragment historyFragment;
         boolean mFromSwipeToRefresh;
+        List<RunItem> mCurrentRunItems;
 
         public RefreshItemsFromServer(RunHistoryFragment fragment, boolean fromSwipeToRefresh) {
             mWeakFragment = new WeakReference<RunHistoryFragment>(fragment);
@@ -277,19 +282,16 @@ public class RunHistoryFragment extends Fragment {
         @Override
         protected void onPreExecute() {
             historyFragment.mLoadListText.setText(R.string.run_history_sync_text);
+            synchronized (historyFragment.mRunItems) {
+                mCurrentRunItems = new ArrayList<>(historyFragment.mRunItems);
+            }
         }
 
         @Override
         protected Void doInBackground(Void... params) {
 
             try {
-                int offset = 0;
-                if (mFromSwipeToRefresh) {
-                    offset = CacheUtil.loadMaxRunNumber(historyFragment.getActivity());
-                } else {
-                    offset = INITIAL_ITEMS_OFFSET;
-                }
-                historyFragment.mRunItems.addAll(historyFragment.refreshItemsFromMobileServiceTable(offset));
+                historyFragment.mRunItems.addAll(historyFragment.refreshItemsFromMobileServiceTable(mCurrentRunItems));
                 ApplicationState.getLocalRunItems().clear();
                 ApplicationState.getLocalRunItems().addAll(historyFragment.mRunItems);
             } catch (final Exception e) {
@@ -324,6 +326,7 @@ public class RunHistoryFragment extends Fragment {
                 Log.e(TAG, String.valueOf(mRunItems.size()));
                 mSwipeRefresh.setRefreshing(true);
                 refreshUi();
+                refreshListItem();
             }
         }
     };
@@ -345,8 +348,11 @@ public class RunHistoryFragment extends Fragment {
     }
 
     private synchronized void refreshListItem() {
-        mAdapter.setItems(mRunItems);
-        mAdapter.notifyDataSetChanged();
-        mTotalRun.setText(String.valueOf(mRunItems.size()));
+        synchronized (mRunItems) {
+            // the adapter diffs the runs against the ones shown, only the changed rows are rebound
+            mAdapter.setItems(mRunItems);
+            // get the older runs ready before the list is scrolled down to them
+            mPager.prefetch(RunItemPager.getLastSeen(mRunItems));
+        }
     }
 }
@@ -0,0 +1,41 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.util;
+
+import android.util.Base64;
+
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+
+import java.lang.reflect.Type;
+
+/**
+ * Gson adapter that writes byte arrays as Base64 strings. The ciphertexts are held as raw bytes
+ * everywhere in the app, while the server still expects them as Base64 strings.
+ */
+public class Base64ByteArrayAdapter implements JsonSerializer<byte[]>, JsonDeserializer<byte[]> {
+
+    @Override
+    public JsonElement serialize(byte[] src, Type typeOfSrc, JsonSerializationContext context) {
+        if (src == null)
+            return JsonNull.INSTANCE;
+        return new JsonPrimitive(Base64.encodeToString(src, Base64.NO_WRAP));
+    }
+
+    @Override
+    public byte[] deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
+        if (json == null || json.isJsonNull())
+            return null;
+        try {
+            return Base64.decode(json.getAsString(), Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            throw new JsonParseException("Bad Base64 string", e);
+        }
+    }
+}
@@ -156,6 +156,15 @@ public class CacheUtil {
         return prefs.getInt(MAX_RUN_NUMBER_PREF,0);
     }
 
+    /**
+     * @param context the activity/Service context
+     * @return true if distances are shown in miles, the default
+     */
+    public static boolean isMilesUnit(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(SHAREDPREFFILE, Context.MODE_PRIVATE);
+        return prefs.getString(KM_MILES_KEY, MILES_VALUE).equals(MILES_VALUE);
+    }
+
     public static String getUserMail(Context context) {
         SharedPreferences prefs = context.getSharedPreferences(SHAREDPREFFILE, Context.MODE_PRIVATE);
         String userMail = prefs.getString(USER_MAIL_PREF, "");
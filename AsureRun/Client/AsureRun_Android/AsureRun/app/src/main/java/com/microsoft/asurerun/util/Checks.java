@@ -9,8 +9,6 @@ import android.os.Build;
 import android.os.PowerManager;
 import android.provider.Settings;
 
-import java.util.regex.Pattern;
-
 public class Checks {
     /**
      * Method to check whether the Internet is Connected
@@ -43,17 +41,11 @@ public class Checks {
     }
 
     /**
-     * @param stringBase64
-     * @return true if input is a valid Base64, false otherwise.
+     * @param bytes
+     * @return true if input is null or has no bytes, false otherwise.
      */
-    public static boolean isBase64(String stringBase64) {
-        String regex = "([A-Za-z0-9+/]{4})*" + "([A-Za-z0-9+/]{4}|[A-Za-z0-9+/]{3}=|[A-Za-z0-9+/]{2}==)";
-        Pattern patron = Pattern.compile(regex);
-        if (stringBase64 == null || !patron.matcher(stringBase64).matches()) {
-            return false;
-        } else {
-            return true;
-        }
+    public static boolean isNullOrEmpty(byte[] bytes) {
+        return bytes == null || bytes.length == 0;
     }
 
     /**
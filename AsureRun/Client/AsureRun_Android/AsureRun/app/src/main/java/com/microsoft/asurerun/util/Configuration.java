@@ -16,24 +16,31 @@ public class Configuration {
     public static final int DEFAULT_POLY_MODULUS = 8192;
     // This is the scale used by SEAL. It was the default value used in all the SEAL samples.
     public static final int DEFAULT_INITIAL_SCALE = 60;
+    // How far from the recorded route the encrypted route may be, in meters. About the accuracy of the GPS.
+    public static final float DEFAULT_ROUTE_TOLERANCE = 3;
 
     // Keys for config file lookups
     private static final String WEB_HOST_KEY = "host";
     private static final String POLY_MODULUS_KEY = "poly_modulus";
     private static final String INITIAL_SCALE_KEY = "initial_scale";
+    private static final String ROUTE_TOLERANCE_KEY = "route_tolerance";
 
     private static String mWebHost;
     private static int mPolyModulus;
     private static int mInitialScale;
+    // the RunService may record a run before the config file is loaded
+    private static float mRouteTolerance = DEFAULT_ROUTE_TOLERANCE;
 
     // Getters for the config file
     public static String getWebHost() { return mWebHost; }
     public static int getPolyModulus() { return mPolyModulus; }
     public static int getInitialScale() { return mInitialScale; }
+    public static float getRouteTolerance() { return mRouteTolerance; }
 
     public static void loadConfigFile(SharedPreferences sharedPreferences) {
         mWebHost = sharedPreferences.getString(WEB_HOST_KEY, DEFAULT_WEB_HOST);
         mPolyModulus = sharedPreferences.getInt(POLY_MODULUS_KEY, DEFAULT_POLY_MODULUS);
         mInitialScale = sharedPreferences.getInt(INITIAL_SCALE_KEY, DEFAULT_INITIAL_SCALE);
+        mRouteTolerance = sharedPreferences.getFloat(ROUTE_TOLERANCE_KEY, DEFAULT_ROUTE_TOLERANCE);
     }
 }
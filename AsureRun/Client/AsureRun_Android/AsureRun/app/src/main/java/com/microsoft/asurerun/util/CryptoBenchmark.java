@@ -0,0 +1,97 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.util;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.microsoft.asurerun.R;
+import com.microsoft.asurerun.model.ApplicationState;
+import com.microsoft.asurerun.model.SlotLayout;
+
+import java.util.Random;
+
+/**
+ * Microbenchmark comparing the per-run cost of encrypting and decrypting a RunItem one ciphertext
+ * at a time against doing it with a single batched native call. Both go through the cached
+ * Encryptor and Decryptor, so they're also timed against building them for each ciphertext.
+ */
+public class CryptoBenchmark {
+    private final static String TAG = CryptoBenchmark.class.getSimpleName();
+    // the number of ciphertexts encrypted and decrypted for a single run
+    private final static int CIPHERS_PER_RUN_ENCRYPT = 6;
+    private final static int CIPHERS_PER_RUN_DECRYPT = 7;
+
+    /**
+     * Runs the benchmark. The crypto context must already have its keys loaded.
+     *
+     * @param context the context the summary is formatted with
+     * @param iterations the number of simulated runs to time for each path
+     * @return a human readable summary of the average per-run latencies
+     */
+    public static String run(Context context, int iterations) {
+        double[][] values = new double[CIPHERS_PER_RUN_ENCRYPT][SlotLayout.getActive().getSlotCount()];
+        Random random = new Random(0);
+        for (double[] slots : values) {
+            for (int i = 0; i < slots.length; ++i) {
+                slots[i] = random.nextDouble();
+            }
+        }
+        // warm up all paths so the first timed iteration doesn't pay for the native setup
+        byte[][] ciphers = ApplicationState.encryptBatch(values);
+        byte[][] runCiphers = new byte[CIPHERS_PER_RUN_DECRYPT][];
+        for (int i = 0; i < runCiphers.length; ++i) {
+            runCiphers[i] = ciphers[i % ciphers.length];
+        }
+        ApplicationState.decryptBatch(runCiphers);
+
+        ApplicationState.decryptUncachedFromBytes(ApplicationState.encryptUncachedToBytes(values[0]));
+
+        long uncachedEncrypt = 0, uncachedDecrypt = 0;
+        long singleEncrypt = 0, singleDecrypt = 0, batchEncrypt = 0, batchDecrypt = 0;
+        for (int iteration = 0; iteration < iterations; ++iteration) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (double[] slots : values) {
+                ApplicationState.encryptUncachedToBytes(slots);
+            }
+            uncachedEncrypt += SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            for (byte[] cipher : runCiphers) {
+                ApplicationState.decryptUncachedFromBytes(cipher);
+            }
+            uncachedDecrypt += SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            for (double[] slots : values) {
+                ApplicationState.encryptToBytes(slots);
+            }
+            singleEncrypt += SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            for (byte[] cipher : runCiphers) {
+                ApplicationState.decryptFromBytes(cipher);
+            }
+            singleDecrypt += SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            ApplicationState.encryptBatch(values);
+            batchEncrypt += SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            ApplicationState.decryptBatch(runCiphers);
+            batchDecrypt += SystemClock.elapsedRealtimeNanos() - start;
+        }
+        String result = context.getString(R.string.debug_fragment_benchmark_result,
+                toMillis(uncachedEncrypt, iterations), toMillis(singleEncrypt, iterations),
+                toMillis(batchEncrypt, iterations), toMillis(uncachedDecrypt, iterations),
+                toMillis(singleDecrypt, iterations), toMillis(batchDecrypt, iterations));
+        Log.d(TAG, result);
+        return result;
+    }
+
+    private static double toMillis(long totalNanos, int iterations) {
+        return totalNanos / 1e6 / Math.max(1, iterations);
+    }
+}
@@ -0,0 +1,84 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.util;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Draws a growing route on a map with the same two polylines however long the route gets. The
+ * latest points are drawn as they are by the tail, which is all that changes on most updates.
+ * Once the tail holds {@link #TAIL_SIZE} points they're simplified for the current zoom and
+ * moved to the head, so neither polyline grows with every point.
+ *
+ * The head is simplified again from the whole route when the zoom changes by a level or more.
+ */
+public class RouteLayer {
+    private static final int TAIL_SIZE = 50;
+    // how far from the route a dropped point may be on screen
+    private static final float TOLERANCE_PIXELS = 1f;
+
+    private final GoogleMap mMap;
+    private final Polyline mHead;
+    private final Polyline mTail;
+    private final List<LatLng> mHeadPoints = new ArrayList<>();
+    // the number of points of the route the head was built from
+    private int mHeadEnd;
+    private float mHeadZoom;
+
+    public RouteLayer(GoogleMap map, float width, int color) {
+        mMap = map;
+        mHead = map.addPolyline(new PolylineOptions().width(width).color(color));
+        mTail = map.addPolyline(new PolylineOptions().width(width).color(color));
+    }
+
+    /**
+     * Draws the route, only the points past the ones of the last call are new
+     *
+     * @param route every point of the route so far
+     */
+    public void update(List<LatLng> route) {
+        if (route.size() < mHeadEnd)
+            clear();
+        float zoom = mMap.getCameraPosition().zoom;
+        if (mHeadEnd > 0 && Math.abs(zoom - mHeadZoom) >= 1)
+            rebuildHead(route, zoom);
+        if (route.size() - mHeadEnd >= TAIL_SIZE)
+            extendHead(route, zoom);
+        // the tail starts on the last point of the head so the route has no gap
+        mTail.setPoints(route.subList(Math.max(0, mHeadEnd - 1), route.size()));
+    }
+
+    public void clear() {
+        mHeadPoints.clear();
+        mHeadEnd = 0;
+        mHead.setPoints(mHeadPoints);
+        mTail.setPoints(mHeadPoints);
+    }
+
+    private void extendHead(List<LatLng> route, float zoom) {
+        int start = Math.max(0, mHeadEnd - 1);
+        List<LatLng> simplified = RouteSimplifier.simplify(route.subList(start, route.size()), getTolerance(route, zoom));
+        // the first point is already the last of the head
+        mHeadPoints.addAll(mHeadEnd > 0 ? simplified.subList(1, simplified.size()) : simplified);
+        mHeadEnd = route.size();
+        mHeadZoom = zoom;
+        mHead.setPoints(mHeadPoints);
+    }
+
+    private void rebuildHead(List<LatLng> route, float zoom) {
+        mHeadPoints.clear();
+        mHeadPoints.addAll(RouteSimplifier.simplify(route.subList(0, mHeadEnd), getTolerance(route, zoom)));
+        mHeadZoom = zoom;
+        mHead.setPoints(mHeadPoints);
+    }
+
+    private static double getTolerance(List<LatLng> route, float zoom) {
+        return TOLERANCE_PIXELS * RouteSimplifier.getMetersPerPixel(route.get(route.size() - 1).latitude, zoom);
+    }
+}
@@ -0,0 +1,114 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT License.
+package com.microsoft.asurerun.util;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.microsoft.asurerun.model.ServerCalculations.EARTH_RADIUS;
+
+/**
+ * Douglas-Peucker simplification of routes: only the points that are further than a tolerance
+ * from the line through the points kept around them are kept, the first and last points always.
+ */
+public class RouteSimplifier {
+    // the ground resolution of the map at zoom 0 on the equator, in metres per pixel
+    private static final double METERS_PER_PIXEL_AT_ZOOM_0 = 156543.03392;
+    private static final double EARTH_RADIUS_METERS = EARTH_RADIUS * 1000;
+
+    /**
+     * @param latitude the latitude the resolution is wanted at
+     * @param zoom the zoom level of the map
+     * @return how many metres a pixel of the map covers
+     */
+    public static double getMetersPerPixel(double latitude, float zoom) {
+        return METERS_PER_PIXEL_AT_ZOOM_0 * Math.cos(Math.toRadians(latitude)) / Math.pow(2, zoom);
+    }
+
+    /**
+     * @param points the route to simplify
+     * @param toleranceMeters how far a dropped point may be from the simplified route
+     * @return the points of the route that are kept, in order
+     */
+    public static List<LatLng> simplify(List<LatLng> points, double toleranceMeters) {
+        int size = points.size();
+        if (size < 3)
+            return new ArrayList<>(points);
+        // project on a plane tangent at the first point, accurate enough over the length of a run
+        double[] x = new double[size];
+        double[] y = new double[size];
+        LatLng origin = points.get(0);
+        double metersPerDegreeLat = Math.toRadians(EARTH_RADIUS_METERS);
+        double metersPerDegreeLng = metersPerDegreeLat * Math.cos(Math.toRadians(origin.latitude));
+        for (int i = 0; i < size; ++i) {
+            LatLng point = points.get(i);
+            x[i] = (point.longitude - origin.longitude) * metersPerDegreeLng;
+            y[i] = (point.latitude - origin.latitude) * metersPerDegreeLat;
+        }
+
+        boolean[] keep = new boolean[size];
+        simplify(x, y, new double[size], 0, size - 1, toleranceMeters, keep);
+
+        List<LatLng> simplified = new ArrayList<>();
+        for (int i = 0; i < size; ++i) {
+            if (keep[i])
+                simplified.add(points.get(i));
+        }
+        return simplified;
+    }
+
+    /**
+     * Marks the points of a route to keep, in any cartesian coordinates. The points between first
+     * and last are marked if they're kept, first and last themselves always are.
+     *
+     * @param tolerance how far a dropped point may be from the simplified route, in the unit of
+     *                  the coordinates
+     * @param keep receives true at the index of every point kept, at least last + 1 long
+     */
+    public static void simplify(double[] x, double[] y, double[] z, int first, int last, double tolerance, boolean[] keep) {
+        keep[first] = true;
+        keep[last] = true;
+        double toleranceSquared = tolerance * tolerance;
+        // iterative, a long straight route would otherwise recurse once per point
+        ArrayDeque<int[]> ranges = new ArrayDeque<>();
+        ranges.push(new int[]{ first, last });
+        while (!ranges.isEmpty()) {
+            int[] range = ranges.pop();
+            int start = range[0];
+            int end = range[1];
+            int farthest = -1;
+            double farthestDistance = toleranceSquared;
+            for (int i = start + 1; i < end; ++i) {
+                double distance = squaredSegmentDistance(x, y, z, i, start, end);
+                if (distance > farthestDistance) {
+                    farthest = i;
+                    farthestDistance = distance;
+                }
+            }
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                ranges.push(new int[]{ start, farthest });
+                ranges.push(new int[]{ farthest, end });
+            }
+        }
+    }
+
+    /**
+     * @return the squared distance from the point p to the segment from a to b
+     */
+    private static double squaredSegmentDistance(double[] x, double[] y, double[] z, int p, int a, int b) {
+        double dx = x[b] - x[a];
+        double dy = y[b] - y[a];
+        double dz = z[b] - z[a];
+        double lengthSquared = dx * dx + dy * dy + dz * dz;
+        double t = lengthSquared > 0 ? ((x[p] - x[a]) * dx + (y[p] - y[a]) * dy + (z[p] - z[a]) * dz) / lengthSquared : 0;
+        t = Math.max(0, Math.min(1, t));
+        double ex = x[p] - (x[a] + t * dx);
+        double ey = y[p] - (y[a] + t * dy);
+        double ez = z[p] - (z[a] + t * dz);
+        return ex * ex + ey * ey + ez * ez;
+    }
+}
@@ -20,7 +20,8 @@ namespace AsureRunService.Controllers
         {
             base.Initialize(controllerContext);
             AsureRunContext context = new AsureRunContext();
-            DomainManager = new EntityDomainManager<RunItem>(context, Request);
+            // deleted runs are kept as tombstones, so clients can sync deletes incrementally
+            DomainManager = new EntityDomainManager<RunItem>(context, Request, enableSoftDelete: true);
         }
 
         public string UserId => ((ClaimsPrincipal)User).FindFirst(ClaimTypes.NameIdentifier).Value;
@@ -57,7 +58,12 @@ namespace AsureRunService.Controllers
         public async Task<IHttpActionResult> PostRunItem(RunItem item)
         {
             item.UserId = UserId;
-            item = item.ComputeRunStats();
+            int slotCount;
+            using (AsureRunContext context = new AsureRunContext())
+            {
+                slotCount = context.KeyItems.GetSlotCount(item.KeyId);
+            }
+            item = item.ComputeRunStats(slotCount);
 
             RunItem current = await InsertAsync(item);
             return CreatedAtRoute("Tables", new { id = current.Id }, current);
@@ -53,7 +53,12 @@ namespace AsureRunService.Controllers
             // Only do the following if the summary value is being updated
             if (patch.GetChangedPropertyNames().Contains("Summary"))
             {
-                string newSummaryCipher = patch.GetEntity().AddSummary(oldSummaryItem);
+                int slotCount;
+                using (AsureRunContext context = new AsureRunContext())
+                {
+                    slotCount = context.KeyItems.GetSlotCount(oldSummaryItem.KeyId);
+                }
+                string newSummaryCipher = patch.GetEntity().AddSummary(oldSummaryItem, slotCount);
                 patch.TrySetPropertyValue("Summary", newSummaryCipher);
             }
 
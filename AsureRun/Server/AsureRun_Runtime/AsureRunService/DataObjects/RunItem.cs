@@ -33,6 +33,25 @@ namespace AsureRunService.DataObjects
 
         public string CipherGyro { get; set; }
 
+        /**
+         * The number of points of each chunk of the route, separated by commas. Routes longer than
+         * half a cipher are split in chunks sharing their end points, Cipher1 and Cipher2 hold the
+         * first chunk. **/
+        public string ChunkPoints { get; set; }
+
+        /**
+         * The XY and ZT ciphers of the route chunks past the first one, packed, see CipherPacking **/
+        public string CipherChunks { get; set; }
+
+        /**
+         * The stats of the route chunks past the first one, packed the same way **/
+        public string ChunkStats { get; set; }
+
+        /**
+         * The totals the client added to its summary for this run. Only stored, so the client
+         * can take the exact same totals out of its summary when the run is deleted **/
+        public string CipherTotals { get; set; }
+
         public string KeyId { get; set; }
 
         public string UserId { get; set; }
@@ -16,7 +16,7 @@ namespace AsureRunService.Extensions
             return query.Where(item => item.UserId.Equals(userId));
         }
 
-        public static RunItem ComputeRunStats(this RunItem runItem)
+        public static RunItem ComputeRunStats(this RunItem runItem, int slotCount)
         {
             try
             {
@@ -26,13 +26,28 @@ namespace AsureRunService.Extensions
                 KeyUtilities.GetKeys(runItem.KeyId, ref galKeyString, ref galSingleStepKeyString, ref relinKeyString);
 
                 // Calculate the cipher results
-                SEALWrapper sw = new SEALWrapper(4096);
+                SEALWrapper sw = new SEALWrapper(slotCount);
                 sw.LoadKeys(galKeyString, galSingleStepKeyString, relinKeyString);
-                sw.ComputeStatsCiphers(runItem.Cipher1, runItem.Cipher2, runItem.Summary, runItem.CipherGyro);
+                string summary = runItem.Summary, cipherGyro = runItem.CipherGyro;
+                sw.ComputeStatsCiphers(runItem.Cipher1, runItem.Cipher2, summary, cipherGyro);
                 runItem.Stats = sw.getStats();
                 runItem.Summary = sw.getSummary();
                 runItem.CipherGyro = sw.getMlResults();
 
+                // Each chunk of a long route gets stats of its own, the client adds them up.
+                // The summary and ML results of the run are left alone, only the stats are computed
+                if (!string.IsNullOrEmpty(runItem.CipherChunks))
+                {
+                    IList<string> chunkCiphers = CipherPacking.Unpack(runItem.CipherChunks);
+                    List<string> chunkStats = new List<string>();
+                    for (int i = 0; i + 1 < chunkCiphers.Count; i += 2)
+                    {
+                        sw.ComputeStatsCipher(chunkCiphers[i], chunkCiphers[i + 1], summary);
+                        chunkStats.Add(sw.getStats());
+                    }
+                    runItem.ChunkStats = CipherPacking.Pack(chunkStats);
+                }
+
                 Trace.WriteLine("End ComputeRunStats : RunItem " + runItem.KeyId);
 
             }
@@ -47,10 +62,20 @@ namespace AsureRunService.Extensions
 
     public static class KeyItemExtensions
     {
+        // The slot count of keys that don't have one, the only one before it could be configured
+        public const int DefaultSlotCount = 4096;
+
         public static IQueryable<KeyItem> PerUserFilter(this IQueryable<KeyItem> query, string userId)
         {
             return query.Where(item => item.UserId.Equals(userId));
         }
+
+        // Gets the slot count of the key the ciphers of an item are encrypted with
+        public static int GetSlotCount(this IQueryable<KeyItem> query, string keyId)
+        {
+            KeyItem keyItem = query.Where(item => item.Id == keyId).FirstOrDefault();
+            return keyItem != null && keyItem.SlotCount > 0 ? keyItem.SlotCount : DefaultSlotCount;
+        }
     }
 
     public static class SummaryItemExtensions
@@ -61,14 +86,14 @@ namespace AsureRunService.Extensions
         }
         
         // Adds the two summary ciphers together
-        public static string AddSummary(this SummaryItem summaryItem1, SummaryItem summaryItem2)
+        public static string AddSummary(this SummaryItem summaryItem1, SummaryItem summaryItem2, int slotCount)
         {
             String resultBase64 = "";
             try
             {
                 Trace.WriteLine("Start AddSummary " );
 
-                SEALWrapper sw = new SEALWrapper(4096);
+                SEALWrapper sw = new SEALWrapper(slotCount);
                 sw.AddCiphers(summaryItem1.Summary, summaryItem2.Summary);
                 resultBase64 = sw.getAdded();
             }
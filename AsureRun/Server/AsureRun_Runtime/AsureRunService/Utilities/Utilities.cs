@@ -1,6 +1,7 @@
 ﻿using Microsoft.WindowsAzure.Storage;
 using Microsoft.WindowsAzure.Storage.Blob;
 using System;
+using System.Collections.Generic;
 using System.Configuration;
 using System.Diagnostics;
 using System.IO;
@@ -239,5 +240,70 @@ namespace AsureRunService.Utilities
         }
 
     }
-    
+
+    /// <summary>
+    /// Packs several ciphers in one, the way the client packs the chunks of a long route: the
+    /// number of ciphers, then each one prefixed with its length, as big-endian ints.
+    /// </summary>
+    public static class CipherPacking
+    {
+        /// <summary>
+        /// Unpacks the ciphers of a packed base64 string
+        /// </summary>
+        /// <param name="packedBase64">The packed ciphers as base64</param>
+        /// <returns>Each cipher as base64</returns>
+        public static IList<string> Unpack(string packedBase64)
+        {
+            byte[] packed = Convert.FromBase64String(packedBase64);
+            int position = 0;
+            int count = ReadInt(packed, ref position);
+            List<string> ciphers = new List<string>();
+            for (int i = 0; i < count; ++i)
+            {
+                int length = ReadInt(packed, ref position);
+                if (length < 0 || length > packed.Length - position)
+                    throw new FormatException($"Truncated cipher {i} of {count}");
+                ciphers.Add(Convert.ToBase64String(packed, position, length));
+                position += length;
+            }
+            return ciphers;
+        }
+
+        /// <summary>
+        /// Packs ciphers in a single base64 string
+        /// </summary>
+        /// <param name="ciphersBase64">Each cipher as base64</param>
+        /// <returns>The packed ciphers as base64</returns>
+        public static string Pack(IList<string> ciphersBase64)
+        {
+            using (MemoryStream packed = new MemoryStream())
+            {
+                WriteInt(packed, ciphersBase64.Count);
+                foreach (string cipherBase64 in ciphersBase64)
+                {
+                    byte[] cipher = Convert.FromBase64String(cipherBase64);
+                    WriteInt(packed, cipher.Length);
+                    packed.Write(cipher, 0, cipher.Length);
+                }
+                return Convert.ToBase64String(packed.ToArray());
+            }
+        }
+
+        private static int ReadInt(byte[] bytes, ref int position)
+        {
+            if (position + 4 > bytes.Length)
+                throw new FormatException("Truncated ciphers");
+            int value = (bytes[position] << 24) | (bytes[position + 1] << 16) | (bytes[position + 2] << 8) | bytes[position + 3];
+            position += 4;
+            return value;
+        }
+
+        private static void WriteInt(Stream stream, int value)
+        {
+            stream.WriteByte((byte)(value >> 24));
+            stream.WriteByte((byte)(value >> 16));
+            stream.WriteByte((byte)(value >> 8));
+            stream.WriteByte((byte)value);
+        }
+    }
 }
\ No newline at end of file
@@ -227,61 +227,41 @@ namespace Microsoft
             return true;
         }
 
-        bool SEALWrapper::ComputeStatsCiphers(String^ CipherStr1, String^ CipherStr2, String^ SummaryMaskCipherStr, String^ CipherGyroStr)
+        bool SEALWrapper::ComputeStatsCipher(String^ CipherStr1, String^ CipherStr2, String^ SummaryMaskCipherStr)
         {
             // Convert to std::string
             msclr::interop::marshal_context marshalContext;
             std::string cipherStr1 = marshalContext.marshal_as<std::string>(CipherStr1);
             std::string cipherStr2 = marshalContext.marshal_as<std::string>(CipherStr2);
             std::string summaryMaskCipherStr = marshalContext.marshal_as<std::string>(SummaryMaskCipherStr);
-            std::string cipherGyroStr = marshalContext.marshal_as<std::string>(CipherGyroStr);
 
             // Convert the base64 strings to Ciphers
-            Ciphertext Cipher1, Cipher2, SummaryMaskCipher, CipherGyro;
+            Ciphertext Cipher1, Cipher2, SummaryMaskCipher;
             ToSealObject<Ciphertext>(cipherStr1, Cipher1, true);
             ToSealObject<Ciphertext>(cipherStr2, Cipher2, true);
             ToSealObject<Ciphertext>(summaryMaskCipherStr, SummaryMaskCipher, true);
-            ToSealObject<Ciphertext>(cipherGyroStr, CipherGyro, true);
 
             // Make sure the input is the right format
             if (((int)Cipher1.poly_modulus_degree() != m_slotCount * 2) ||
                 ((int)Cipher1.poly_modulus_degree() != (int)Cipher2.poly_modulus_degree()) ||
-                ((int)Cipher1.poly_modulus_degree() != (int)SummaryMaskCipher.poly_modulus_degree()) ||
-                ((int)Cipher1.poly_modulus_degree() != (int)CipherGyro.poly_modulus_degree()))
+                ((int)Cipher1.poly_modulus_degree() != (int)SummaryMaskCipher.poly_modulus_degree()))
             {
                 return false;
             }
 
-            // Calculate the stats cipher
-            Ciphertext statsCipher, summaryCipher;
+            // Calculate the stats cipher only, the summary and ML results aren't needed
+            Ciphertext statsCipher, summaryCipher, cipherBuffer;
+            ComputeStats(Cipher1, Cipher2, SummaryMaskCipher, statsCipher, summaryCipher, cipherBuffer);
+
+            // Set the base64 result and return true
+            m_statsCipherBase64 = new string(FromSealObject<Ciphertext>(statsCipher, true));
+            return true;
+        }
+
+        void SEALWrapper::ComputeStats(Ciphertext Cipher1, Ciphertext Cipher2, const Ciphertext &SummaryMaskCipher,
+            Ciphertext &statsCipher, Ciphertext &summaryCipher, Ciphertext &cipherBuffer)
+        {
             int slotCount = (int)Cipher1.poly_modulus_degree() / 2;
-            
-            // Machine learning section that multiplies gyroscope and accelerometer data
-            const double tensorB[] = {
-                0.41964226961135864,
-                6.6290693283081055,
-                -2.404352903366089,
-                -0.024301817640662193,
-                -0.17596858739852905,
-                0.14117737114429474
-            };
-            vector<double> tensorBVector(tensorB, tensorB + 6);
-            tensorBVector.resize(slotCount, 0);
-            Plaintext tensorBPlain;
-            Ciphertext tensorOutput = CipherGyro;
-            m_encoder->encode(tensorBVector, m_scale, tensorBPlain);
-            m_evaluator->multiply_plain_inplace(tensorOutput, tensorBPlain);
-            Ciphertext tensorOutputCopy = tensorOutput;
-            for(int i = 1; i < 6; ++i) {
-                Ciphertext copy = tensorOutputCopy;
-                m_evaluator->rotate_vector_inplace(copy, i, *m_galKeys );
-                m_evaluator->add_inplace(tensorOutput, copy);
-            }
-            vector<double> tensorMaskVector(slotCount);
-            tensorMaskVector[0] = 1;
-            Plaintext tensorMaskPlain;
-            m_encoder->encode(tensorMaskVector, m_scale, tensorMaskPlain);
-            m_evaluator->multiply_plain_inplace(tensorOutput, tensorMaskPlain);
 
             // Calculate the distance differences
             Ciphertext firstCipherShifted, secondCipherShifted;
@@ -341,7 +321,7 @@ namespace Microsoft
 
             // Calculate the Total Distance Traveled
             // cipherBuffer, summedCipher now m_scale^2 * m_scale_small^2; at full primes
-            Ciphertext cipherBuffer = statsCipher;
+            cipherBuffer = statsCipher;
             Ciphertext summedCipher = statsCipher;
 
             for (int i = 1; i < slotCount; i <<= 1)
@@ -437,6 +417,67 @@ namespace Microsoft
 
             // Rescale down
             m_evaluator->rescale_to_next_inplace(statsCipher);
+        }
+
+        bool SEALWrapper::ComputeStatsCiphers(String^ CipherStr1, String^ CipherStr2, String^ SummaryMaskCipherStr, String^ CipherGyroStr)
+        {
+            // Convert to std::string
+            msclr::interop::marshal_context marshalContext;
+            std::string cipherStr1 = marshalContext.marshal_as<std::string>(CipherStr1);
+            std::string cipherStr2 = marshalContext.marshal_as<std::string>(CipherStr2);
+            std::string summaryMaskCipherStr = marshalContext.marshal_as<std::string>(SummaryMaskCipherStr);
+            std::string cipherGyroStr = marshalContext.marshal_as<std::string>(CipherGyroStr);
+
+            // Convert the base64 strings to Ciphers
+            Ciphertext Cipher1, Cipher2, SummaryMaskCipher, CipherGyro;
+            ToSealObject<Ciphertext>(cipherStr1, Cipher1, true);
+            ToSealObject<Ciphertext>(cipherStr2, Cipher2, true);
+            ToSealObject<Ciphertext>(summaryMaskCipherStr, SummaryMaskCipher, true);
+            ToSealObject<Ciphertext>(cipherGyroStr, CipherGyro, true);
+
+            // Make sure the input is the right format
+            if (((int)Cipher1.poly_modulus_degree() != m_slotCount * 2) ||
+                ((int)Cipher1.poly_modulus_degree() != (int)Cipher2.poly_modulus_degree()) ||
+                ((int)Cipher1.poly_modulus_degree() != (int)SummaryMaskCipher.poly_modulus_degree()) ||
+                ((int)Cipher1.poly_modulus_degree() != (int)CipherGyro.poly_modulus_degree()))
+            {
+                return false;
+            }
+
+            // Calculate the stats cipher
+            Ciphertext statsCipher, summaryCipher;
+            int slotCount = (int)Cipher1.poly_modulus_degree() / 2;
+            
+            // Machine learning section that multiplies gyroscope and accelerometer data
+            const double tensorB[] = {
+                0.41964226961135864,
+                6.6290693283081055,
+                -2.404352903366089,
+                -0.024301817640662193,
+                -0.17596858739852905,
+                0.14117737114429474
+            };
+            vector<double> tensorBVector(tensorB, tensorB + 6);
+            tensorBVector.resize(slotCount, 0);
+            Plaintext tensorBPlain;
+            Ciphertext tensorOutput = CipherGyro;
+            m_encoder->encode(tensorBVector, m_scale, tensorBPlain);
+            m_evaluator->multiply_plain_inplace(tensorOutput, tensorBPlain);
+            Ciphertext tensorOutputCopy = tensorOutput;
+            for(int i = 1; i < 6; ++i) {
+                Ciphertext copy = tensorOutputCopy;
+                m_evaluator->rotate_vector_inplace(copy, i, *m_galKeys );
+                m_evaluator->add_inplace(tensorOutput, copy);
+            }
+            vector<double> tensorMaskVector(slotCount);
+            tensorMaskVector[0] = 1;
+            Plaintext tensorMaskPlain;
+            m_encoder->encode(tensorMaskVector, m_scale, tensorMaskPlain);
+            m_evaluator->multiply_plain_inplace(tensorOutput, tensorMaskPlain);
+
+            // Calculate the stats cipher, and the time cipher the summary cipher is made of
+            Ciphertext cipherBuffer;
+            ComputeStats(Cipher1, Cipher2, SummaryMaskCipher, statsCipher, summaryCipher, cipherBuffer);
 
             // Create the summary cipher
             // Scale m_scale * m_scale_small^3 and down one prime
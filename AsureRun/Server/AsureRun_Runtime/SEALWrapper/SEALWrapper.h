@@ -33,6 +33,8 @@ namespace Microsoft
 			void LoadKeys(String^ galKeys, String^ galKeysSingleStep, String^ relinKeys);
 			bool AddCiphers(String^ CipherStr1, String^ CipherStr2);
 			bool ComputeStatsCiphers(String^ cipherStr1, String^ cipherStr2, String^ summaryMaskCipherStr, String^ cipherGyroStr);
+			// Only computes the stats cipher, as for the chunks of a long route, getSummary and getMlResults are left as they are
+			bool ComputeStatsCipher(String^ cipherStr1, String^ cipherStr2, String^ summaryMaskCipherStr);
 
 			// The following functions are mainly used for unit testing
 			String^ Encrypt(List<double>^ values);
@@ -53,6 +55,11 @@ namespace Microsoft
 			string *m_summaryCipherBase64;
             string *m_mlCipherBase64;
 
+			// Computes the stats cipher of a route, along with the total distance (summaryCipher) and
+			// total time (cipherBuffer) ciphers that ComputeStatsCiphers makes the summary cipher of
+			void ComputeStats(Ciphertext cipher1, Ciphertext cipher2, const Ciphertext &summaryMaskCipher,
+				Ciphertext &statsCipher, Ciphertext &summaryCipher, Ciphertext &cipherBuffer);
+
 			template<class T>
 			void ToSealObject(string input, T &output, bool base64);
 			template<class T>
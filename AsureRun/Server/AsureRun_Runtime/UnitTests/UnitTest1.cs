@@ -282,6 +282,145 @@ namespace UnitTests
             Assert.IsTrue(Math.Abs(expectedMlResult - mlList[0]) < 0.1);
         }
 
+        [TestMethod]
+        public void TestChunkStats()
+        {
+            int count = 10;
+            int slotCount = 4096;
+
+            // The chunks share the point at this index, like the client splits a route
+            int split = 4;
+
+            double Lat = 47.0;
+            double Long = 122.0;
+            double startTime = 1736;
+            int dayOfYear = 22 + 100;
+
+            // Create the Summary Mask
+            List<double> summaryMask = new List<double>(slotCount);
+            for (int i = 0; i < slotCount; i++)
+            {
+                summaryMask.Add(0);
+            }
+            summaryMask[dayOfYear] = 1;
+            summaryMask[(slotCount / 2) + dayOfYear] = 1;
+
+            // Create the Cartesian and Timestamps of the route
+            List<double> cx = new List<double>(count);
+            List<double> cy = new List<double>(count);
+            List<double> cz = new List<double>(count);
+            List<double> timestamps = new List<double>(count);
+            double PI = 3.14159265359;
+            for (int i = 0; i < count; i++)
+            {
+                cx.Add(6371.0 * Math.Cos(Lat * PI / 180.0) * Math.Cos(Long * PI / 180.0));
+                cy.Add(6371.0 * Math.Cos(Lat * PI / 180.0) * Math.Sin(Long * PI / 180.0));
+                cz.Add(6371.0 * Math.Sin(Lat * PI / 180.0));
+                timestamps.Add(startTime + (i * 2));
+
+                Lat += 0.01;
+                Long += 0.01;
+            }
+
+            double totalDistance = 0, totalTime = timestamps[count - 1] - timestamps[0];
+            for (int i = 0; i < count - 1; i++)
+            {
+                totalDistance += Math.Pow(cx[i + 1] - cx[i], 2) + Math.Pow(cy[i + 1] - cy[i], 2) + Math.Pow(cz[i + 1] - cz[i], 2);
+            }
+
+            // Create the average gyroscope data
+            List<double> gyro = new List<double>(slotCount / 2);
+            for (int i = 0; i < 6; ++i)
+                gyro.Add(1);
+
+            SEALWrapper sw = new SEALWrapper(slotCount, true, true);
+            String summaryMaskBase64 = sw.Encrypt(summaryMask);
+            SEALWrapper serverSW = new SEALWrapper(slotCount);
+            serverSW.LoadKeys(sw.getGaloisKeys(), sw.getGaloisSingleStepKeys(), sw.getRelinKeys());
+
+            // Stats of the whole route
+            Assert.IsTrue(serverSW.ComputeStatsCiphers(
+                sw.Encrypt(CreateRouteList(cx, cy, 0, count, slotCount)),
+                sw.Encrypt(CreateRouteList(cz, timestamps, 0, count, slotCount)),
+                summaryMaskBase64, sw.Encrypt(gyro)), "Route Server Call");
+            List<double> routeStats = sw.Decrypt(serverSW.getStats());
+
+            // Stats of each chunk, added up
+            Assert.IsTrue(serverSW.ComputeStatsCipher(
+                sw.Encrypt(CreateRouteList(cx, cy, 0, split + 1, slotCount)),
+                sw.Encrypt(CreateRouteList(cz, timestamps, 0, split + 1, slotCount)),
+                summaryMaskBase64), "First Chunk Server Call");
+            String firstChunkStats = serverSW.getStats();
+            Assert.IsTrue(serverSW.ComputeStatsCipher(
+                sw.Encrypt(CreateRouteList(cx, cy, split, count, slotCount)),
+                sw.Encrypt(CreateRouteList(cz, timestamps, split, count, slotCount)),
+                summaryMaskBase64), "Second Chunk Server Call");
+            String secondChunkStats = serverSW.getStats();
+            Assert.IsTrue(serverSW.AddCiphers(firstChunkStats, secondChunkStats), "Add Chunks");
+            List<double> chunkStats = sw.Decrypt(serverSW.getAdded());
+
+            // Test that the totals of the chunks match the ones of the route
+            int timeSlot = (slotCount / 2) - 1;
+            int distanceSlot = (slotCount / 2) + dayOfYear;
+            Assert.IsTrue(Math.Abs(routeStats[timeSlot] - totalTime) < 0.1, "Route Time");
+            Assert.IsTrue(Math.Abs(routeStats[distanceSlot] - totalDistance) < 0.1, "Route Distance");
+            Assert.IsTrue(Math.Abs(chunkStats[timeSlot] - routeStats[timeSlot]) < 0.1, "Chunk Time");
+            Assert.IsTrue(Math.Abs(chunkStats[distanceSlot] - routeStats[distanceSlot]) < 0.1, "Chunk Distance");
+        }
+
+        // Lays out the points from (inclusive) to (exclusive) of a route in the two halves of a
+        // cipher, each half padded with its last point like the client does
+        private static List<double> CreateRouteList(List<double> firstHalf, List<double> secondHalf, int from, int to, int slotCount)
+        {
+            List<double> list = new List<double>(slotCount);
+            foreach (List<double> half in new List<double>[] { firstHalf, secondHalf })
+            {
+                for (int i = from; i < to; i++)
+                    list.Add(half[i]);
+                for (int i = to - from; i < slotCount / 2; i++)
+                    list.Add(half[to - 1]);
+            }
+            return list;
+        }
+
+        [TestMethod]
+        public void TestCipherPacking()
+        {
+            // Test that the ciphers come back as they were packed, empty ones included
+            Random rand = new Random();
+            List<string> ciphers = new List<string>();
+            foreach (int length in new int[] { 16, 0, 301 })
+            {
+                byte[] cipher = new byte[length];
+                rand.NextBytes(cipher);
+                ciphers.Add(Convert.ToBase64String(cipher));
+            }
+            string packed = CipherPacking.Pack(ciphers);
+            IList<string> unpacked = CipherPacking.Unpack(packed);
+            Assert.AreEqual(ciphers.Count, unpacked.Count, "Cipher Count");
+            for (int i = 0; i < ciphers.Count; i++)
+                Assert.AreEqual(ciphers[i], unpacked[i], "Cipher Mismatch: " + i);
+            Assert.AreEqual(0, CipherPacking.Unpack(CipherPacking.Pack(new List<string>())).Count, "No Ciphers");
+
+            // Test that truncated input is rejected, within a cipher and within a length
+            byte[] packedBytes = Convert.FromBase64String(packed);
+            AssertUnpackFails(Convert.ToBase64String(packedBytes, 0, packedBytes.Length - 1), "Truncated Cipher");
+            AssertUnpackFails(Convert.ToBase64String(packedBytes, 0, 6), "Truncated Length");
+        }
+
+        private static void AssertUnpackFails(string packedBase64, string message)
+        {
+            try
+            {
+                CipherPacking.Unpack(packedBase64);
+            }
+            catch (FormatException)
+            {
+                return;
+            }
+            Assert.Fail(message);
+        }
+
         [TestMethod]
         public void UpdateSummaryPatch()
         {